@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ BatchRunner: runs a whole directory of script files (or every file matching a glob), in
+ parallel, for jobs with thousands of independent scripts. `java Main --batch=DIR`.
+
+ Every file is read, lexed, compiled and run by one task on a ForkJoinPool, on the engine
+ Main was asked for. Each script prints into its own MemoryOutputSink, so outputs never
+ mix, and its errors (a bad token, "Division by zero.", a file that can't be read) fail
+ that file only; what it printed before is kept. Results are written in input order as
+ soon as a file and all the ones before it are done, either as text (a header line, the
+ output, then the error if there was one) or as one JSON object per line. The summary
+ (throughput, p50 / p99 / max time per script, every failure) goes to its own stream.
+
+ A script that never ends keeps its thread to itself: that is what ScriptScheduler is for.
+ */
+final class BatchRunner {
+    private final String engine; // "tree", "vm" or "jvm", as in Main
+    private final int threads;
+    private final boolean json;
+
+    BatchRunner(String engine, int threads, boolean json) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.engine = engine;
+        this.threads = threads;
+        this.json = json;
+    }
+
+    /**
+     What became of one script.
+     */
+    static final class Result {
+        final Path file;
+        final long bytes;
+        final String output; // everything it printed, also when it failed
+        final String error;  // null if it ran to its end
+        final long nanos;    // reading, compiling and running it
+
+        Result(Path file, long bytes, String output, String error, long nanos) {
+            this.file = file;
+            this.bytes = bytes;
+            this.output = output;
+            this.error = error;
+            this.nanos = nanos;
+        }
+
+        boolean failed() {
+            return error != null;
+        }
+    }
+
+    /**
+     The scripts pattern names, sorted: every regular file in it if it is a directory,
+     the file itself if it is one, otherwise every file that matches it as a glob
+     ("scripts/*.py", "jobs/**.py"), searched from the directory before its first
+     wildcard.
+     */
+    static List<Path> scripts(String pattern) throws IOException {
+        Path path = Path.of(pattern.isEmpty() ? "." : pattern);
+        if (!hasWildcard(pattern)) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.list(path)) {
+                    return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                }
+            }
+            if (Files.isRegularFile(path)) {
+                return List.of(path);
+            }
+            throw new IOException("No such file or directory: " + pattern);
+        }
+        int slash = pattern.lastIndexOf('/', firstWildcard(pattern));
+        Path base = slash < 0 ? Path.of(".") : Path.of(slash == 0 ? "/" : pattern.substring(0, slash));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        try (Stream<Path> files = Files.walk(base)) {
+            return files.filter(Files::isRegularFile)
+                    .map(file -> slash < 0 ? base.relativize(file) : file)
+                    .filter(matcher::matches)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean hasWildcard(String pattern) {
+        return firstWildcard(pattern) < pattern.length();
+    }
+
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("*?[{".indexOf(pattern.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return pattern.length();
+    }
+
+    /**
+     Run every file, writing the results to out in the order of files and then the
+     summary to summary. Returns the results, in the same order.
+     */
+    List<Result> run(List<Path> files, PrintStream out, PrintStream summary) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long start = System.nanoTime();
+            List<CompletableFuture<Result>> pending = new ArrayList<>(files.size());
+            for (Path file : files) {
+                pending.add(CompletableFuture.supplyAsync(() -> runOne(file), pool));
+            }
+            List<Result> results = new ArrayList<>(files.size());
+            for (CompletableFuture<Result> future : pending) {
+                Result result = future.join();
+                results.add(result);
+                out.print(json ? toJson(result) : toText(result));
+            }
+            out.flush();
+            summary.print(summary(results, System.nanoTime() - start));
+            summary.flush();
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     Read, compile and run one file. Never throws: a failure is in the Result.
+     */
+    Result runOne(Path file) {
+        long start = System.nanoTime();
+        MemoryOutputSink out = new MemoryOutputSink();
+        long bytes = 0;
+        String error = null;
+        try {
+            byte[] data = Files.readAllBytes(file);
+            bytes = data.length;
+            run(new String(data, StandardCharsets.UTF_8), out);
+        } catch (IOException e) {
+            error = "Can't read " + file + ": " + e.getMessage();
+        } catch (RuntimeException | StackOverflowError e) {
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        return new Result(file, bytes, out.text(), error, System.nanoTime() - start);
+    }
+
+    private void run(String source, OutputSink out) {
+        TokenBuffer tokens = new Lexer(source).tokenize();
+        switch (engine) {
+            case "vm":
+                new VirtualMachine(BytecodeCompiler.compile(tokens, source), out).run();
+                break;
+            case "jvm":
+                JvmCompiler.compileOrInterpret(tokens, source).run(out);
+                break;
+            default:
+                CompiledProgram.compile(tokens, source).run(out);
+                break;
+        }
+    }
+
+    // ---------------------------------
+    // Output
+    // ---------------------------------
+
+    private static String toText(Result result) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("----- ").append(result.file).append(" -----").append(System.lineSeparator());
+        sb.append(result.output);
+        if (result.failed()) {
+            sb.append("Error: ").append(result.error).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    private static String toJson(Result result) {
+        StringBuilder sb = new StringBuilder("{\"file\":");
+        quote(result.file.toString(), sb);
+        sb.append(",\"ok\":").append(!result.failed());
+        sb.append(",\"millis\":").append(String.format(Locale.ROOT, "%.3f", result.nanos / 1e6));
+        sb.append(",\"output\":");
+        quote(result.output, sb);
+        sb.append(",\"error\":");
+        if (result.failed()) {
+            quote(result.error, sb);
+        } else {
+            sb.append("null");
+        }
+        return sb.append('}').append(System.lineSeparator()).toString();
+    }
+
+    // text as a JSON string
+    private static void quote(String text, StringBuilder sb) {
+        sb.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     Totals for a batch that took wallNanos: throughput, time per script, failures.
+     */
+    String summary(List<Result> results, long wallNanos) {
+        long[] nanos = new long[results.size()];
+        long bytes = 0;
+        List<Result> failures = new ArrayList<>();
+        for (int i = 0; i < nanos.length; i++) {
+            Result result = results.get(i);
+            nanos[i] = result.nanos;
+            bytes += result.bytes;
+            if (result.failed()) {
+                failures.add(result);
+            }
+        }
+        Arrays.sort(nanos);
+        double seconds = wallNanos / 1e9;
+        StringBuilder sb = new StringBuilder();
+        String nl = System.lineSeparator();
+        sb.append(String.format("Batch: %d scripts (%.1f KB) in %.3f s, %d threads, %s engine%n",
+                nanos.length, bytes / 1024.0, seconds, threads, engine));
+        sb.append(String.format("  %.1f scripts/s, %.2f MB/s%n", nanos.length / seconds, bytes / 1e6 / seconds));
+        if (nanos.length > 0) {
+            sb.append(String.format("  time per script: p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                    percentile(nanos, 50) / 1e6, percentile(nanos, 99) / 1e6, nanos[nanos.length - 1] / 1e6));
+        }
+        sb.append("  failures: ").append(failures.size()).append(nl);
+        for (Result failure : failures) {
+            sb.append("    ").append(failure.file).append(": ").append(failure.error).append(nl);
+        }
+        return sb.toString();
+    }
+
+    // Nearest rank, of sorted values
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
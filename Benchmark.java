@@ -0,0 +1,1074 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ Benchmark: quick throughput comparison of the execution engines (tree, bytecode VM,
+ compiled JVM class) on the Main examples.
+
+ Each program is lexed and compiled once, then executed repeatedly for about a second
+ after a warm-up; we report runs per second. Printed output is thrown away while timing.
+ It also checks that skipping big blocks doesn't get slower as they grow (see
+ measureBlockScaling),
+ shows how the tracing JIT warms up (see measureTracing), what the tokens of a big
+ script cost in heap (see measureTokenHeap), what lexing a file from its mapped bytes
+ saves (see measureMappedLexing), what interning identifiers saves (see
+ measureIdentifiers), what batching the output saves
+ (see measureOutput), how one CompiledProgram scales on many threads (see
+ measureConcurrency), what the ProgramCache saves when starting up on a
+ directory of scripts (see measureProgramCache), what the Profiler and Telemetry
+ cost (see measureProfiler, measureTelemetry), how the ScriptScheduler shares its
+ threads (see measureScheduler), how long an EditableProgram takes to compile a big
+ script again after a keystroke (see measureEditing), what checkpointing a run
+ costs (see measureCheckpoints), and how soon a one-line script prints in a new JVM (see
+ measureStartup).
+ Run with: java Benchmark
+ */
+public class Benchmark {
+    private static final long WARMUP_NANOS = 500_000_000L;
+    private static final long MEASURE_NANOS = 1_000_000_000L;
+
+    public static void main(String[] args) {
+        System.out.println("Engine throughput (runs/s, higher is better)");
+        System.out.printf("%-28s %14s %14s %14s %8s %8s%n", "program", "tree", "vm", "jvm", "vm/tree", "jvm/tree");
+        compare("sum of N (N=100000)", Examples.sumOfN(100_000));
+        compare("factorial (N=12)", Examples.factorial(12));
+        compare("GCD(1836311903,1134903170)", Examples.gcd(1836311903, 1134903170));
+        compare("reverse number", Examples.reverseNumber(123456789));
+        compare("prime check (N=100003)", Examples.primeTest(100_003));
+        compare("palindrome check", Examples.palindromeTest(123454321));
+        compare("largest digit", Examples.largestDigit(193847562));
+        compare("sum of digits", Examples.sumOfDigits(987654321));
+        compare("multiplication table (1000)", Examples.multiplicationTable(7, 1000));
+        compare("Fibonacci (N=40)", Examples.nthFibonacci(40));
+
+        measureBlockScaling();
+        measureTracing();
+        measureTokenHeap();
+        measureMappedLexing();
+        measureIdentifiers();
+        measureOutput();
+        measureConcurrency();
+        measureProgramCache();
+        measureProfiler();
+        measureTelemetry();
+        measureScheduler();
+        measureOptimizer();
+        measureEditing();
+        measureCheckpoints();
+        measureStartup();
+    }
+
+    /**
+     Time to first output: a new JVM runs Main on a file holding print(1), as the command
+     line does, and we take the time from starting the process to the first byte on its
+     standard output, and to its exit; the median of 20 after 3 to warm the file cache. With
+     the JDK's own CDS archive (the default), with no CDS at all, and with an AppCDS archive
+     a training run wrote (ArchiveClassesAtExit, as mvn -Pcds package does), also with C1
+     only. AppCDS only archives classes from jars, so a class directory on the classpath is
+     packed into one first.
+     */
+    private static void measureStartup() {
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("startup");
+            Path script = directory.resolve("print.py");
+            Files.writeString(script, "print(1)\n");
+            Path training = directory.resolve("training.py");
+            Files.writeString(training, Examples.primeTest(1000));
+            Path jar = classpathJar(directory);
+            Path archive = directory.resolve("app.jsa");
+            startMain(List.of("-XX:ArchiveClassesAtExit=" + archive), jar, training);
+            if (!Files.exists(archive)) {
+                throw new IllegalStateException("the training run wrote no archive");
+            }
+
+            System.out.println();
+            System.out.println("Startup, java Main print.py with print(1) (median ms, lower is better)");
+            System.out.printf("%-28s %14s %14s%n", "", "first output", "exit");
+            startup("default (JDK CDS)", List.of(), jar, script);
+            startup("-Xshare:off", List.of("-Xshare:off"), jar, script);
+            startup("AppCDS", List.of("-XX:SharedArchiveFile=" + archive), jar, script);
+            startup("AppCDS, C1 only", List.of("-XX:SharedArchiveFile=" + archive, "-XX:TieredStopAtLevel=1"),
+                    jar, script);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteQuietly(directory);
+        }
+    }
+
+    private static void startup(String label, List<String> options, Path jar, Path script) throws IOException {
+        int runs = 20;
+        long[] firstOutput = new long[runs];
+        long[] exit = new long[runs];
+        for (int run = -3; run < runs; run++) {
+            long[] nanos = startMain(options, jar, script);
+            if (run >= 0) {
+                firstOutput[run] = nanos[0];
+                exit[run] = nanos[1];
+            }
+        }
+        Arrays.sort(firstOutput);
+        Arrays.sort(exit);
+        System.out.printf("%-28s %14.1f %14.1f%n", label, firstOutput[runs / 2] / 1e6, exit[runs / 2] / 1e6);
+    }
+
+    // Run Main on script in a new JVM; nanoseconds to its first output byte and to its exit
+    private static long[] startMain(List<String> options, Path jar, Path script) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(options);
+        command.add("-cp");
+        command.add(jar.toString());
+        command.add("Main");
+        command.add(script.toString());
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        try (InputStream in = process.getInputStream()) {
+            int first = in.read();
+            long firstOutput = System.nanoTime() - start;
+            byte[] rest = in.readAllBytes();
+            int status = process.waitFor();
+            long exit = System.nanoTime() - start;
+            if (first < 0 || status != 0) {
+                throw new IllegalStateException("Main failed on " + script + " with exit code " + status);
+            }
+            if (script.endsWith("print.py") && !((char) first + new String(rest)).strip().equals("1")) {
+                throw new IllegalStateException("Main printed something else than 1");
+            }
+            return new long[] { firstOutput, exit };
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The classpath as one jar: itself if it is one, else the classes of its directory packed into directory
+    private static Path classpathJar(Path directory) throws IOException {
+        Path classpath = Path.of(System.getProperty("java.class.path").split(File.pathSeparator)[0]);
+        if (!Files.isDirectory(classpath)) {
+            return classpath;
+        }
+        Path jar = directory.resolve("classes.jar");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar));
+             java.util.stream.Stream<Path> files = Files.list(classpath)) {
+            for (Path file : (Iterable<Path>) files.filter(f -> f.toString().endsWith(".class"))::iterator) {
+                out.putNextEntry(new JarEntry(file.getFileName().toString()));
+                Files.copy(file, out);
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    /**
+     What checkpointing a run costs. First throughput: the prime check at N = 10^7 (one
+     traced loop, about 20 ms a run) and at N = 10^6 with tracing off, on the tree
+     interpreter without checkpoints, with a Checkpointer at a 10 ms interval, and with one
+     at 0 (a checkpoint at every check: every 1024 back-edges, and every poll exit of the
+     trace). Every one on its own CompiledProgram, since the trace is kept in the tree. Then
+     latency for a loop over 1000 variables, checkpointed at every back-edge: the pause the
+     run sees per checkpoint (flush and copy), encoding the image, writing it to a file, and
+     reading it back into a ready-to-run Interpreter. That resuming prints the right thing
+     is CheckpointTest's job.
+     */
+    private static void measureCheckpoints() {
+        System.out.println();
+        System.out.println("Checkpoints, prime check on the tree interpreter (runs/s, higher is better)");
+        checkpointThroughput("N=10^7, traced", EngineOptions.DEFAULT.withTracing(true));
+        checkpointThroughput("N=10^6, not traced", EngineOptions.DEFAULT.withTracing(false));
+
+        String source = manyVariablesScript(1000, 2000);
+        CompiledProgram program = CompiledProgram.compile(source);
+        // Once to warm up, then the run that counts; a checkpoint at every back-edge
+        program.run(new MemoryOutputSink(), new Checkpointer(program, 0, 1, checkpoint -> { }));
+        List<Checkpoint> taken = new ArrayList<>();
+        Checkpointer checkpointer = new Checkpointer(program, 0, 1, taken::add);
+        program.run(new MemoryOutputSink(), checkpointer);
+
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("checkpoints");
+            Path file = directory.resolve("run.checkpoint");
+            Checkpoint checkpoint = taken.get(taken.size() / 2);
+            int imageBytes = checkpoint.toBytes().length;
+            long encodeNanos = bestOf(200, checkpoint::toBytes);
+            long writeNanos = bestOf(200, () -> writeCheckpoint(checkpoint, file));
+            MemoryOutputSink resumedOut = new MemoryOutputSink();
+            long restoreNanos = bestOf(200, () -> readCheckpoint(program, file, resumedOut));
+
+            System.out.println();
+            System.out.printf("Checkpoints, loop over %d variables: %d-byte image, %d taken in one run%n",
+                    program.slotCount(), imageBytes, checkpointer.taken());
+            System.out.printf("%-28s %10.1f us avg %10.1f us max%n", "pause (flush and copy)",
+                    checkpointer.pauseNanos() / 1e3 / checkpointer.taken(), checkpointer.maxPauseNanos() / 1e3);
+            System.out.printf("%-28s %10.1f us%n", "encode image", encodeNanos / 1e3);
+            System.out.printf("%-28s %10.1f us%n", "write to file", writeNanos / 1e3);
+            System.out.printf("%-28s %10.1f us%n", "read and restore", restoreNanos / 1e3);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteQuietly(directory);
+        }
+    }
+
+    private static void checkpointThroughput(String name, EngineOptions options) {
+        String prime = Examples.primeTest(options.tracing ? 10_000_000 : 1_000_000);
+        MemoryOutputSink out = new MemoryOutputSink();
+        CompiledProgram plainProgram = CompiledProgram.compile(prime, options);
+        double plain = measure(() -> {
+            out.clear();
+            plainProgram.run(out);
+        });
+        CompiledProgram periodicProgram = CompiledProgram.compile(prime, options);
+        Checkpointer periodic = new Checkpointer(periodicProgram, 10_000_000L, checkpoint -> { });
+        double checkpointed = measure(() -> {
+            out.clear();
+            periodicProgram.run(out, periodic);
+        });
+        CompiledProgram alwaysProgram = CompiledProgram.compile(prime, options);
+        Checkpointer always = new Checkpointer(alwaysProgram, 0, checkpoint -> { });
+        double checkpointedAlways = measure(() -> {
+            out.clear();
+            alwaysProgram.run(out, always);
+        });
+
+        System.out.printf("%-28s %14.1f%n", name + ", none", plain);
+        System.out.printf("%-28s %14.1f %7.2fx  (%d taken)%n", "  every 10 ms", checkpointed, checkpointed / plain,
+                periodic.taken());
+        System.out.printf("%-28s %14.1f %7.2fx  (%d taken)%n", "  at every check", checkpointedAlways,
+                checkpointedAlways / plain, always.taken());
+    }
+
+    private static void writeCheckpoint(Checkpoint checkpoint, Path file) {
+        try {
+            checkpoint.write(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Interpreter readCheckpoint(CompiledProgram program, Path file, OutputSink out) {
+        try {
+            return new Interpreter(program, Checkpoint.read(file), out, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Fastest of runs runs of task, after as many to warm up, in nanoseconds
+    private static long bestOf(int runs, Runnable task) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 2 * runs; round++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    // vars variables, all added to on every one of iterations iterations, printing as it goes
+    private static String manyVariablesScript(int vars, int iterations) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("i = 0\n");
+        sb.append("while i < ").append(iterations).append(":\n");
+        for (int k = 0; k < vars; k++) {
+            sb.append("    v").append(k).append(" = i * ").append(k + 1).append(" + v").append(k).append("\n");
+        }
+        sb.append("    if i % 100 == 0:\n");
+        sb.append("        print(v").append(vars - 1).append(")\n");
+        sb.append("    i = i + 1\n");
+        sb.append("print(v0)\n");
+        return sb.toString();
+    }
+
+    /**
+     Types into a 100000-line script, one keystroke per edit, and compiles it again after
+     every one: from scratch (CompiledProgram.compile on the whole new source, what an
+     editor that re-runs the script does today), and with an EditableProgram. Both must
+     give programs that print the same.
+     */
+    private static void measureEditing() {
+        String source = editingScript(25_000);
+        // A new line in the middle of the script, typed one character at a time, then deleted again
+        int offset = source.indexOf('\n', source.length() / 2) + 1;
+        String typed = "total = total + 12345\n";
+
+        StringBuilder text = new StringBuilder(source);
+        CompiledProgram full = null;
+        long fullNanos = 0;
+        for (int round = 0; round < EDITING_ROUNDS; round++) {
+            for (int k = 0; k < typed.length() * 2; k++) {
+                int at = keystroke(text, offset, typed, k);
+                long start = System.nanoTime();
+                full = CompiledProgram.compile(text.toString());
+                if (round >= EDITING_ROUNDS / 2) {
+                    fullNanos += System.nanoTime() - start;
+                }
+            }
+        }
+
+        EditableProgram editor = new EditableProgram(source);
+        text = new StringBuilder(source);
+        long editNanos = 0;
+        long compileNanos = 0;
+        for (int round = 0; round < EDITING_ROUNDS; round++) {
+            for (int k = 0; k < typed.length() * 2; k++) {
+                int at = keystroke(text, offset, typed, k);
+                long start = System.nanoTime();
+                if (k < typed.length()) {
+                    editor.edit(at, 0, String.valueOf(typed.charAt(k)));
+                } else {
+                    editor.edit(at, 1, "");
+                }
+                long edited = System.nanoTime();
+                editor.program();
+                if (round >= EDITING_ROUNDS / 2) {
+                    editNanos += edited - start;
+                    compileNanos += System.nanoTime() - edited;
+                }
+            }
+        }
+
+        MemoryOutputSink expected = new MemoryOutputSink();
+        full.run(expected);
+        MemoryOutputSink actual = new MemoryOutputSink();
+        editor.run(actual);
+        if (!expected.text().equals(actual.text()) || !editor.source().equals(text.toString())) {
+            throw new IllegalStateException("EditableProgram doesn't match the script compiled from scratch");
+        }
+
+        // The first half of the rounds is the warm-up
+        int keystrokes = EDITING_ROUNDS / 2 * typed.length() * 2;
+        System.out.println();
+        System.out.printf("Editing, %d-line script (%.1f MB), ms per keystroke%n", editor.lineCount(), source.length() / 1e6);
+        System.out.printf("%-28s %14.3f%n", "compile from scratch", fullNanos / 1e6 / keystrokes);
+        System.out.printf("%-28s %14.3f%n", "EditableProgram.edit", editNanos / 1e6 / keystrokes);
+        System.out.printf("%-28s %14.3f%n", "EditableProgram.program", compileNanos / 1e6 / keystrokes);
+        System.out.printf("%-28s %13.2fx%n", "speedup", (double) fullNanos / (editNanos + compileNanos));
+    }
+
+    private static final int EDITING_ROUNDS = 20;
+
+    // Keystroke k of typing typed at offset and then deleting it backwards; returns where it goes
+    private static int keystroke(StringBuilder text, int offset, String typed, int k) {
+        if (k < typed.length()) {
+            text.insert(offset + k, typed.charAt(k));
+            return offset + k;
+        }
+        int at = offset + typed.length() * 2 - k - 1;
+        text.deleteCharAt(at);
+        return at;
+    }
+
+    // blocks of 4 lines: an assignment, an if with a print, and a comment
+    private static String editingScript(int blocks) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < blocks; i++) {
+            sb.append("total = total + ").append(i).append(" * 3 - counter\n");
+            sb.append("if total > ").append(i * 7).append(":\n");
+            sb.append("    print(total % 1000)\n");
+            sb.append("# block ").append(i).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     A loop full of work the Optimizer does ahead of time (constants assigned once,
+     arithmetic on them, x * 1, x + 0, an if that is never taken), on the tree interpreter
+     (with the tracing JIT off and on) and the VM, with and without the Optimizer. All of
+     them must print the same.
+     */
+    private static void measureOptimizer() {
+        String source = constantHeavyScript(100_000);
+        TokenBuffer tokens = new Lexer(source).tokenize();
+        // What the program prints without the Optimizer is what it must print with it
+        Parser reference = new Parser(Interpreter.splitIntoIndentedLines(tokens, source));
+        MemoryOutputSink printed = new MemoryOutputSink();
+        CompiledProgram.fromTree(reference.parseProgram(), reference.symbols().size()).run(printed);
+        String expected = printed.text();
+
+        double[] jitOff = measureWithAndWithoutOptimizer(tokens, source, expected, EngineOptions.DEFAULT.withTracing(false));
+        double[] jitOn = measureWithAndWithoutOptimizer(tokens, source, expected, EngineOptions.DEFAULT);
+
+        Parser parser = new Parser(Interpreter.splitIntoIndentedLines(tokens, source));
+        Bytecode plainCode = BytecodeCompiler.compile(parser.parseProgram(), parser.symbols());
+        Bytecode optimizedCode = BytecodeCompiler.compile(tokens, source);
+        MemoryOutputSink out = new MemoryOutputSink();
+        Runnable vmBefore = () -> {
+            out.clear();
+            new VirtualMachine(plainCode, out).run();
+        };
+        Runnable vmAfter = () -> {
+            out.clear();
+            new VirtualMachine(optimizedCode, out).run();
+        };
+        checkPrints(vmBefore, out, expected);
+        checkPrints(vmAfter, out, expected);
+        double[] vm = {measure(vmBefore), measure(vmAfter)};
+
+        System.out.println();
+        System.out.println("Optimizer, constant-heavy loop (N=100000) (runs/s, higher is better)");
+        System.out.printf("%-28s %14s %14s %8s%n", "engine", "not optimized", "optimized", "speedup");
+        System.out.printf("%-28s %14.1f %14.1f %7.2fx%n", "tree, jit off", jitOff[0], jitOff[1], jitOff[1] / jitOff[0]);
+        System.out.printf("%-28s %14.1f %14.1f %7.2fx%n", "tree", jitOn[0], jitOn[1], jitOn[1] / jitOn[0]);
+        System.out.printf("%-28s %14.1f %14.1f %7.2fx%n", "vm", vm[0], vm[1], vm[1] / vm[0]);
+    }
+
+    // Runs/s of the program on the tree interpreter as parsed and as optimized; fresh
+    // programs, so loops traced in an earlier measurement don't carry over
+    private static double[] measureWithAndWithoutOptimizer(TokenBuffer tokens, String source, String expected,
+                                                           EngineOptions options) {
+        Parser parser = new Parser(Interpreter.splitIntoIndentedLines(tokens, source));
+        CompiledProgram plain = CompiledProgram.fromTree(parser.parseProgram(), parser.symbols().size(), options);
+        CompiledProgram optimized = CompiledProgram.compile(tokens, source, options);
+        MemoryOutputSink out = new MemoryOutputSink();
+        Runnable before = () -> {
+            out.clear();
+            plain.run(out);
+        };
+        Runnable after = () -> {
+            out.clear();
+            optimized.run(out);
+        };
+        checkPrints(before, out, expected);
+        checkPrints(after, out, expected);
+        return new double[] {measure(before), measure(after)};
+    }
+
+    private static void checkPrints(Runnable run, MemoryOutputSink out, String expected) {
+        run.run();
+        if (!out.text().equals(expected)) {
+            throw new IllegalStateException("Printed " + out.text() + " instead of " + expected);
+        }
+    }
+
+    private static String constantHeavyScript(int n) {
+        return "N = " + n + "\n"
+                + "SCALE = 3\n"
+                + "OFFSET = 10\n"
+                + "LIMIT = N * 2 + 10\n"
+                + "sum = 0\n"
+                + "i = 0\n"
+                + "while i < LIMIT:\n"
+                + "    sum = sum + i * SCALE * 1 + OFFSET * 2 + 0\n"
+                + "    if SCALE > 5:\n"
+                + "        sum = sum - 1\n"
+                + "    sum = sum % 1000003\n"
+                + "    i = i + 1 + 0\n"
+                + "print(sum)\n";
+    }
+
+    /**
+     2000 short scripts and 8 that loop forever on a ScriptScheduler with one worker per core.
+     Every short script must end with the output it prints when run on its own, even though
+     the endless ones never give their threads back by themselves; then the endless ones are
+     cancelled. Prints how long the short ones took, for two quanta, and the CPU time each
+     endless script got.
+     */
+    private static void measureScheduler() {
+        int workers = Runtime.getRuntime().availableProcessors();
+        System.out.println();
+        System.out.printf("ScriptScheduler, %d workers: 2000 short scripts next to 8 endless loops%n", workers);
+        System.out.printf("%10s %14s %20s%n", "quantum", "short ms", "endless cpu ms each");
+        for (int quantum : new int[] {1_000, ScriptScheduler.DEFAULT_QUANTUM}) {
+            try (ScriptScheduler scheduler = new ScriptScheduler(workers, quantum)) {
+                List<ScriptScheduler.Task> endless = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    endless.add(scheduler.submit("endless" + i, "x = 0\nwhile 1:\n    x = x + 1\n", new MemoryOutputSink()));
+                }
+
+                List<String> sources = new ArrayList<>();
+                List<String> expected = new ArrayList<>();
+                for (int i = 0; i < 2000; i++) {
+                    String source = i % 2 == 0 ? Examples.sumOfN(1000 + i) : Examples.primeTest(1009 + i);
+                    MemoryOutputSink alone = new MemoryOutputSink();
+                    new VirtualMachine(BytecodeCompiler.compile(new Lexer(source).tokenize(), source), alone).run();
+                    sources.add(source);
+                    expected.add(alone.text());
+                }
+
+                long start = System.nanoTime();
+                List<ScriptScheduler.Task> tasks = new ArrayList<>();
+                List<MemoryOutputSink> outputs = new ArrayList<>();
+                for (int i = 0; i < sources.size(); i++) {
+                    MemoryOutputSink out = new MemoryOutputSink();
+                    outputs.add(out);
+                    tasks.add(scheduler.submit("short" + i, sources.get(i), out));
+                }
+                for (int i = 0; i < tasks.size(); i++) {
+                    tasks.get(i).completion().join();
+                    if (!outputs.get(i).text().equals(expected.get(i))) {
+                        throw new IllegalStateException("Script " + tasks.get(i).name + " printed the wrong output");
+                    }
+                }
+                double shortMillis = (System.nanoTime() - start) / 1e6;
+
+                long endlessCpu = 0;
+                for (ScriptScheduler.Task task : endless) {
+                    task.cancel();
+                    try {
+                        task.completion().join();
+                        throw new IllegalStateException("Endless script " + task.name + " ended");
+                    } catch (java.util.concurrent.CompletionException | java.util.concurrent.CancellationException e) {
+                        // expected
+                    }
+                    if (task.state() != ScriptScheduler.Task.State.CANCELLED) {
+                        throw new IllegalStateException("Endless script " + task.name + " is " + task.state());
+                    }
+                    endlessCpu += task.cpuNanos();
+                }
+                System.out.printf("%10d %14.1f %20.1f%n", quantum, shortMillis, endlessCpu / 8 / 1e6);
+            }
+        }
+    }
+
+    /**
+     The prime check on the tree interpreter with Telemetry counting off and on (runs
+     reported to the LongAdders, no JFR recording). Tracing is off for both, since a
+     counted run never traces its loops.
+     */
+    private static void measureTelemetry() {
+        CompiledProgram program = CompiledProgram.compile(Examples.primeTest(100_003), EngineOptions.DEFAULT.withTracing(false));
+        MemoryOutputSink out = new MemoryOutputSink();
+        Runnable run = () -> {
+            out.clear();
+            program.run(out);
+        };
+        boolean wasCounting = Telemetry.enabled;
+        double off;
+        double on;
+        try {
+            Telemetry.enabled = false;
+            off = measure(run);
+            Telemetry.enabled = true;
+            on = measure(run);
+        } finally {
+            Telemetry.enabled = wasCounting;
+        }
+
+        System.out.println();
+        System.out.println("Telemetry, prime check (N=100003) on the tree interpreter, jit off (runs/s, higher is better)");
+        System.out.printf("%-28s %14.1f%n", "counting off", off);
+        System.out.printf("%-28s %14.1f %7.2fx%n", "counting on", on, on / off);
+    }
+
+    /**
+     The prime check on the tree interpreter without a Profiler, with the default sampling
+     one and with one that times every statement. Tracing is off for all of them, since a
+     profiled run never traces its loops. Then the sampled profile itself.
+     */
+    private static void measureProfiler() {
+        String source = Examples.primeTest(100_003);
+        CompiledProgram program = CompiledProgram.compile(source, EngineOptions.DEFAULT.withTracing(false));
+        MemoryOutputSink out = new MemoryOutputSink();
+        Profiler profiler = new Profiler(source);
+        Profiler exact = new Profiler(source, 0);
+        double plain = measure(() -> {
+            out.clear();
+            program.run(out);
+        });
+        double profiled = measure(() -> {
+            out.clear();
+            program.run(out, profiler);
+        });
+        double profiledExact = measure(() -> {
+            out.clear();
+            program.run(out, exact);
+        });
+
+        System.out.println();
+        System.out.println("Profiler, prime check (N=100003) on the tree interpreter, jit off (runs/s, higher is better)");
+        System.out.printf("%-28s %14.1f%n", "no profiler", plain);
+        System.out.printf("%-28s %14.1f %7.2fx%n", "Profiler (sampled)", profiled, profiled / plain);
+        System.out.printf("%-28s %14.1f %7.2fx%n", "Profiler (exact timing)", profiledExact, profiledExact / plain);
+        System.out.print(profiler.report(5));
+    }
+
+    /**
+     Cold start on a directory of 200 scripts (about 2000 lines each): reading and compiling
+     every one of them from source, next to loading them from a ProgramCache that already
+     has them. Round 1 is the closest to a fresh JVM; later rounds show both warmed up.
+     */
+    private static void measureProgramCache() {
+        Path scripts = null;
+        Path cacheDir = null;
+        try {
+            scripts = Files.createTempDirectory("benchmark-scripts");
+            cacheDir = Files.createTempDirectory("benchmark-cache");
+            List<Path> files = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                Path file = scripts.resolve("script" + i + ".py");
+                Files.writeString(file, cacheScript(i));
+                files.add(file);
+            }
+
+            long start = System.nanoTime();
+            for (Path file : files) {
+                new ProgramCache(cacheDir).load(Files.readString(file));
+            }
+            double populate = (System.nanoTime() - start) / 1e6;
+
+            System.out.println();
+            System.out.printf("Cold start, %d scripts (%.1f MB), ms to load all of them%n",
+                    files.size(), sizeOf(scripts) / 1e6);
+            System.out.printf("%-28s %14.1f%n", "filling an empty cache", populate);
+            System.out.printf("%6s %21s %14s %8s%n", "round", "compile from source", "ProgramCache", "speedup");
+            for (int round = 1; round <= 3; round++) {
+                start = System.nanoTime();
+                for (Path file : files) {
+                    CompiledProgram.compile(Files.readString(file));
+                }
+                double fromSource = (System.nanoTime() - start) / 1e6;
+
+                start = System.nanoTime();
+                ProgramCache cache = new ProgramCache(cacheDir);
+                for (Path file : files) {
+                    cache.load(Files.readString(file));
+                }
+                double cached = (System.nanoTime() - start) / 1e6;
+                System.out.printf("%6d %21.1f %14.1f %7.2fx%n", round, fromSource, cached, fromSource / cached);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deleteQuietly(scripts);
+            deleteQuietly(cacheDir);
+        }
+    }
+
+    // Every Example with small arguments, then a long generated tail
+    private static String cacheScript(int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Examples.sumOfN(100 + i)).append(Examples.factorial(i % 12))
+                .append(Examples.gcd(1071 + i, 462)).append(Examples.primeTest(101 + i))
+                .append(Examples.multiplicationTable(i % 9 + 1, 10)).append(Examples.nthFibonacci(i % 30));
+        for (int k = 0; k < 500; k++) {
+            sb.append("total = total + ").append(k * i).append("\n");
+            sb.append("if total > ").append(k * 100).append(":\n");
+            sb.append("    print(total % 7)\n");
+            sb.append("# comment line ").append(k).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static long sizeOf(Path directory) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            return files.mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static void deleteQuietly(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            // best effort, it's a temp directory
+        }
+        directory.toFile().delete();
+    }
+
+    /**
+     One CompiledProgram shared by many threads: throughput as the number of threads grows.
+     That concurrent runs print the right output is CompiledProgramConcurrencyTest's job.
+     */
+    private static void measureConcurrency() {
+        CompiledProgram program = CompiledProgram.compile(Examples.primeTest(10_007));
+        int maxThreads = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+        System.out.println();
+        System.out.println("Shared CompiledProgram, prime check (N=10007), runs/s by thread count");
+        System.out.printf("%8s %14s %8s%n", "threads", "runs/s", "speedup");
+        double single = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double runs = measureThreads(program, threads);
+            if (threads == 1) {
+                single = runs;
+            }
+            System.out.printf("%8d %14.1f %7.2fx%n", threads, runs, runs / single);
+        }
+    }
+
+    // Runs/s of program with the given number of threads running it back to back
+    private static double measureThreads(CompiledProgram program, int threads) {
+        OutputSink discard = new OutputSink() {
+            @Override
+            public void print(int value) {
+            }
+
+            @Override
+            public void print(BigInteger value) {
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> counts = new ArrayList<>();
+            long end = System.nanoTime() + WARMUP_NANOS + MEASURE_NANOS;
+            long measureFrom = end - MEASURE_NANOS;
+            for (int t = 0; t < threads; t++) {
+                counts.add(executor.submit(() -> {
+                    long runs = 0;
+                    long now;
+                    while ((now = System.nanoTime()) < end) {
+                        program.run(discard);
+                        if (now >= measureFrom) {
+                            runs++;
+                        }
+                    }
+                    return runs;
+                }));
+            }
+            long total = 0;
+            for (Future<Long> count : counts) {
+                total += count.get();
+            }
+            return total * 1e9 / MEASURE_NANOS;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Concurrent run failed", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     The multiplication table with 100000 rows, written to a file: once with
+     System.out-style println per print (a locked, flushed write each time), once through
+     a BufferedOutputSink on the file's channel. Same script, same tree interpreter.
+     */
+    private static void measureOutput() {
+        String source = Examples.multiplicationTable(7, 100_000);
+        TokenBuffer tokens = new Lexer(source).tokenize();
+        Path file;
+        try {
+            file = Files.createTempFile("benchmark-output", ".txt");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try (FileOutputStream printStreamFile = new FileOutputStream(file.toFile());
+             PrintStream println = new PrintStream(printStreamFile, true);
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            Interpreter perLine = new Interpreter(tokens, source, new OutputSink() {
+                @Override
+                public void print(int value) {
+                    println.println(value);
+                }
+
+                @Override
+                public void print(BigInteger value) {
+                    println.println(value);
+                }
+            });
+            Interpreter buffered = new Interpreter(tokens, source, new BufferedOutputSink(channel));
+
+            double perLineRuns = measure(perLine::interpret);
+            double bufferedRuns = measure(buffered::interpret);
+
+            System.out.println();
+            System.out.println("Output, multiplication table (100000 rows) to a file (runs/s, higher is better)");
+            System.out.printf("%-28s %14.1f%n", "println per print", perLineRuns);
+            System.out.printf("%-28s %14.1f %7.2fx%n", "BufferedOutputSink", bufferedRuns, bufferedRuns / perLineRuns);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            file.toFile().delete();
+        }
+    }
+
+    /**
+     Heap taken by the tokens and lines of a 1M-line script: the TokenBuffer and the
+     Line ranges over it, next to the same tokens as a List of Token objects (what the
+     Lexer used to return). Measured as used heap after GC, before and after building each.
+     */
+    private static void measureTokenHeap() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 250_000; i++) {
+            sb.append("total = total + ").append(i).append("\n");
+            sb.append("if total > 100:\n");
+            sb.append("    print(total % 7)\n");
+            sb.append("# comment line ").append(i).append("\n");
+        }
+        String source = sb.toString();
+
+        long before = usedHeapAfterGc();
+        TokenBuffer tokens = new Lexer(source).tokenize();
+        long afterTokens = usedHeapAfterGc();
+        List<Interpreter.Line> lines = Interpreter.splitIntoIndentedLines(tokens, source);
+        long afterLines = usedHeapAfterGc();
+        List<Token> tokenObjects = tokens.toList();
+        long afterObjects = usedHeapAfterGc();
+
+        System.out.println();
+        System.out.printf("Token heap, %d-line script (%.1f MB of source, %d tokens)%n",
+                lines.size(), source.length() / 1e6, tokens.size());
+        System.out.printf("%-28s %10.1f MB%n", "TokenBuffer", (afterTokens - before) / 1e6);
+        System.out.printf("%-28s %10.1f MB%n", "lines (token ranges)", (afterLines - afterTokens) / 1e6);
+        System.out.printf("%-28s %10.1f MB%n", "same tokens as List<Token>", (afterObjects - afterLines) / 1e6);
+        // Keep everything reachable until all measurements are taken
+        if (tokenObjects.size() != tokens.size() || lines.isEmpty()) {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     Lexes and compiles a 1M-line script that uses a few variables over and over: how many
+     IDENT tokens it has next to how many Strings their names take (one per distinct name,
+     see Identifiers), and what lexing and compiling cost in time and allocation (best of
+     5 after a warm-up).
+     */
+    private static void measureIdentifiers() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        String source = editingScript(250_000);
+
+        TokenBuffer tokens = new Lexer(source).tokenize();
+        int identifierCount = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.type(i) == TokenType.IDENT) {
+                identifierCount++;
+            }
+        }
+        CompiledProgram.compile(tokens, source);
+
+        long lexNanos = Long.MAX_VALUE;
+        long lexBytes = Long.MAX_VALUE;
+        long compileNanos = Long.MAX_VALUE;
+        long compileBytes = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            tokens = new Lexer(source).tokenize();
+            long lexed = System.nanoTime();
+            long afterLex = threads.getThreadAllocatedBytes(threadId);
+            CompiledProgram.compile(tokens, source);
+            long compiled = System.nanoTime();
+            lexNanos = Math.min(lexNanos, lexed - start);
+            lexBytes = Math.min(lexBytes, afterLex - before);
+            compileNanos = Math.min(compileNanos, compiled - lexed);
+            compileBytes = Math.min(compileBytes, threads.getThreadAllocatedBytes(threadId) - afterLex);
+        }
+
+        System.out.println();
+        System.out.printf("Identifiers, 1M-line script: %d IDENT tokens, %d distinct names (one String each)%n",
+                identifierCount, tokens.identifiers().size());
+        System.out.printf("%-28s %10.1f ms %10.1f MB allocated%n", "Lexer.tokenize", lexNanos / 1e6, lexBytes / 1e6);
+        System.out.printf("%-28s %10.1f ms %10.1f MB allocated%n", "compile (split, parse, ...)", compileNanos / 1e6, compileBytes / 1e6);
+    }
+
+    /**
+     Lexes a 2M-line script file (about 60 MB) into lines two ways: read into a String and
+     then Lexer.tokenize and splitIntoIndentedLines (the usual path), and MappedLexer,
+     straight from the mapped file. Reports MB/s (best of 5 passes after a warm-up), what
+     one pass allocates, and the heap its result keeps (used heap after GC, with the lines
+     still reachable; for the usual path that includes the source String).
+     */
+    private static void measureMappedLexing() {
+        Path file = null;
+        try {
+            file = Files.createTempFile("mapped-lexing", ".py");
+            Files.writeString(file, editingScript(500_000));
+            long size = Files.size(file);
+
+            System.out.println();
+            System.out.printf("Lexing a %.1f MB script file into lines%n", size / 1e6);
+            System.out.printf("%-28s %10s %14s %14s%n", "", "MB/s", "allocated MB", "retained MB");
+            List<Interpreter.Line> read = measureLexing("read into a String", file, false);
+            List<Interpreter.Line> mapped = measureLexing("MappedLexer", file, true);
+            if (read.size() != mapped.size() || read.get(read.size() - 1).indent != mapped.get(mapped.size() - 1).indent) {
+                throw new IllegalStateException("MappedLexer gave other lines");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // Temp file, left behind
+                }
+            }
+        }
+    }
+
+    private static List<Interpreter.Line> measureLexing(String name, Path file, boolean mapped) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        double size = Files.size(file);
+
+        lexFile(file, mapped);
+        double best = 0;
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            lexFile(file, mapped);
+            long nanos = System.nanoTime() - start;
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(threadId) - before);
+            best = Math.max(best, size / 1e6 / (nanos / 1e9));
+        }
+
+        long beforeRetained = usedHeapAfterGc();
+        List<Interpreter.Line> lines = lexFile(file, mapped);
+        long retained = usedHeapAfterGc() - beforeRetained;
+        System.out.printf("%-28s %10.1f %14.1f %14.1f%n", name, best, allocated / 1e6, retained / 1e6);
+        return lines;
+    }
+
+    private static List<Interpreter.Line> lexFile(Path file, boolean mapped) throws IOException {
+        if (mapped) {
+            return MappedLexer.lex(file).lines();
+        }
+        String source = Files.readString(file);
+        return Interpreter.splitIntoIndentedLines(new Lexer(source).tokenize(), source);
+    }
+
+    private static long usedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     Runs the prime check at a large N ten times on the same tree interpreter, with the
+     tracing JIT off and on, and prints the time of every run: the first runs show the
+     warm-up (the loop is recorded and compiled during run 1), the last ones the steady state.
+     */
+    private static void measureTracing() {
+        int n = 50_000_017;
+        String source = Examples.primeTest(n);
+        TokenBuffer tokens = new Lexer(source).tokenize();
+
+        System.out.println();
+        System.out.printf("Tracing JIT, prime check (N=%d) on the tree interpreter, ms per run%n", n);
+        System.out.printf("%6s %14s %14s %8s%n", "run", "jit off", "jit on", "speedup");
+        double[][] millis = new double[2][10];
+        MemoryOutputSink out = new MemoryOutputSink();
+        for (int mode = 0; mode < 2; mode++) {
+            CompiledProgram program = CompiledProgram.compile(tokens, source, EngineOptions.DEFAULT.withTracing(mode == 1));
+            for (int run = 0; run < millis[mode].length; run++) {
+                out.clear();
+                long start = System.nanoTime();
+                program.run(out);
+                millis[mode][run] = (System.nanoTime() - start) / 1e6;
+            }
+        }
+        for (int run = 0; run < millis[0].length; run++) {
+            System.out.printf("%6d %14.1f %14.1f %7.2fx%n", run + 1, millis[0][run], millis[1][run], millis[0][run] / millis[1][run]);
+        }
+    }
+
+    /**
+     Deeply nested loops where every level also has an if whose condition is always false
+     and whose block holds many lines. Compile time should grow linearly with the number of
+     lines, and run time should not depend on how long the skipped blocks are.
+     */
+    private static void measureBlockScaling() {
+        System.out.println();
+        System.out.println("Block skipping, 8 nested loops (3 iterations each) with large false if-blocks");
+        System.out.printf("%10s %14s %14s%n", "lines", "compile ms", "run ms");
+        for (int linesPerBlock = 8_000; linesPerBlock <= 64_000; linesPerBlock *= 2) {
+            String source = nestedLoops(8, linesPerBlock);
+            long lineCount = source.chars().filter(c -> c == '\n').count();
+
+            long start = System.nanoTime();
+            Interpreter interpreter = new Interpreter(new Lexer(source).tokenize(), source);
+            long compiled = System.nanoTime();
+            measureOnceQuietly(interpreter::interpret);
+            long ran = System.nanoTime();
+
+            System.out.printf("%10d %14.1f %14.1f%n", lineCount, (compiled - start) / 1e6, (ran - compiled) / 1e6);
+        }
+    }
+
+    // k0 = 0 / while k0 < 3: / k0 = k0 + 1 / if k0 < 0: (lines...) / [next level] / print(k0)
+    private static String nestedLoops(int depth, int linesPerBlock) {
+        StringBuilder sb = new StringBuilder();
+        for (int level = 0; level < depth; level++) {
+            String pad = "    ".repeat(level);
+            String k = "k" + level;
+            sb.append(pad).append(k).append(" = 0\n");
+            sb.append(pad).append("while ").append(k).append(" < 3:\n");
+            sb.append(pad).append("    ").append(k).append(" = ").append(k).append(" + 1\n");
+            sb.append(pad).append("    if ").append(k).append(" < 0:\n");
+            for (int i = 0; i < linesPerBlock / depth; i++) {
+                sb.append(pad).append("        x = x + ").append(i).append("\n");
+            }
+        }
+        sb.append("    ".repeat(depth)).append("print(k0)\n");
+        return sb.toString();
+    }
+
+    // Runs the task once with output thrown away
+    private static void measureOnceQuietly(Runnable task) {
+        PrintStream realOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            task.run();
+        } finally {
+            System.setOut(realOut);
+        }
+    }
+
+    private static void compare(String name, String source) {
+        TokenBuffer tokens = new Lexer(source).tokenize();
+
+        Interpreter interpreter = new Interpreter(tokens, source);
+        double tree = measure(interpreter::interpret);
+
+        Bytecode bytecode = BytecodeCompiler.compile(tokens, source);
+        OutputSink vmOut = OutputSink.systemOut();
+        double vm = measure(() -> new VirtualMachine(bytecode, vmOut).run());
+
+        CompiledScript compiled = JvmCompiler.compileAndLoad(source);
+        OutputSink jvmOut = OutputSink.systemOut();
+        double jvm = measure(() -> compiled.run(jvmOut));
+
+        System.out.printf("%-28s %14.1f %14.1f %14.1f %7.2fx %7.2fx%n", name, tree, vm, jvm, vm / tree, jvm / tree);
+    }
+
+    // Runs the task repeatedly and returns runs per second
+    static double measure(Runnable task) {
+        PrintStream realOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long end = System.nanoTime() + WARMUP_NANOS;
+            while (System.nanoTime() < end) {
+                task.run();
+            }
+            long runs = 0;
+            long start = System.nanoTime();
+            long now;
+            do {
+                task.run();
+                runs++;
+                now = System.nanoTime();
+            } while (now - start < MEASURE_NANOS);
+            return runs * 1e9 / (now - start);
+        } finally {
+            System.setOut(realOut);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ BlockIndex: the block structure of the indented lines, computed in one pass.
+
+ For every line we store:
+ - blockEnd:   the first later line with indent <= this line's indent, i.e. where a block
+               opened by this line ends (lines.size() if it runs to the end)
+ - elseLine:   for an 'if' line, the 'else' that pairs with it (same indent, right after
+               the if-block), or -1
+ - loopHeader: the innermost 'while' line whose block contains this line, or -1;
+               the header control returns to when the loop body finishes
+
+ With this, nothing has to walk a block line by line to find where it ends.
+
+ An index can also follow edits to its lines (replace, for EditableProgram) without being
+ built again: the lines after an edit are only renumbered, and what is worked out again
+ is the edited lines, the blocks that were open where they start, and the lines inside a
+ loop whose block changed. An edit that leaves every indent and every header as it was
+ changes nothing at all.
+ */
+class BlockIndex {
+    // What a line is, as far as blocks go
+    private static final byte PLAIN = 0;
+    private static final byte IF = 1;    // "if ...:"
+    private static final byte WHILE = 2; // "while ...:"
+    private static final byte ELSE = 3;  // "else..." (with or without ':')
+
+    private int size;
+    private int[] indent;
+    private byte[] kind;
+    private int[] blockEnd;
+    private int[] elseLine;
+    private int[] loopHeader;
+
+    BlockIndex(List<Interpreter.Line> lines) {
+        int n = lines.size();
+        size = n;
+        indent = new int[n];
+        kind = new byte[n];
+        blockEnd = new int[n];
+        elseLine = new int[n];
+        loopHeader = new int[n];
+        for (int i = 0; i < n; i++) {
+            indent[i] = lines.get(i).indent;
+            kind[i] = kindOf(lines.get(i));
+        }
+
+        // Lines whose block is still open, indents strictly increasing from bottom to top.
+        // loopBelow[k] is the innermost while line among stack[0..k], or -1.
+        int[] stack = new int[n];
+        int[] loopBelow = new int[n];
+        int top = 0;
+
+        for (int i = 0; i < n; i++) {
+            // Every open line with indent >= ours has its block end here
+            while (top > 0 && indent[stack[top - 1]] >= indent[i]) {
+                blockEnd[stack[--top]] = i;
+            }
+            loopHeader[i] = (top > 0) ? loopBelow[top - 1] : -1;
+
+            stack[top] = i;
+            loopBelow[top] = kind[i] == WHILE ? i : loopHeader[i];
+            top++;
+        }
+        while (top > 0) {
+            blockEnd[stack[--top]] = n;
+        }
+
+        // An else pairs with the if when it is the first line after the if-block
+        // and sits at exactly the same indent
+        for (int i = 0; i < n; i++) {
+            pairElse(i);
+        }
+    }
+
+    // First line after the block opened by line i
+    int blockEnd(int i) {
+        return blockEnd[i];
+    }
+
+    // The else line paired with the if on line i, or -1
+    int elseLine(int i) {
+        return elseLine[i];
+    }
+
+    // The innermost while line whose body contains line i, or -1
+    int loopHeader(int i) {
+        return loopHeader[i];
+    }
+
+    /**
+     The removed lines starting at from were replaced by inserted others: lines is the
+     whole list as it is now, with the new ones at from. Every line index stored for a
+     line after the edit moves with it.
+     */
+    void replace(List<Interpreter.Line> lines, int from, int removed, int inserted) {
+        int oldEnd = from + removed;
+        int newEnd = from + inserted;
+        int shift = inserted - removed;
+        if (shift == 0 && sameBlocks(lines, from, newEnd)) {
+            return;
+        }
+        byte[] oldKind = Arrays.copyOfRange(kind, from, oldEnd);
+        int[] oldBlockEnd = Arrays.copyOfRange(blockEnd, from, oldEnd);
+
+        // The lines before the edit whose block was still open where it starts, innermost
+        // first, with where their block ended. The first one with indent 0 is the last.
+        int[] open = new int[8];
+        int[] openEnd = new int[8];
+        int openCount = 0;
+        for (int k = from - 1; k >= 0; k--) {
+            if (blockEnd[k] < from) {
+                continue;
+            }
+            if (openCount == open.length) {
+                open = Arrays.copyOf(open, openCount * 2);
+                openEnd = Arrays.copyOf(openEnd, openCount * 2);
+            }
+            open[openCount] = k;
+            openEnd[openCount] = blockEnd[k];
+            openCount++;
+            if (indent[k] == 0) {
+                break;
+            }
+        }
+
+        if (shift != 0) {
+            moveLinesAfter(from, oldEnd, shift);
+        }
+        for (int i = from; i < newEnd; i++) {
+            indent[i] = lines.get(i).indent;
+            kind[i] = kindOf(lines.get(i));
+        }
+        // Each new line's block, from the last one up, jumping over the blocks after it
+        for (int i = newEnd - 1; i >= from; i--) {
+            blockEnd[i] = nextAtOrBelow(i + 1, indent[i]);
+            pairElse(i);
+        }
+
+        // How far down loopHeader can have changed: to the end of every loop that is new,
+        // gone, or now ends somewhere else
+        int changedTo = newEnd;
+        for (int i = from; i < newEnd; i++) {
+            if (kind[i] == WHILE) {
+                changedTo = Math.max(changedTo, blockEnd[i]);
+            }
+        }
+        for (int i = 0; i < removed; i++) {
+            if (oldKind[i] == WHILE) {
+                changedTo = Math.max(changedTo, moved(oldBlockEnd[i], oldEnd, shift, newEnd));
+            }
+        }
+        for (int k = 0; k < openCount; k++) {
+            int line = open[k];
+            int end = firstAtOrBelow(from, newEnd, indent[line]);
+            if (end < 0) {
+                end = openEnd[k] >= oldEnd ? openEnd[k] + shift : nextAtOrBelow(newEnd, indent[line]);
+            }
+            int oldTo = moved(openEnd[k], oldEnd, shift, newEnd);
+            if (end != oldTo && kind[line] == WHILE) {
+                changedTo = Math.max(changedTo, Math.max(end, oldTo));
+            }
+            blockEnd[line] = end;
+            pairElse(line);
+        }
+
+        // loopHeader again from the edit down, starting from the lines still open there
+        int[] stack = new int[openCount + changedTo - from];
+        int[] loopBelow = new int[stack.length];
+        int top = 0;
+        for (int k = openCount - 1; k >= 0; k--) {
+            int line = open[k];
+            stack[top] = line;
+            loopBelow[top] = kind[line] == WHILE ? line : loopHeader[line];
+            top++;
+        }
+        for (int i = from; i < changedTo; i++) {
+            while (top > 0 && blockEnd[stack[top - 1]] <= i) {
+                top--;
+            }
+            loopHeader[i] = (top > 0) ? loopBelow[top - 1] : -1;
+            stack[top] = i;
+            loopBelow[top] = kind[i] == WHILE ? i : loopHeader[i];
+            top++;
+        }
+    }
+
+    // True if the new lines from up to to have the indents and headers the old ones had
+    private boolean sameBlocks(List<Interpreter.Line> lines, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (lines.get(i).indent != indent[i] || kindOf(lines.get(i)) != kind[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Make room for the new lines, and move every index that pointed past the old ones
+    private void moveLinesAfter(int from, int oldEnd, int shift) {
+        int oldSize = size;
+        size = oldSize + shift;
+        if (size > indent.length) {
+            int capacity = Math.max(size, indent.length * 2);
+            indent = Arrays.copyOf(indent, capacity);
+            kind = Arrays.copyOf(kind, capacity);
+            blockEnd = Arrays.copyOf(blockEnd, capacity);
+            elseLine = Arrays.copyOf(elseLine, capacity);
+            loopHeader = Arrays.copyOf(loopHeader, capacity);
+        }
+        int newEnd = oldEnd + shift;
+        System.arraycopy(indent, oldEnd, indent, newEnd, oldSize - oldEnd);
+        System.arraycopy(kind, oldEnd, kind, newEnd, oldSize - oldEnd);
+        System.arraycopy(blockEnd, oldEnd, blockEnd, newEnd, oldSize - oldEnd);
+        System.arraycopy(elseLine, oldEnd, elseLine, newEnd, oldSize - oldEnd);
+        System.arraycopy(loopHeader, oldEnd, loopHeader, newEnd, oldSize - oldEnd);
+        // Indexes into the replaced lines are worked out again by replace
+        for (int i = 0; i < size; i++) {
+            if (i >= from && i < newEnd) {
+                continue;
+            }
+            if (blockEnd[i] >= oldEnd) {
+                blockEnd[i] += shift;
+            }
+            if (elseLine[i] >= oldEnd) {
+                elseLine[i] += shift;
+            }
+            if (loopHeader[i] >= oldEnd) {
+                loopHeader[i] += shift;
+            }
+        }
+    }
+
+    // Where an old line index is now; one inside the replaced lines counts as their end
+    private static int moved(int line, int oldEnd, int shift, int newEnd) {
+        return line >= oldEnd ? line + shift : newEnd;
+    }
+
+    // The first line from line on with indent <= maxIndent (size if none), jumping over
+    // the blocks of deeper lines, whose blockEnd must be right already
+    private int nextAtOrBelow(int line, int maxIndent) {
+        while (line < size && indent[line] > maxIndent) {
+            line = blockEnd[line];
+        }
+        return line;
+    }
+
+    // The first line from up to to with indent <= maxIndent, or -1
+    private int firstAtOrBelow(int from, int to, int maxIndent) {
+        for (int i = from; i < to; i++) {
+            if (indent[i] <= maxIndent) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void pairElse(int i) {
+        int end = blockEnd[i];
+        elseLine[i] = kind[i] == IF && end < size && kind[end] == ELSE && indent[end] == indent[i] ? end : -1;
+    }
+
+    private static byte kindOf(Interpreter.Line line) {
+        if (isHeader(line, TokenType.IF)) {
+            return IF;
+        }
+        if (isHeader(line, TokenType.WHILE)) {
+            return WHILE;
+        }
+        return startsWith(line, TokenType.ELSE) ? ELSE : PLAIN;
+    }
+
+    // True for "if ...:" / "while ...:" lines (a header without ':' opens no block)
+    static boolean isHeader(Interpreter.Line line, TokenType keyword) {
+        if (!startsWith(line, keyword)) {
+            return false;
+        }
+        for (int k = 0; k < line.size(); k++) {
+            if (line.type(k) == TokenType.COLON) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean startsWith(Interpreter.Line line, TokenType type) {
+        return !line.isEmpty() && line.type(0) == type;
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ BufferedOutputSink: formats printed ints straight into a reusable byte buffer (no String
+ per print) and writes the buffer to a WritableByteChannel when it is full and on flush().
+ BigIntegers (see Numbers) are rare and go through their toString.
+
+ System.out.println per print takes the stream's lock and flushes on every call; output
+ heavy scripts spent most of their time there. Lines end with System.lineSeparator(), so
+ the bytes are the same as println's.
+ */
+final class BufferedOutputSink implements OutputSink {
+    static final int DEFAULT_CAPACITY = 8192;
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    // Longest line we format: "-2147483648" plus the separator
+    private static final int MAX_LINE = 11 + LINE_SEPARATOR.length;
+
+    private final WritableByteChannel channel;
+    private final byte[] bytes;
+    private final ByteBuffer buffer; // wraps bytes, for the channel
+    private int size = 0;
+
+    BufferedOutputSink(WritableByteChannel channel) {
+        this(channel, DEFAULT_CAPACITY);
+    }
+
+    BufferedOutputSink(WritableByteChannel channel, int capacity) {
+        this.channel = channel;
+        this.bytes = new byte[Math.max(capacity, MAX_LINE)];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     A sink that writes to the current System.out (looked up on every flush, so a
+     redirected System.out is respected).
+     */
+    static BufferedOutputSink toSystemOut() {
+        return new BufferedOutputSink(new SystemOutChannel());
+    }
+
+    @Override
+    public void print(int value) {
+        if (bytes.length - size < MAX_LINE) {
+            flush();
+        }
+        size = formatInt(value, bytes, size);
+        for (byte b : LINE_SEPARATOR) {
+            bytes[size++] = b;
+        }
+    }
+
+    @Override
+    public void print(BigInteger value) {
+        byte[] digits = value.toString().getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length - size < digits.length + LINE_SEPARATOR.length) {
+            flush();
+        }
+        if (bytes.length < digits.length + LINE_SEPARATOR.length) {
+            // Longer than the whole buffer: straight to the channel
+            write(ByteBuffer.wrap(digits));
+            write(ByteBuffer.wrap(LINE_SEPARATOR));
+            return;
+        }
+        System.arraycopy(digits, 0, bytes, size, digits.length);
+        size += digits.length;
+        for (byte b : LINE_SEPARATOR) {
+            bytes[size++] = b;
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (size == 0) {
+            return;
+        }
+        buffer.clear().limit(size);
+        try {
+            write(buffer);
+        } finally {
+            size = 0;
+        }
+    }
+
+    private void write(ByteBuffer source) {
+        try {
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Write the decimal digits of value at position, return the position after them
+    static int formatInt(int value, byte[] into, int position) {
+        if (value == Integer.MIN_VALUE) {
+            for (char c : "-2147483648".toCharArray()) {
+                into[position++] = (byte) c;
+            }
+            return position;
+        }
+        if (value < 0) {
+            into[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            into[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    // Writes into System.out as it is at the time of the write
+    private static final class SystemOutChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            System.out.write(source.array(), source.arrayOffset() + source.position(), length);
+            System.out.flush();
+            source.position(source.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ Bytecode: a compiled program for the VirtualMachine.
+
+ The code is a flat int[]: every instruction is an opcode followed by its operands
+ (constants, slot numbers, jump targets, indexes into strings, or the opcode of the
+ operator a superinstruction applies). Jump targets are absolute positions in code,
+ resolved by BytecodeCompiler.
+
+ statements maps the code back to the tree it came from: the instructions of each
+ assignment and print, and the test of each if and while. That is where the VM goes when a
+ value doesn't fit in an int (see Numbers).
+ */
+final class Bytecode {
+    // Stack and variable instructions
+    static final int PUSH_CONST = 0;   // operand: value         => push value
+    static final int LOAD_SLOT = 1;    // operand: slot          => push variable
+    static final int STORE_SLOT = 2;   // operand: slot          => pop into variable
+    static final int PARSE_INT = 3;    // operand: string index  => push Numbers.parse(text)
+
+    // Arithmetic and comparisons: pop right, pop left, push result
+    static final int ADD = 4;
+    static final int SUB = 5;
+    static final int MUL = 6;
+    static final int DIV = 7;
+    static final int MOD = 8;
+    static final int CMP_EQ = 9;
+    static final int CMP_NE = 10;
+    static final int CMP_GT = 11;
+    static final int CMP_GE = 12;
+    static final int CMP_LT = 13;
+    static final int CMP_LE = 14;
+
+    // Control flow
+    static final int JUMP = 15;         // operand: target
+    static final int JUMP_IF_ZERO = 16; // operand: target        => pop, jump if 0
+
+    // Everything else
+    static final int PRINT = 17;        //                        => pop and print
+    static final int FAIL = 18;         // operand: string index  => throw RuntimeException(text)
+    static final int HALT = 19;
+
+    // Only in code compiled for slices (BytecodeCompiler.compileForSlices): both use one
+    // unit of fuel, and the VM may stop right after them
+    static final int LOOP = 20;         // operand: target        => JUMP back to a while's condition
+    static final int TICK = 21;         //                        => a statement ended
+
+    // Superinstructions: the statements and loop headers hot loops are made of, as one
+    // instruction each instead of three or four, and without touching the stack
+    static final int INC_SLOT = 22;               // slot, delta              => slot += delta
+    static final int MOVE_SLOT = 23;              // target, source           => target = source
+    static final int SLOT_OP_CONST = 24;          // target, source, op, value => target = source op value
+    static final int JUMP_UNLESS_SLOT_CONST = 25; // slot, cmp, value, target => jump unless slot cmp value
+    static final int JUMP_UNLESS_SLOT_SLOT = 26;  // slot, cmp, other, target => jump unless slot cmp other
+    static final int SLOT_OP_SLOT = 27;           // target, left, op, right  => target = left op right
+
+    private static final String[] NAMES = {
+            "PUSH_CONST", "LOAD_SLOT", "STORE_SLOT", "PARSE_INT",
+            "ADD", "SUB", "MUL", "DIV", "MOD",
+            "CMP_EQ", "CMP_NE", "CMP_GT", "CMP_GE", "CMP_LT", "CMP_LE",
+            "JUMP", "JUMP_IF_ZERO", "PRINT", "FAIL", "HALT",
+            "LOOP", "TICK",
+            "INC_SLOT", "MOVE_SLOT", "SLOT_OP_CONST", "JUMP_UNLESS_SLOT_CONST", "JUMP_UNLESS_SLOT_SLOT",
+            "SLOT_OP_SLOT"
+    };
+
+    final int[] code;
+    final String[] strings;   // error messages and unparsable number texts
+    final String[] slotNames; // variable name of each slot, for debugging
+    final int maxStack;
+    final Statement[] statements; // by start, which never overlap
+
+    Bytecode(int[] code, String[] strings, String[] slotNames, int maxStack, Statement[] statements) {
+        this.code = code;
+        this.strings = strings;
+        this.slotNames = slotNames;
+        this.maxStack = maxStack;
+        this.statements = statements;
+    }
+
+    /**
+     The code of one statement: an assignment or print, from its first instruction to
+     just before its TICK, or the test of an if or while, up to and including its jump
+     (so code[end - 1] is where it jumps when the test is false). A while whose test is a
+     single JUMP_UNLESS_SLOT_* has a second one at the bottom of its body, with the opposite
+     comparison, which jumps back into the body while the loop goes on (jumpsWhenTrue).
+     */
+    static final class Statement {
+        final int start;
+        final int end;
+        final StatementNode node;
+        final boolean jumpsWhenTrue;
+
+        Statement(int start, int end, StatementNode node, boolean jumpsWhenTrue) {
+            this.start = start;
+            this.end = end;
+            this.node = node;
+            this.jumpsWhenTrue = jumpsWhenTrue;
+        }
+
+        Statement(int start, int end, StatementNode node) {
+            this(start, end, node, false);
+        }
+    }
+
+    /**
+     The statement whose code pc is in.
+     */
+    Statement statementAt(int pc) {
+        int low = 0;
+        int high = statements.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Statement statement = statements[mid];
+            if (pc < statement.start) {
+                high = mid - 1;
+            } else if (pc >= statement.end) {
+                low = mid + 1;
+            } else {
+                return statement;
+            }
+        }
+        throw new IllegalStateException("No statement at " + pc);
+    }
+
+    // How many operands follow the opcode
+    static int operandCount(int opcode) {
+        switch (opcode) {
+            case PUSH_CONST: case LOAD_SLOT: case STORE_SLOT: case PARSE_INT:
+            case JUMP: case JUMP_IF_ZERO: case FAIL: case LOOP:
+                return 1;
+            case INC_SLOT: case MOVE_SLOT:
+                return 2;
+            case SLOT_OP_CONST: case JUMP_UNLESS_SLOT_CONST: case JUMP_UNLESS_SLOT_SLOT:
+            case SLOT_OP_SLOT:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     Human readable listing, one instruction per line, e.g. "0004: LOAD_SLOT 1 (i)" or
+     "0012: JUMP_UNLESS_SLOT_CONST 1 (i) CMP_LE 10 40".
+     */
+    String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc];
+            sb.append(String.format("%04d: %s", pc, NAMES[opcode]));
+            int operands = operandCount(opcode);
+            for (int k = 1; k <= operands; k++) {
+                appendOperand(sb, opcode, k, code[pc + k]);
+            }
+            pc += 1 + operands;
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Operand k (1-based) of opcode, with the variable name, text or operator it stands for
+    private void appendOperand(StringBuilder sb, int opcode, int k, int operand) {
+        sb.append(' ');
+        boolean isOperator = ((opcode == SLOT_OP_CONST || opcode == SLOT_OP_SLOT) && k == 3)
+                || ((opcode == JUMP_UNLESS_SLOT_CONST || opcode == JUMP_UNLESS_SLOT_SLOT) && k == 2);
+        if (isOperator) {
+            sb.append(NAMES[operand]);
+            return;
+        }
+        sb.append(operand);
+        boolean isSlot = opcode == LOAD_SLOT || opcode == STORE_SLOT
+                || (opcode == INC_SLOT && k == 1)
+                || opcode == MOVE_SLOT
+                || (opcode == SLOT_OP_CONST && k <= 2)
+                || (opcode == SLOT_OP_SLOT && k != 3)
+                || ((opcode == JUMP_UNLESS_SLOT_CONST || opcode == JUMP_UNLESS_SLOT_SLOT) && k == 1)
+                || (opcode == JUMP_UNLESS_SLOT_SLOT && k == 3);
+        if (isSlot) {
+            sb.append(" (").append(slotNames[operand]).append(')');
+        } else if (opcode == PARSE_INT || opcode == FAIL) {
+            sb.append(" (").append(strings[operand]).append(')');
+        }
+    }
+}
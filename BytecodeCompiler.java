@@ -0,0 +1,360 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ BytecodeCompiler: lowers a program to Bytecode for the VirtualMachine.
+
+ It uses the same front end as the tree interpreter (Lexer -> indented lines -> Parser ->
+ Optimizer) and then walks the statement tree once. Variables keep the slots the Parser gave them,
+ and if/else/while become jumps whose targets are patched in here,
+ so the VM never has to look for the end of a block at run time.
+ */
+class BytecodeCompiler {
+    private int[] code = new int[64];
+    private int size = 0;
+    private final List<String> strings = new ArrayList<>();
+    private final List<Bytecode.Statement> statements = new ArrayList<>();
+    private int stackDepth = 0;
+    private int maxStack = 0;
+
+    // Compiling for VirtualMachine.runFor: TICK after statements, LOOP for back-edges
+    private final boolean sliced;
+
+    // Fuse statements and loop tests into superinstructions (see EngineOptions)
+    private final boolean superinstructions;
+
+    private BytecodeCompiler(boolean sliced, EngineOptions options) {
+        this.sliced = sliced;
+        this.superinstructions = options.superinstructions;
+    }
+
+    /**
+     Compile source that has already been tokenized.
+     */
+    static Bytecode compile(TokenBuffer tokens, String source) {
+        return compile(tokens, source, false, EngineOptions.DEFAULT);
+    }
+
+    /**
+     Same, with other optimizations than the system properties give (see EngineOptions).
+     */
+    static Bytecode compile(TokenBuffer tokens, String source, EngineOptions options) {
+        return compile(tokens, source, false, options);
+    }
+
+    /**
+     Like compile, but with the fuel instructions VirtualMachine.runFor needs to stop a
+     program part way: a TICK after every assignment and print, and a LOOP (instead of a
+     JUMP) back to every while's condition.
+     */
+    static Bytecode compileForSlices(TokenBuffer tokens, String source) {
+        return compile(tokens, source, true, EngineOptions.DEFAULT);
+    }
+
+    private static Bytecode compile(TokenBuffer tokens, String source, boolean sliced, EngineOptions options) {
+        List<Interpreter.Line> lines = Interpreter.splitIntoIndentedLines(tokens, source);
+        Parser parser = new Parser(lines);
+        StatementNode.Block program = Optimizer.optimize(parser.parseProgram(), parser.symbols().size());
+        return compile(program, parser.symbols(), sliced, options);
+    }
+
+    /**
+     Compile an already parsed program and the symbol table it was parsed with.
+     */
+    static Bytecode compile(StatementNode.Block program, SymbolTable symbols) {
+        return compile(program, symbols, false, EngineOptions.DEFAULT);
+    }
+
+    private static Bytecode compile(StatementNode.Block program, SymbolTable symbols, boolean sliced, EngineOptions options) {
+        BytecodeCompiler compiler = new BytecodeCompiler(sliced, options);
+        compiler.statement(program);
+        compiler.emit(Bytecode.HALT);
+        return new Bytecode(
+                Arrays.copyOf(compiler.code, compiler.size),
+                compiler.strings.toArray(new String[0]),
+                symbols.names(),
+                compiler.maxStack,
+                compiler.statements.toArray(new Bytecode.Statement[0]));
+    }
+
+    // ---------------------------------
+    // Statements
+    // ---------------------------------
+
+    private void statement(StatementNode node) {
+        if (node instanceof StatementNode.Block) {
+            for (StatementNode child : ((StatementNode.Block) node).statements) {
+                statement(child);
+            }
+        } else if (node instanceof StatementNode.Assign) {
+            StatementNode.Assign assign = (StatementNode.Assign) node;
+            int start = size;
+            if (!superinstructions || !fusedAssign(assign)) {
+                expression(assign.value);
+                emit(Bytecode.STORE_SLOT, assign.slot, -1);
+            }
+            statements.add(new Bytecode.Statement(start, size, node));
+            tick();
+        } else if (node instanceof StatementNode.Print) {
+            int start = size;
+            expression(((StatementNode.Print) node).value);
+            emit(Bytecode.PRINT, -1);
+            statements.add(new Bytecode.Statement(start, size, node));
+            tick();
+        } else if (node instanceof StatementNode.If) {
+            ifStatement((StatementNode.If) node);
+        } else if (node instanceof StatementNode.While) {
+            whileStatement((StatementNode.While) node);
+        } else {
+            throw new IllegalStateException("Unknown statement node: " + node);
+        }
+    }
+
+    /**
+     cond; JUMP_IF_ZERO else; then...; JUMP end; else: else...; end:
+     */
+    private void ifStatement(StatementNode.If node) {
+        int jumpToElse = jumpUnless(node.condition, node);
+        statement(node.thenBlock);
+        if (node.elseBlock == null) {
+            patch(jumpToElse, size);
+            return;
+        }
+        int jumpToEnd = emitJump(Bytecode.JUMP);
+        patch(jumpToElse, size);
+        statement(node.elseBlock);
+        patch(jumpToEnd, size);
+    }
+
+    /**
+     top: cond; JUMP_IF_ZERO end; body...; JUMP top; end:
+
+     A test that is one JUMP_UNLESS_SLOT_* goes at the bottom as well, the other way round,
+     so an iteration takes one dispatch for it instead of two (the test and the JUMP):
+     JUMP_UNLESS_SLOT_* end; body: body...; JUMP_UNLESS_SLOT_* (opposite) body; end:
+     Code for slices keeps its LOOP back to the top, which is where it uses fuel.
+     */
+    private void whileStatement(StatementNode.While node) {
+        int top = size;
+        int jumpToEnd = jumpUnless(node.condition, node);
+        int body = size;
+        statement(node.body);
+        if (!sliced && isSlotTest(node.condition)) {
+            ExpressionNode.Binary comparison = (ExpressionNode.Binary) node.condition;
+            int start = size;
+            patch(slotTest(comparison, opposite(opcodeOf(comparison.op))), body);
+            statements.add(new Bytecode.Statement(start, size, node, true));
+        } else {
+            emit(sliced ? Bytecode.LOOP : Bytecode.JUMP, top, 0);
+        }
+        patch(jumpToEnd, size);
+    }
+
+    // ---------------------------------
+    // Superinstructions
+    // ---------------------------------
+
+    /**
+     x = y => MOVE_SLOT; i = i + 1 or i = i - 1 => INC_SLOT; x = y op 5 => SLOT_OP_CONST;
+     x = y op z => SLOT_OP_SLOT. Returns false (and emits nothing) for any other assignment.
+     */
+    private boolean fusedAssign(StatementNode.Assign assign) {
+        ExpressionNode value = assign.value;
+        if (value instanceof ExpressionNode.Read) {
+            emitOperands(Bytecode.MOVE_SLOT, assign.slot, ((ExpressionNode.Read) value).slot);
+            return true;
+        }
+        if (isSlotOp(value, ExpressionNode.Read.class) && !Parser.isComparison(((ExpressionNode.Binary) value).op)) {
+            ExpressionNode.Binary binary = (ExpressionNode.Binary) value;
+            emitOperands(Bytecode.SLOT_OP_SLOT, assign.slot, ((ExpressionNode.Read) binary.left).slot,
+                    opcodeOf(binary.op), ((ExpressionNode.Read) binary.right).slot);
+            return true;
+        }
+        if (!isSlotOp(value, ExpressionNode.Constant.class) || Parser.isComparison(((ExpressionNode.Binary) value).op)) {
+            return false;
+        }
+        ExpressionNode.Binary binary = (ExpressionNode.Binary) value;
+        int source = ((ExpressionNode.Read) binary.left).slot;
+        int constant = ((ExpressionNode.Constant) binary.right).value;
+        // (i - -2147483648 is not i + -2147483648: only one of them fits in an int)
+        if (source == assign.slot && (binary.op == TokenType.PLUS || (binary.op == TokenType.MINUS && constant != Integer.MIN_VALUE))) {
+            emitOperands(Bytecode.INC_SLOT, assign.slot, binary.op == TokenType.PLUS ? constant : -constant);
+        } else {
+            emitOperands(Bytecode.SLOT_OP_CONST, assign.slot, source, opcodeOf(binary.op), constant);
+        }
+        return true;
+    }
+
+    /**
+     The test of an if or while (statement): jump (to a target patched in later) when
+     condition is false. "x cmp 5" and "x cmp y" are one JUMP_UNLESS_SLOT_* instruction.
+     Returns where the target goes.
+     */
+    private int jumpUnless(ExpressionNode condition, StatementNode statement) {
+        int start = size;
+        int target = jumpTest(condition);
+        statements.add(new Bytecode.Statement(start, size, statement));
+        return target;
+    }
+
+    private int jumpTest(ExpressionNode condition) {
+        if (isSlotTest(condition)) {
+            ExpressionNode.Binary comparison = (ExpressionNode.Binary) condition;
+            return slotTest(comparison, opcodeOf(comparison.op));
+        }
+        expression(condition);
+        return emitJump(Bytecode.JUMP_IF_ZERO);
+    }
+
+    // "x cmp 5" or "x cmp y"
+    private boolean isSlotTest(ExpressionNode condition) {
+        return superinstructions && condition instanceof ExpressionNode.Binary
+                && Parser.isComparison(((ExpressionNode.Binary) condition).op)
+                && (isSlotOp(condition, ExpressionNode.Constant.class) || isSlotOp(condition, ExpressionNode.Read.class));
+    }
+
+    // The JUMP_UNLESS_SLOT_* of a slot test, comparing with cmp; returns where the target goes
+    private int slotTest(ExpressionNode.Binary comparison, int cmp) {
+        int slot = ((ExpressionNode.Read) comparison.left).slot;
+        if (comparison.right instanceof ExpressionNode.Constant) {
+            emitOperands(Bytecode.JUMP_UNLESS_SLOT_CONST, slot, cmp, ((ExpressionNode.Constant) comparison.right).value, -1);
+        } else {
+            emitOperands(Bytecode.JUMP_UNLESS_SLOT_SLOT, slot, cmp, ((ExpressionNode.Read) comparison.right).slot, -1);
+        }
+        return size - 1;
+    }
+
+    // The comparison that is true exactly when cmp is false
+    private static int opposite(int cmp) {
+        switch (cmp) {
+            case Bytecode.CMP_EQ: return Bytecode.CMP_NE;
+            case Bytecode.CMP_NE: return Bytecode.CMP_EQ;
+            case Bytecode.CMP_GT: return Bytecode.CMP_LE;
+            case Bytecode.CMP_GE: return Bytecode.CMP_LT;
+            case Bytecode.CMP_LT: return Bytecode.CMP_GE;
+            case Bytecode.CMP_LE: return Bytecode.CMP_GT;
+            default:
+                throw new IllegalArgumentException("Not a comparison: " + cmp);
+        }
+    }
+
+    // "variable op right", with right of the given kind
+    private static boolean isSlotOp(ExpressionNode node, Class<? extends ExpressionNode> right) {
+        return node instanceof ExpressionNode.Binary
+                && ((ExpressionNode.Binary) node).left instanceof ExpressionNode.Read
+                && right.isInstance(((ExpressionNode.Binary) node).right);
+    }
+
+    // ---------------------------------
+    // Expressions
+    // ---------------------------------
+
+    private void expression(ExpressionNode node) {
+        if (node instanceof ExpressionNode.Constant) {
+            emit(Bytecode.PUSH_CONST, ((ExpressionNode.Constant) node).value, 1);
+        } else if (node instanceof ExpressionNode.Literal) {
+            literal((ExpressionNode.Literal) node);
+        } else if (node instanceof ExpressionNode.Read) {
+            emit(Bytecode.LOAD_SLOT, ((ExpressionNode.Read) node).slot, 1);
+        } else if (node instanceof ExpressionNode.Fail) {
+            // Never pushes anything, but keep the stack count as if it did
+            emit(Bytecode.FAIL, stringOf(((ExpressionNode.Fail) node).message), 1);
+        } else if (node instanceof ExpressionNode.Binary) {
+            ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+            expression(binary.left);
+            expression(binary.right);
+            emit(opcodeOf(binary.op), -1);
+        } else {
+            throw new IllegalStateException("Unknown expression node: " + node);
+        }
+    }
+
+    // Numbers are parsed now; one that doesn't fit in an int is dealt with when it's reached
+    private void literal(ExpressionNode.Literal node) {
+        try {
+            emit(Bytecode.PUSH_CONST, Integer.parseInt(node.text), 1);
+        } catch (NumberFormatException e) {
+            emit(Bytecode.PARSE_INT, stringOf(node.text), 1);
+        }
+    }
+
+    private static int opcodeOf(TokenType op) {
+        switch (op) {
+            case PLUS:  return Bytecode.ADD;
+            case MINUS: return Bytecode.SUB;
+            case STAR:  return Bytecode.MUL;
+            case SLASH: return Bytecode.DIV;
+            case MOD:   return Bytecode.MOD;
+            case EQEQ:  return Bytecode.CMP_EQ;
+            case NEQ:   return Bytecode.CMP_NE;
+            case GT:    return Bytecode.CMP_GT;
+            case GTE:   return Bytecode.CMP_GE;
+            case LT:    return Bytecode.CMP_LT;
+            case LTE:   return Bytecode.CMP_LE;
+            default:
+                throw new IllegalArgumentException("Not an operator: " + op);
+        }
+    }
+
+    // ---------------------------------
+    // Helpers
+    // ---------------------------------
+
+    private int stringOf(String text) {
+        strings.add(text);
+        return strings.size() - 1;
+    }
+
+    // Emit an instruction without operand; stackEffect is how much it changes the stack
+    private void emit(int opcode, int stackEffect) {
+        append(opcode);
+        track(stackEffect);
+    }
+
+    private void emit(int opcode) {
+        append(opcode);
+    }
+
+    private void emit(int opcode, int operand, int stackEffect) {
+        append(opcode);
+        append(operand);
+        track(stackEffect);
+    }
+
+    // Emit an instruction that doesn't use the stack, with all its operands
+    private void emitOperands(int opcode, int... operands) {
+        append(opcode);
+        for (int operand : operands) {
+            append(operand);
+        }
+    }
+
+    // Emit a jump with a placeholder target and return where the target goes
+    private int emitJump(int opcode) {
+        emit(opcode, -1, opcode == Bytecode.JUMP_IF_ZERO ? -1 : 0);
+        return size - 1;
+    }
+
+    private void tick() {
+        if (sliced) {
+            emit(Bytecode.TICK);
+        }
+    }
+
+    private void patch(int operandIndex, int target) {
+        code[operandIndex] = target;
+    }
+
+    private void append(int value) {
+        if (size == code.length) {
+            code = Arrays.copyOf(code, size * 2);
+        }
+        code[size++] = value;
+    }
+
+    private void track(int stackEffect) {
+        stackDepth += stackEffect;
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ Checkpoint: where a tree interpreter run is, at a statement boundary, as a compact binary
+ image, so a long run can be picked up again later, in another JVM (see Checkpointer for
+ taking them while a program runs, and CompiledProgram.resume).
+
+ At a statement boundary a run is the statement it is about to run plus its variables:
+ the ifs and whiles it is in are the ones around that statement in the tree (every while
+ in the middle of an iteration, every if in the branch that holds it), and
+ StatementNode.resume goes on from there exactly as the run would have. Statements are
+ numbered as StatementNode.inOrder numbers them, so an image only fits the program it was
+ taken from; it carries that program's hash (CompiledProgram.hash), and the if/while
+ stack, which is checked against the tree again on restore.
+
+ Layout, all ints big-endian like ProgramFile:
+
+   int      magic "P2JS"
+   int      FORMAT_VERSION
+   byte[32] SHA-256 of the program (CompiledProgram.hash)
+   int      statement about to run (index in StatementNode.inOrder)
+   int      its source line
+   int      depth, then the index of every if/while around it, outermost first
+   int      slot count, then the int value of every slot
+   int      BigInteger count, then per value: int slot, int byte length, BigInteger.toByteArray
+   int      CRC32 of everything before it
+
+ The output printed before the checkpoint is not in it: it was flushed when the checkpoint
+ was taken, and a resumed run prints only what comes after. Anything that isn't a whole,
+ good image for the program is rejected with an IllegalStateException.
+ */
+public final class Checkpoint {
+    static final int MAGIC = 0x50324A53; // "P2JS"
+    static final int FORMAT_VERSION = 1;
+
+    private final byte[] programHash;
+    private final int statement;
+    private final int line;
+    private final int[] stack;
+    private final int[] slots;
+    private final BigInteger[] bigValues; // by slot, null where the int in slots is the value; null if none
+
+    Checkpoint(byte[] programHash, int statement, int line, int[] stack, int[] slots, BigInteger[] bigValues) {
+        this.programHash = programHash;
+        this.statement = statement;
+        this.line = line;
+        this.stack = stack;
+        this.slots = slots;
+        this.bigValues = bigValues;
+    }
+
+    /**
+     The source line of the statement the run goes on with.
+     */
+    public int line() {
+        return line;
+    }
+
+    int statement() {
+        return statement;
+    }
+
+    // ---------------------------------
+    // Restoring
+    // ---------------------------------
+
+    /**
+     Put the variables into context (fresh, from program.newContext) and return the
+     statement the run goes on with, after checking that this checkpoint was taken from
+     program.
+     */
+    StatementNode restore(CompiledProgram program, ExecutionContext context) {
+        if (!Arrays.equals(programHash, program.hash())) {
+            throw mismatch("taken from a different program");
+        }
+        List<StatementNode> statements = program.statements();
+        if (statement < 0 || statement >= statements.size() || slots.length != program.slotCount()) {
+            throw mismatch("statement or variables out of range");
+        }
+        StatementNode from = statements.get(statement);
+        int depth = stack.length;
+        for (Node node = from.parent(); node != null; node = node.parent()) {
+            if (node instanceof StatementNode.If || node instanceof StatementNode.While) {
+                if (depth == 0 || statements.get(stack[--depth]) != node) {
+                    throw mismatch("if/while stack doesn't match the program");
+                }
+            }
+        }
+        if (depth != 0) {
+            throw mismatch("if/while stack doesn't match the program");
+        }
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (bigValues != null && bigValues[slot] != null) {
+                context.writeBig(slot, bigValues[slot]);
+            } else {
+                context.write(slot, slots[slot]);
+            }
+        }
+        return from;
+    }
+
+    private static IllegalStateException mismatch(String reason) {
+        return new IllegalStateException("Checkpoint doesn't fit the program: " + reason);
+    }
+
+    // ---------------------------------
+    // Writing
+    // ---------------------------------
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 4 * (stack.length + slots.length));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.write(programHash);
+            out.writeInt(statement);
+            out.writeInt(line);
+            out.writeInt(stack.length);
+            for (int index : stack) {
+                out.writeInt(index);
+            }
+            out.writeInt(slots.length);
+            for (int value : slots) {
+                out.writeInt(value);
+            }
+            int bigCount = 0;
+            if (bigValues != null) {
+                for (BigInteger value : bigValues) {
+                    if (value != null) {
+                        bigCount++;
+                    }
+                }
+            }
+            out.writeInt(bigCount);
+            for (int slot = 0; bigCount > 0 && slot < bigValues.length; slot++) {
+                if (bigValues[slot] != null) {
+                    byte[] magnitude = bigValues[slot].toByteArray();
+                    out.writeInt(slot);
+                    out.writeInt(magnitude.length);
+                    out.write(magnitude);
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     Write the image to file, through a temp file moved into place, so the file is always
+     a whole checkpoint: the new one or the one before.
+     */
+    public void write(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, toBytes());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // ---------------------------------
+    // Reading
+    // ---------------------------------
+
+    public static Checkpoint read(Path file) throws IOException {
+        return read(ByteBuffer.wrap(Files.readAllBytes(file)));
+    }
+
+    /**
+     Decode an image from buffer (from its position to its limit).
+     */
+    static Checkpoint read(ByteBuffer buffer) {
+        try {
+            ByteBuffer in = buffer.slice();
+            int end = in.limit() - 4;
+            if (end < 8) {
+                throw corrupt("too short");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(in.duplicate().limit(end));
+            if ((int) crc.getValue() != in.getInt(end)) {
+                throw corrupt("checksum mismatch");
+            }
+            in.limit(end);
+
+            if (in.getInt() != MAGIC) {
+                throw corrupt("not a checkpoint");
+            }
+            int version = in.getInt();
+            if (version != FORMAT_VERSION) {
+                throw corrupt("format version " + version + ", expected " + FORMAT_VERSION);
+            }
+            byte[] programHash = new byte[32];
+            in.get(programHash);
+            int statement = in.getInt();
+            int line = in.getInt();
+            int[] stack = new int[checkedCount(in.getInt(), in.remaining() / 4)];
+            for (int k = 0; k < stack.length; k++) {
+                stack[k] = in.getInt();
+            }
+            int[] slots = new int[checkedCount(in.getInt(), in.remaining() / 4)];
+            for (int slot = 0; slot < slots.length; slot++) {
+                slots[slot] = in.getInt();
+            }
+            int bigCount = checkedCount(in.getInt(), in.remaining() / 8);
+            BigInteger[] bigValues = bigCount == 0 ? null : new BigInteger[slots.length];
+            for (int k = 0; k < bigCount; k++) {
+                int slot = in.getInt();
+                byte[] magnitude = new byte[checkedCount(in.getInt(), in.remaining())];
+                in.get(magnitude);
+                bigValues[slot] = new BigInteger(magnitude);
+            }
+            if (in.hasRemaining()) {
+                throw corrupt("trailing bytes");
+            }
+            return new Checkpoint(programHash, statement, line, stack, slots, bigValues);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NumberFormatException e) {
+            throw corrupt("truncated or malformed (" + e + ")");
+        }
+    }
+
+    private static int checkedCount(int count, int limit) {
+        if (count < 0 || count > limit) {
+            throw corrupt("bad count " + count);
+        }
+        return count;
+    }
+
+    private static IllegalStateException corrupt(String reason) {
+        return new IllegalStateException("Corrupt checkpoint: " + reason);
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ Checkpointer: takes a Checkpoint of a tree interpreter run every intervalNanos while it
+ runs, and hands each one to a sink. toFile keeps the latest one in a file:
+
+     try (Checkpointer checkpoints = Checkpointer.toFile(program, file, 30_000_000_000L)) {
+         program.run(out, checkpoints);
+     }
+
+ and after a crash, in a new JVM, CompiledProgram.resume(Checkpoint.read(file), out,
+ checkpoints) goes on from there.
+
+ Checkpoints are only taken at loop back-edges: every while tells the Checkpointer at the
+ end of each iteration, which costs a decrement, and the clock is only read every checkEvery
+ of them. A checkpoint there is the loop about to test its condition again. Code outside
+ loops runs once per line of the script, so it never holds a run up for long. Taking one
+ flushes the output printed so far (so a resumed run neither loses nor repeats any) and
+ copies the variables, and that is all the run waits for: toFile encodes and writes on a
+ thread of its own, and when it falls behind it skips to the newest checkpoint. request()
+ asks for one at the next check from any thread, without waiting for the interval.
+
+ Loops are still traced (TracingJit), and stay traced: a trace recorded in such a run
+ exits at its back-edge every TracingJit.pollIterations iterations, with its variables
+ stored, and the checkpoint (if one is due) is taken right there before the trace goes on.
+ See Benchmark.measureCheckpoints for what all this costs. One Checkpointer per run, for
+ the program it was made for.
+ */
+public final class Checkpointer implements AutoCloseable {
+    static final int DEFAULT_CHECK_EVERY = 1024;
+
+    private final CompiledProgram program;
+    private final byte[] programHash;
+    private final long intervalNanos;
+    private final int checkEvery;
+    private final Consumer<Checkpoint> sink;
+
+    // Index of every statement in StatementNode.inOrder
+    private final Map<StatementNode, Integer> indexes = new IdentityHashMap<>();
+
+    private int countdown;
+    private long next; // System.nanoTime when the next one is due
+    private volatile boolean requested;
+
+    // How many were taken and how long the run waited for them
+    private int taken = 0;
+    private long pauseNanos = 0;
+    private long maxPauseNanos = 0;
+
+    public Checkpointer(CompiledProgram program, long intervalNanos, Consumer<Checkpoint> sink) {
+        this(program, intervalNanos, DEFAULT_CHECK_EVERY, sink);
+    }
+
+    Checkpointer(CompiledProgram program, long intervalNanos, int checkEvery, Consumer<Checkpoint> sink) {
+        if (intervalNanos < 0 || checkEvery < 1) {
+            throw new IllegalArgumentException("intervalNanos must not be negative, checkEvery must be positive");
+        }
+        this.program = program;
+        this.programHash = program.hash();
+        this.intervalNanos = intervalNanos;
+        this.checkEvery = checkEvery;
+        this.sink = sink;
+        List<StatementNode> statements = program.statements();
+        for (int i = 0; i < statements.size(); i++) {
+            indexes.put(statements.get(i), i);
+        }
+    }
+
+    /**
+     A Checkpointer that keeps the latest checkpoint in file, written on a thread of its
+     own; close() waits for the last one to be written. The file stays when the run is over:
+     delete it once the run has ended well, or resuming from it runs the end again.
+     */
+    public static Checkpointer toFile(CompiledProgram program, Path file, long intervalNanos) {
+        return new Checkpointer(program, intervalNanos, new FileWriter(file));
+    }
+
+    /**
+     Take a checkpoint at the next check (within checkEvery back-edges, or at the next poll
+     of a trace), even if the interval isn't over. Any thread can call this.
+     */
+    public void request() {
+        requested = true;
+    }
+
+    /**
+     Wait until the sink is done with every checkpoint (a toFile one: until the last one is
+     in the file). Throws the first write error, if there was one.
+     */
+    @Override
+    public void close() {
+        if (sink instanceof FileWriter) {
+            ((FileWriter) sink).close();
+        }
+    }
+
+    int taken() {
+        return taken;
+    }
+
+    long pauseNanos() {
+        return pauseNanos;
+    }
+
+    long maxPauseNanos() {
+        return maxPauseNanos;
+    }
+
+    // ---------------------------------
+    // Called by CompiledProgram and the nodes
+    // ---------------------------------
+
+    CompiledProgram program() {
+        return program;
+    }
+
+    void start() {
+        countdown = checkEvery;
+        next = System.nanoTime() + intervalNanos;
+    }
+
+    /**
+     The interpreter is done with an iteration of loop and about to test its condition.
+     */
+    void atBackEdge(StatementNode.While loop, ExecutionContext context) {
+        if (--countdown > 0) {
+            return;
+        }
+        countdown = checkEvery;
+        atPoll(loop, context);
+    }
+
+    /**
+     Same, from the POLL exit of loop's trace (see TracingJit.LoopTrace), which comes
+     seldom enough to read the clock every time.
+     */
+    void atPoll(StatementNode.While loop, ExecutionContext context) {
+        if (System.nanoTime() - next < 0 && !requested) {
+            return;
+        }
+        requested = false;
+        take(loop, context);
+        next = System.nanoTime() + intervalNanos;
+    }
+
+    private void take(StatementNode statement, ExecutionContext context) {
+        long start = System.nanoTime();
+        context.out.flush();
+        Checkpoint checkpoint = new Checkpoint(programHash, indexes.get(statement), statement.line,
+                stack(statement), context.slots.clone(), context.bigValues());
+        long pause = System.nanoTime() - start;
+        taken++;
+        pauseNanos += pause;
+        maxPauseNanos = Math.max(maxPauseNanos, pause);
+        sink.accept(checkpoint);
+    }
+
+    // The ifs and whiles around statement, outermost first, by index
+    private int[] stack(StatementNode statement) {
+        int depth = 0;
+        for (Node node = statement.parent(); node != null; node = node.parent()) {
+            if (node instanceof StatementNode.If || node instanceof StatementNode.While) {
+                depth++;
+            }
+        }
+        int[] stack = new int[depth];
+        for (Node node = statement.parent(); node != null; node = node.parent()) {
+            if (node instanceof StatementNode.If || node instanceof StatementNode.While) {
+                stack[--depth] = indexes.get(node);
+            }
+        }
+        return stack;
+    }
+
+    // ---------------------------------
+    // toFile
+    // ---------------------------------
+
+    /**
+     Writes the newest checkpoint handed to it on its own thread; one that comes in while
+     another is being written replaces any that is still waiting.
+     */
+    private static final class FileWriter implements Consumer<Checkpoint> {
+        private final Path file;
+        private final AtomicReference<Checkpoint> pending = new AtomicReference<>();
+        private final Thread writer;
+        private volatile boolean running = true;
+        private volatile IOException error;
+
+        FileWriter(Path file) {
+            this.file = file;
+            writer = new Thread(this::write, "checkpoint-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        public void accept(Checkpoint checkpoint) {
+            pending.set(checkpoint);
+            LockSupport.unpark(writer);
+        }
+
+        private void write() {
+            while (true) {
+                Checkpoint checkpoint = pending.getAndSet(null);
+                if (checkpoint != null) {
+                    try {
+                        checkpoint.write(file);
+                    } catch (IOException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                } else if (running) {
+                    LockSupport.park(this);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            running = false;
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw new UncheckedIOException(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,429 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ ClassFileWriter: just enough of the JVM class file format to emit one class with
+ a few methods. Used by JvmCompiler; there is no dependency on an outside library.
+
+ Classes are written as version 49 (Java 5). That version is still loaded by every
+ current JVM and is verified by type inference, so we don't have to compute
+ StackMapTable frames for our jumps.
+ */
+class ClassFileWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CLASS_VERSION = 49;
+
+    // Constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1; // entry 0 is unused
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<byte[]> methods = new ArrayList<>();
+
+    /**
+     Names use the internal form, e.g. "java/lang/Object".
+     */
+    ClassFileWriter(String className, String superName, String... interfaceNames) {
+        this.thisClass = classRef(className);
+        this.superClass = classRef(superName);
+        this.interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    // ---------------------------------
+    // Constant pool
+    // ---------------------------------
+
+    int utf8(String text) {
+        return entry("U" + text, () -> {
+            poolOut.writeByte(CONSTANT_UTF8);
+            poolOut.writeUTF(text);
+        });
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return entry("C" + internalName, () -> {
+            poolOut.writeByte(CONSTANT_CLASS);
+            poolOut.writeShort(name);
+        });
+    }
+
+    int string(String value) {
+        int text = utf8(value);
+        return entry("S" + value, () -> {
+            poolOut.writeByte(CONSTANT_STRING);
+            poolOut.writeShort(text);
+        });
+    }
+
+    int integer(int value) {
+        return entry("I" + value, () -> {
+            poolOut.writeByte(CONSTANT_INTEGER);
+            poolOut.writeInt(value);
+        });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(descriptor);
+        int nameAndType = entry("N" + name + ":" + descriptor, () -> {
+            poolOut.writeByte(CONSTANT_NAME_AND_TYPE);
+            poolOut.writeShort(nameIndex);
+            poolOut.writeShort(typeIndex);
+        });
+        return entry(tag + owner + "." + name + ":" + descriptor, () -> {
+            poolOut.writeByte(tag);
+            poolOut.writeShort(ownerIndex);
+            poolOut.writeShort(nameAndType);
+        });
+    }
+
+    private interface PoolWrite {
+        void write() throws IOException;
+    }
+
+    // Add a pool entry once, keyed by its contents, and return its index
+    private int entry(String key, PoolWrite write) {
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            write.write();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (poolCount > 0xFFFF) {
+            throw new IllegalStateException("Constant pool too large");
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // ---------------------------------
+    // Methods
+    // ---------------------------------
+
+    /**
+     Add a method whose body was assembled with the given Code.
+     */
+    void addMethod(int access, String name, String descriptor, Code code) {
+        byte[] bytes = code.toByteArray();
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalStateException("Method " + name + " is too large for the JVM (" + bytes.length + " bytes)");
+        }
+        List<int[]> handlers = code.handlers();
+        ByteArrayOutputStream method = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(method);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1); // one attribute: Code
+            out.writeShort(utf8("Code"));
+            out.writeInt(2 + 2 + 4 + bytes.length + 2 + 8 * handlers.size() + 2);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(handlers.size());
+            for (int[] handler : handlers) {
+                for (int value : handler) {
+                    out.writeShort(value);
+                }
+            }
+            out.writeShort(0); // no attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(method.toByteArray());
+    }
+
+    /**
+     The finished class file.
+     */
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index : interfaces) {
+                out.writeShort(index);
+            }
+            out.writeShort(0); // no fields
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // no class attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // ---------------------------------
+    // Method bodies
+    // ---------------------------------
+
+    /**
+     A jump target inside a Code. Jumps to a label that isn't placed yet are
+     patched when it is.
+     */
+    static final class Label {
+        private int position = -1;
+        private final List<int[]> fixups = new ArrayList<>(); // {opcode position, offset position}
+    }
+
+    /**
+     Assembles the bytes of one method body.
+     */
+    static final class Code {
+        // The JVM opcodes we need
+        static final int LCONST_0 = 0x09;
+        static final int LCONST_1 = 0x0a;
+        static final int ICONST_0 = 0x03;
+        static final int ICONST_1 = 0x04;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC = 0x12;
+        static final int LDC_W = 0x13;
+        static final int ILOAD = 0x15;
+        static final int LLOAD = 0x16;
+        static final int ALOAD = 0x19;
+        static final int ALOAD_0 = 0x2a;
+        static final int ALOAD_1 = 0x2b;
+        static final int ALOAD_2 = 0x2c;
+        static final int IALOAD = 0x2e;
+        static final int ISTORE = 0x36;
+        static final int LSTORE = 0x37;
+        static final int IASTORE = 0x4f;
+        static final int LASTORE = 0x50;
+        static final int POP = 0x57;
+        static final int POP2 = 0x58;
+        static final int DUP = 0x59;
+        static final int DUP2 = 0x5c;
+        static final int IADD = 0x60;
+        static final int LADD = 0x61;
+        static final int ISUB = 0x64;
+        static final int LSUB = 0x65;
+        static final int IMUL = 0x68;
+        static final int LMUL = 0x69;
+        static final int IDIV = 0x6c;
+        static final int LDIV = 0x6d;
+        static final int IREM = 0x70;
+        static final int LREM = 0x71;
+        static final int I2L = 0x85;
+        static final int L2I = 0x88;
+        static final int LCMP = 0x94;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int IFLT = 0x9b;
+        static final int IFGE = 0x9c;
+        static final int IFGT = 0x9d;
+        static final int IFLE = 0x9e;
+        static final int IF_ICMPEQ = 0x9f;
+        static final int IF_ICMPNE = 0xa0;
+        static final int IF_ICMPLT = 0xa1;
+        static final int IF_ICMPGE = 0xa2;
+        static final int IF_ICMPGT = 0xa3;
+        static final int IF_ICMPLE = 0xa4;
+        static final int GOTO = 0xa7;
+        static final int IRETURN = 0xac;
+        static final int RETURN = 0xb1;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int INVOKEINTERFACE = 0xb9;
+        static final int NEW = 0xbb;
+        static final int NEWARRAY = 0xbc;
+        static final int ATHROW = 0xbf;
+        static final int WIDE = 0xc4;
+
+        static final int T_INT = 10;  // newarray's type for int[]
+        static final int T_LONG = 11; // and for long[]
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        private final List<int[]> handlerRanges = new ArrayList<>(); // {start, end, catch type}
+        private final List<Label> handlerLabels = new ArrayList<>();
+        int maxStack;
+        int maxLocals;
+
+        Code(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        int position() {
+            return bytes.size();
+        }
+
+        void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        void op(int opcode, int u2) {
+            bytes.write(opcode);
+            writeShort(u2);
+        }
+
+        // newarray, type is T_INT and the like
+        void newArray(int type) {
+            bytes.write(NEWARRAY);
+            bytes.write(type);
+        }
+
+        // invokeinterface, with the argument count (receiver included) the instruction wants
+        void invokeInterface(int methodRef, int argumentSlots) {
+            op(INVOKEINTERFACE, methodRef);
+            bytes.write(argumentSlots);
+            bytes.write(0);
+        }
+
+        // Push an int constant with the shortest instruction that fits
+        void pushInt(ClassFileWriter cw, int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                bytes.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH, value);
+            } else {
+                ldc(cw.integer(value));
+            }
+        }
+
+        void ldc(int poolIndex) {
+            if (poolIndex <= 0xFF) {
+                op(LDC);
+                bytes.write(poolIndex);
+            } else {
+                op(LDC_W, poolIndex);
+            }
+        }
+
+        // iload / lload / istore / lstore / aload, using the wide form for locals above 255
+        void local(int opcode, int index) {
+            if (index <= 0xFF) {
+                op(opcode);
+                bytes.write(index);
+            } else {
+                op(WIDE);
+                op(opcode, index);
+            }
+        }
+
+        // A conditional or goto jump to label
+        void jump(int opcode, Label label) {
+            int at = position();
+            op(opcode);
+            if (label.position >= 0) {
+                writeShort(checkedOffset(label.position - at));
+            } else {
+                label.fixups.add(new int[] {at, position()});
+                writeShort(0);
+                if (!labels.contains(label)) {
+                    labels.add(label);
+                }
+            }
+        }
+
+        void place(Label label) {
+            label.position = position();
+        }
+
+        /**
+         Exceptions of class catchType (a pool index) thrown by the code between positions
+         start and end go to handler, with only the exception on the stack. Earlier
+         handlers win where ranges overlap.
+         */
+        void handler(int start, int end, Label handler, int catchType) {
+            if (start < end) {
+                handlerRanges.add(new int[] {start, end, catchType});
+                handlerLabels.add(handler);
+            }
+        }
+
+        // The exception table: {start, end, handler, catch type} per handler
+        List<int[]> handlers() {
+            List<int[]> table = new ArrayList<>();
+            for (int i = 0; i < handlerRanges.size(); i++) {
+                int[] range = handlerRanges.get(i);
+                int target = handlerLabels.get(i).position;
+                if (target < 0) {
+                    throw new IllegalStateException("Exception handler that was never placed");
+                }
+                table.add(new int[] {range[0], range[1], target, range[2]});
+            }
+            return table;
+        }
+
+        byte[] toByteArray() {
+            byte[] code = bytes.toByteArray();
+            for (Label label : labels) {
+                if (label.position < 0) {
+                    throw new IllegalStateException("Jump to a label that was never placed");
+                }
+                for (int[] fixup : label.fixups) {
+                    int offset = checkedOffset(label.position - fixup[0]);
+                    code[fixup[1]] = (byte) (offset >> 8);
+                    code[fixup[1] + 1] = (byte) offset;
+                }
+            }
+            return code;
+        }
+
+        private static int checkedOffset(int offset) {
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new IllegalStateException("Jump too far for a 16-bit offset: " + offset);
+            }
+            return offset;
+        }
+
+        private void writeShort(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+    }
+}
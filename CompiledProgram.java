@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ CompiledProgram: a script lexed, split into lines and compiled to a node tree once
+ (simplified by the Optimizer), ready to be run any number of times, from any number of threads at the same time.
+
+ All the node rewrites a first run would do are done here (StatementNode.prepare), so
+ running never changes the tree; the only shared state left is the tracing JIT's, which
+ is safe to race on (see StatementNode.While). Everything a run changes (variables,
+ output) lives in the ExecutionContext that run gets, one per run.
+ */
+public final class CompiledProgram {
+    private final StatementNode.Block program;
+    private final int slotCount;
+    private final EngineOptions options;
+
+    // For Checkpoints, made when first asked for (racing threads make equal ones)
+    private volatile byte[] hash;
+    private volatile List<StatementNode> statements;
+
+    private CompiledProgram(StatementNode.Block program, int slotCount, EngineOptions options) {
+        this.program = program;
+        this.slotCount = slotCount;
+        this.options = options;
+    }
+
+    public static CompiledProgram compile(String source) {
+        return compile(source, EngineOptions.DEFAULT);
+    }
+
+    /**
+     Same, with other optimizations than the system properties give (see EngineOptions).
+     */
+    static CompiledProgram compile(String source, EngineOptions options) {
+        Telemetry.PhaseTimer lex = Telemetry.startPhase(Telemetry.Phase.LEX);
+        TokenBuffer tokens = new Lexer(source).tokenize();
+        lex.end();
+        return compile(tokens, source, options);
+    }
+
+    public static CompiledProgram compile(TokenBuffer tokens, String source) {
+        return compile(tokens, source, EngineOptions.DEFAULT);
+    }
+
+    static CompiledProgram compile(TokenBuffer tokens, String source, EngineOptions options) {
+        Telemetry.PhaseTimer split = Telemetry.startPhase(Telemetry.Phase.SPLIT);
+        List<Interpreter.Line> lines = Interpreter.splitIntoIndentedLines(tokens, source);
+        split.end();
+        return compile(lines, options);
+    }
+
+    /**
+     A script file, lexed straight from its mapped bytes (see MappedLexer).
+     */
+    public static CompiledProgram compile(Path file) throws IOException {
+        LexedSource lexed = MappedLexer.lex(file);
+        Telemetry.PhaseTimer split = Telemetry.startPhase(Telemetry.Phase.SPLIT);
+        List<Interpreter.Line> lines = lexed.lines();
+        split.end();
+        return compile(lines, EngineOptions.DEFAULT);
+    }
+
+    /**
+     A program from lines already split (see LexedSource).
+     */
+    static CompiledProgram compile(List<Interpreter.Line> lines) {
+        return compile(lines, EngineOptions.DEFAULT);
+    }
+
+    static CompiledProgram compile(List<Interpreter.Line> lines, EngineOptions options) {
+        Telemetry.PhaseTimer parse = Telemetry.startPhase(Telemetry.Phase.PARSE);
+        Parser parser = new Parser(lines);
+        StatementNode.Block tree = parser.parseProgram();
+        int slotCount = parser.symbols().size();
+        CompiledProgram program = fromTree(Optimizer.optimize(tree, slotCount), slotCount, options);
+        parse.end();
+        return program;
+    }
+
+    /**
+     A program from a tree that wasn't prepared yet (fresh from the Parser or ProgramFile).
+     */
+    static CompiledProgram fromTree(StatementNode.Block program, int slotCount) {
+        return fromTree(program, slotCount, EngineOptions.DEFAULT);
+    }
+
+    static CompiledProgram fromTree(StatementNode.Block program, int slotCount, EngineOptions options) {
+        program.prepare(options);
+        return new CompiledProgram(program, slotCount, options);
+    }
+
+    /**
+     A program from a tree whose statements were all prepared already with the default
+     options (see EditableProgram, which only prepares the statements an edit changed).
+     */
+    static CompiledProgram fromPreparedTree(StatementNode.Block program, int slotCount) {
+        return new CompiledProgram(program, slotCount, EngineOptions.DEFAULT);
+    }
+
+    StatementNode.Block tree() {
+        return program;
+    }
+
+    int slotCount() {
+        return slotCount;
+    }
+
+    EngineOptions options() {
+        return options;
+    }
+
+    /**
+     SHA-256 of the tree (as ProgramFile encodes it), which is what a Checkpoint's
+     statement numbers refer to: the same for the same source in any JVM, different as
+     soon as a statement changes.
+     */
+    byte[] hash() {
+        byte[] result = hash;
+        if (result == null) {
+            try {
+                result = MessageDigest.getInstance("SHA-256").digest(ProgramFile.write(this, new byte[32]));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            hash = result;
+        }
+        return result;
+    }
+
+    /**
+     The statements as StatementNode.inOrder numbers them.
+     */
+    List<StatementNode> statements() {
+        List<StatementNode> result = statements;
+        if (result == null) {
+            result = List.copyOf(StatementNode.inOrder(program));
+            statements = result;
+        }
+        return result;
+    }
+
+    /**
+     Fresh run state: every variable 0, printing to out.
+     */
+    ExecutionContext newContext(OutputSink out) {
+        return new ExecutionContext(slotCount, out, null, null, options);
+    }
+
+    /**
+     Same, taking checkpoints with checkpointer (if not null), which must be for this program.
+     */
+    ExecutionContext newContext(OutputSink out, Checkpointer checkpointer) {
+        if (checkpointer != null && checkpointer.program() != this) {
+            throw new IllegalArgumentException("Checkpointer was made for another program");
+        }
+        return new ExecutionContext(slotCount, out, null, checkpointer, options);
+    }
+
+    /**
+     Run the program once with fresh variables, printing to out, which is flushed at
+     the end (also when the program fails).
+     */
+    public void run(OutputSink out) {
+        run(newContext(out));
+    }
+
+    /**
+     Same, counting and timing every statement in profiler (see Profiler).
+     */
+    public void run(OutputSink out, Profiler profiler) {
+        profiler.start(statements());
+        try {
+            run(new ExecutionContext(slotCount, out, profiler, null, options));
+        } finally {
+            profiler.stop();
+        }
+    }
+
+    /**
+     Same, taking checkpoints along the way (see Checkpointer).
+     */
+    public void run(OutputSink out, Checkpointer checkpointer) {
+        run(newContext(out, checkpointer));
+    }
+
+    /**
+     Go on with a run from checkpoint, which must have been taken from this program (in
+     this JVM or another), printing what comes after it to out, and taking checkpoints
+     with checkpointer unless it is null.
+     */
+    public void resume(Checkpoint checkpoint, OutputSink out, Checkpointer checkpointer) {
+        ExecutionContext context = newContext(out, checkpointer);
+        run(context, checkpoint.restore(this, context));
+    }
+
+    /**
+     Run the rest of the program, from statement number statement on (counting as
+     StatementNode.inOrder does), with the variables in slots: where a JvmCompiler class
+     left off. Doesn't flush out; the script's run does.
+     */
+    void resume(int statement, long[] slots, OutputSink out) {
+        ExecutionContext context = newContext(out);
+        for (int slot = 0; slot < slots.length; slot++) {
+            context.writeLong(slot, slots[slot]);
+        }
+        StatementNode.resume(program, StatementNode.inOrder(program).get(statement), true, context);
+    }
+
+    /**
+     Run the program against the given state, then flush its output (see Telemetry for
+     what a run reports).
+     */
+    void run(ExecutionContext context) {
+        run(context, null);
+    }
+
+    /**
+     Same, from statement from on (see StatementNode.resume), or from the top if it is null.
+     */
+    void run(ExecutionContext context, StatementNode from) {
+        if (context.checkpointer != null) {
+            context.checkpointer.start();
+        }
+        Telemetry.Run run = Telemetry.startRun(context.counters);
+        try {
+            if (from == null) {
+                program.execute(context);
+            } else {
+                StatementNode.resume(program, from, true, context);
+            }
+        } catch (RuntimeException e) {
+            run.failed(e);
+            throw e;
+        } finally {
+            context.out.flush();
+            run.end();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ CompiledScript: a script compiled to a JVM class by JvmCompiler.
+ Public because the generated classes live in their own class loader.
+ */
+public interface CompiledScript {
+    /**
+     The script itself, printing to out. Generated; call run instead.
+     */
+    void execute(OutputSink out);
+
+    /**
+     Run the script, then flush out (also when the script fails).
+     */
+    default void run(OutputSink out) {
+        try {
+            execute(out);
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     Run the script, printing to System.out.
+     */
+    default void run() {
+        run(OutputSink.systemOut());
+    }
+
+    /**
+     Thrown by a generated execute when a value in statement number statement (counting
+     as StatementNode.inOrder does) doesn't fit in an int, or may not any more, with the
+     variables as they were (the generated code keeps them in longs); the tree interpreter
+     runs the rest (see JvmCompiler.load).
+     */
+    public static final class Deopt extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int statement;
+        final long[] slots;
+
+        public Deopt(int statement, long[] slots) {
+            super("Statement " + statement + " needs numbers bigger than an int", null, false, false);
+            this.statement = statement;
+            this.slots = slots;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ CompiledTrace: what JvmCompiler.compileTrace generates for a hot while loop (see TracingJit).
+ Public because the generated classes live in their own class loader.
+ */
+public interface CompiledTrace {
+    /**
+     Run the loop on the variables in slots, starting at entry (0 = the loop condition,
+     k + 1 = after exit k), printing to out. Returns -1 when the loop is done, or the
+     number of the exit the interpreter has to handle before calling run again. The
+     variables the trace assigned are back in slots, or with Numbers on in values (as
+     longs, which may not fit in an int).
+     */
+    int run(int[] slots, long[] values, int entry, OutputSink out);
+}
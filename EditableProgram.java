@@ -0,0 +1,564 @@
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ EditableProgram: a script that changes a little at a time (an editor that runs it again
+ on every keystroke), compiled again after each edit without starting from scratch.
+
+ No token crosses a newline, so every physical line is lexed on its own, as in
+ StreamingInterpreter. An edit (offset, removed length, inserted text) lexes only the
+ lines it touches and splices them into the line list in place; every other line keeps
+ its tokens and its Line object. The BlockIndex follows the edit in place too (see
+ BlockIndex.replace), and so does the list of top-level statements: the ones from the
+ statement the edit is in down to the first one that starts where an old one started,
+ after the edit, are split up again; every other one is kept, and one after the edit is
+ only moved, line numbers and all (StatementNode.moveLines).
+
+ program() then parses, optimizes and prepares the new top-level statements, and of the
+ kept ones only those that read a variable whose constant (as the Optimizer would
+ substitute it) changed. The expressions of unedited lines come from the last parse (the
+ Parser looks them up by Line). Variables keep their slots from one compile to the next.
+ What is still done for the whole file on every compile is putting the prepared
+ statements into one block; an edit that adds or removes a line moves every statement
+ after it as well.
+
+ program() is the program CompiledProgram.compile(source()) would give, with the same
+ errors (a lexer error is the first line's that has one). The only difference is that a
+ variable that is gone from the source keeps its slot, which nothing can see. Its
+ statements are shared with the programs program() gave before, so one of those must not
+ be used any more after an edit.
+ */
+final class EditableProgram {
+    private final List<String> texts = new ArrayList<>();           // every physical line, without its '\n'
+    private final List<Interpreter.Line> lines = new ArrayList<>(); // the same lines, lexed
+    private final List<String> lexErrors = new ArrayList<>();       // per line: its lexer error, or null
+    private int errorCount = 0;
+    private int[] lineStarts = new int[16]; // offset of every line's first character
+    private int length = 0;
+
+    // The lines as splitIntoIndentedLines has them: the text after the last '\n' is not a
+    // line if it is empty, and is one twice if it is not
+    private final List<Interpreter.Line> parsedLines = new AbstractList<Interpreter.Line>() {
+        @Override
+        public Interpreter.Line get(int i) {
+            return lines.get(Math.min(i, lines.size() - 1));
+        }
+
+        @Override
+        public int size() {
+            int newlineCount = lines.size() - 1;
+            return lines.get(newlineCount).isEmpty() ? newlineCount : newlineCount + 2;
+        }
+    };
+
+    // What stays valid from one compile to the next
+    private final SymbolTable symbols = new SymbolTable();
+    private final Map<Interpreter.Line, ExpressionNode> expressions = new IdentityHashMap<>();
+    private final BlockIndex blocks;
+    private final List<TopLevel> statements = new ArrayList<>(); // one after the other, over every parsed line
+    private final List<Variable> variables = new ArrayList<>();  // by slot
+
+    // What the edits since the last compile changed
+    private final List<TopLevel> unparsed = new ArrayList<>();
+    private final Set<Variable> changed = new HashSet<>();
+
+    // Compiled on demand, forgotten on every edit
+    private CompiledProgram program;
+
+    EditableProgram(String source) {
+        texts.add("");
+        lines.add(lex(""));
+        lexErrors.add(null);
+        blocks = new BlockIndex(parsedLines);
+        edit(0, 0, source);
+    }
+
+    /**
+     Replace removedLength characters at offset with inserted.
+     */
+    void edit(int offset, int removedLength, String inserted) {
+        int end = offset + removedLength;
+        if (offset < 0 || removedLength < 0 || end > length) {
+            throw new IndexOutOfBoundsException("Edit " + offset + "+" + removedLength + " outside a source of length " + length);
+        }
+        int first = lineAt(offset);
+        int last = lineAt(end);
+        String text = texts.get(first).substring(0, offset - lineStarts[first])
+                + inserted
+                + texts.get(last).substring(end - lineStarts[last]);
+        replaceLines(first, last + 1, split(text));
+        length += inserted.length() - removedLength;
+        program = null;
+    }
+
+    /**
+     The whole source as it is now.
+     */
+    String source() {
+        return String.join("\n", texts);
+    }
+
+    int lineCount() {
+        return texts.size();
+    }
+
+    /**
+     The program as the source is now, compiled if an edit came since the last call.
+     */
+    CompiledProgram program() {
+        if (program == null) {
+            program = compile();
+        }
+        return program;
+    }
+
+    /**
+     Run the program with fresh variables (see CompiledProgram.run).
+     */
+    void run(OutputSink out) {
+        program().run(out);
+    }
+
+    // ---------------------------------
+    // Lines
+    // ---------------------------------
+
+    // The line that offset is in (the '\n' at the end of a line belongs to it)
+    private int lineAt(int offset) {
+        int low = 0;
+        int high = texts.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (lineStarts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Lines from up to (not including) to become the given texts, lexed
+    private void replaceLines(int from, int to, List<String> replacement) {
+        Telemetry.PhaseTimer lex = Telemetry.startPhase(Telemetry.Phase.LEX);
+        List<Interpreter.Line> lexed = new ArrayList<>(replacement.size());
+        List<String> errors = new ArrayList<>(replacement.size());
+        for (String text : replacement) {
+            try {
+                lexed.add(lex(text));
+                errors.add(null);
+            } catch (RuntimeException e) {
+                lexed.add(new Interpreter.Line(null, 0, 0, 0));
+                errors.add(e.getMessage());
+                errorCount++;
+            }
+        }
+        lex.end();
+
+        List<Interpreter.Line> removed = lines.subList(from, to);
+        for (Interpreter.Line line : removed) {
+            expressions.remove(line);
+        }
+        for (String error : lexErrors.subList(from, to)) {
+            if (error != null) {
+                errorCount--;
+            }
+        }
+        int oldCount = texts.size();
+        int oldParsedCount = parsedLines.size();
+        removed.clear();
+        lines.addAll(from, lexed);
+        texts.subList(from, to).clear();
+        texts.addAll(from, replacement);
+        lexErrors.subList(from, to).clear();
+        lexErrors.addAll(from, errors);
+
+        // The lines after the edit move by the same amount
+        int newCount = texts.size();
+        int oldNext = to < oldCount ? lineStarts[to] : -1;
+        if (newCount > lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, Math.max(newCount, lineStarts.length * 2));
+        }
+        System.arraycopy(lineStarts, to, lineStarts, from + replacement.size(), oldCount - to);
+        int start = lineStarts[from];
+        for (int i = from; i < from + replacement.size(); i++) {
+            lineStarts[i] = start;
+            start += texts.get(i).length() + 1;
+        }
+        int shift = start - oldNext;
+        for (int i = from + replacement.size(); i < newCount; i++) {
+            lineStarts[i] += shift;
+        }
+
+        // The same edit in parsedLines: an edit of the last line changes everything from
+        // there to the end, since that line may have come or gone, or be there twice
+        if (to < oldCount) {
+            replaceParsedLines(from, to - from, replacement.size());
+        } else {
+            replaceParsedLines(from, oldParsedCount - from, parsedLines.size() - from);
+        }
+    }
+
+    // One line on its own; every token but the EOF
+    private static Interpreter.Line lex(String text) {
+        TokenBuffer tokens = new Lexer(text).tokenize();
+        return new Interpreter.Line(tokens, 0, tokens.size() - 1, Interpreter.countLeadingSpaces(text));
+    }
+
+    // text cut at every '\n' (n newlines give n + 1 lines)
+    private static List<String> split(String text) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                parts.add(text.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(text.substring(start));
+        return parts;
+    }
+
+    // ---------------------------------
+    // Top-level statements
+    // ---------------------------------
+
+    // The removed parsed lines from from on were replaced by inserted others. The
+    // statements from the one line from - 1 is in are split up again, until one starts
+    // where an old one started (after the edit, so it and all after it are as they were).
+    private void replaceParsedLines(int from, int removed, int inserted) {
+        blocks.replace(parsedLines, from, removed, inserted);
+        int oldEnd = from + removed;
+        int newEnd = from + inserted;
+        int shift = inserted - removed;
+
+        int first = statementAt(from - 1);
+        int next = first; // the first old statement that is still to be looked at
+        int line = first < statements.size() ? statements.get(first).firstLine : 0;
+        Parser parser = new Parser(parsedLines, symbols, blocks, expressions);
+        List<TopLevel> split = new ArrayList<>();
+        int lineCount = parsedLines.size();
+        while (line < lineCount) {
+            while (next < statements.size() && newFirstLine(statements.get(next), from, oldEnd, shift) < line) {
+                next++;
+            }
+            if (line >= newEnd && next < statements.size() && newFirstLine(statements.get(next), from, oldEnd, shift) == line) {
+                break;
+            }
+            int end = parser.statementEnd(line);
+            split.add(new TopLevel(line));
+            line = end;
+        }
+        if (line >= lineCount) {
+            next = statements.size();
+        }
+
+        List<TopLevel> replaced = statements.subList(first, next);
+        for (TopLevel statement : replaced) {
+            forget(statement);
+        }
+        replaced.clear();
+        statements.addAll(first, split);
+        unparsed.addAll(split);
+        if (shift != 0) {
+            for (int k = first + split.size(); k < statements.size(); k++) {
+                statements.get(k).move(shift);
+            }
+        }
+    }
+
+    // Index of the statement line is in (0 for line -1)
+    private int statementAt(int line) {
+        int low = 0;
+        int high = statements.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (statements.get(mid).firstLine <= line) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Where an old statement starts after the edit; -1 if its first line was replaced
+    private static int newFirstLine(TopLevel statement, int from, int oldEnd, int shift) {
+        if (statement.firstLine < from) {
+            return statement.firstLine;
+        }
+        return statement.firstLine >= oldEnd ? statement.firstLine + shift : -1;
+    }
+
+    // ---------------------------------
+    // Compiling
+    // ---------------------------------
+
+    private CompiledProgram compile() {
+        if (errorCount > 0) {
+            for (String error : lexErrors) {
+                if (error != null) {
+                    throw new RuntimeException(error);
+                }
+            }
+        }
+        Telemetry.PhaseTimer parse = Telemetry.startPhase(Telemetry.Phase.PARSE);
+        Parser parser = new Parser(parsedLines, symbols, blocks, expressions);
+        PriorityQueue<TopLevel> queue = new PriorityQueue<>(Comparator.comparingInt((TopLevel statement) -> statement.firstLine));
+        for (TopLevel statement : unparsed) {
+            if (!statement.removed) {
+                remember(statement, parser.parseStatementAt(statement.firstLine));
+                queue.add(statement);
+                statement.queued = true;
+            }
+        }
+        unparsed.clear();
+        for (Variable variable : changed) {
+            settle(variable, queue);
+        }
+        changed.clear();
+
+        // In the order of the lines, so every statement comes after the ones that can make
+        // a variable it reads a constant
+        Optimizer optimizer = new Optimizer(symbols.size());
+        while (!queue.isEmpty()) {
+            TopLevel statement = queue.poll();
+            statement.queued = false;
+            if (optimize(statement, optimizer, parser) && statement.definedSlot >= 0) {
+                settle(variables.get(statement.definedSlot), queue);
+            }
+        }
+
+        int count = 0;
+        for (TopLevel statement : statements) {
+            count += statement.optimized.length;
+        }
+        StatementNode[] all = new StatementNode[count];
+        int at = 0;
+        for (TopLevel statement : statements) {
+            System.arraycopy(statement.optimized, 0, all, at, statement.optimized.length);
+            at += statement.optimized.length;
+        }
+        CompiledProgram compiled = CompiledProgram.fromPreparedTree(new StatementNode.Block(0, all), symbols.size());
+        parse.end();
+        return compiled;
+    }
+
+    // Optimize and prepare statement again, unless what it was optimized with is still
+    // what Optimizer.optimize would know of the variables it reads; true if it was
+    private boolean optimize(TopLevel statement, Optimizer optimizer, Parser parser) {
+        boolean same = statement.optimized != null;
+        for (int k = 0; k < statement.reads.length; k++) {
+            Variable variable = variables.get(statement.reads[k]);
+            boolean known = variable.definer != null && variable.definer.firstLine < statement.firstLine;
+            int value = known ? variable.value : 0;
+            same &= known == statement.knownReads[k] && value == statement.knownValues[k];
+            statement.knownReads[k] = known;
+            statement.knownValues[k] = value;
+        }
+        if (same) {
+            return false;
+        }
+
+        StatementNode parsed = statement.parsed != null ? statement.parsed : parser.parseStatementAt(statement.firstLine);
+        statement.parsed = null;
+        List<StatementNode> optimized = new ArrayList<>();
+        if (parsed != null) {
+            for (int k = 0; k < statement.reads.length; k++) {
+                if (statement.knownReads[k]) {
+                    optimizer.know(statement.reads[k], statement.knownValues[k]);
+                }
+            }
+            optimizer.topLevel(parsed, optimized);
+            for (int slot : statement.reads) {
+                optimizer.forget(slot);
+            }
+        }
+        StatementNode last = optimized.isEmpty() ? null : optimized.get(optimized.size() - 1);
+        statement.constant = statement.definedSlot >= 0 && ((StatementNode.Assign) last).value instanceof ExpressionNode.Constant;
+        statement.value = statement.constant ? ((ExpressionNode.Constant) ((StatementNode.Assign) last).value).value : 0;
+
+        // prepare may put fused statements in the place of the ones it is given
+        StatementNode.Block block = new StatementNode.Block(statement.firstLine, optimized.toArray(new StatementNode[0]));
+        block.prepare(EngineOptions.DEFAULT);
+        statement.optimized = block.statements;
+        return true;
+    }
+
+    // ---------------------------------
+    // Variables
+    // ---------------------------------
+
+    /**
+     What the compiles keep of one variable: how often the program assigns it, and which
+     top-level statements assign and read it; and from that, whether it is a constant in
+     the statements after its one assignment (as Optimizer.optimize has it: assigned once,
+     by a top-level statement, to a value that optimizes to a constant).
+     */
+    private static final class Variable {
+        int assignments;
+        final Set<TopLevel> assigners = new HashSet<>(); // its top-level assignments
+        final Set<TopLevel> readers = new HashSet<>();
+
+        // The statement that makes it a constant, and the constant; null if it isn't one
+        TopLevel definer;
+        int value;
+    }
+
+    private Variable variable(int slot) {
+        while (variables.size() <= slot) {
+            variables.add(new Variable());
+        }
+        return variables.get(slot);
+    }
+
+    // statement was parsed as parsed: what it reads and assigns goes into the variables
+    private void remember(TopLevel statement, StatementNode parsed) {
+        statement.parsed = parsed;
+        Set<Integer> reads = new LinkedHashSet<>();
+        List<Integer> assigns = new ArrayList<>();
+        if (parsed != null) {
+            collect(parsed, reads, assigns);
+        }
+        statement.reads = reads.stream().mapToInt(Integer::intValue).toArray();
+        statement.assigns = assigns.stream().mapToInt(Integer::intValue).toArray();
+        statement.definedSlot = parsed instanceof StatementNode.Assign ? ((StatementNode.Assign) parsed).slot : -1;
+        statement.knownReads = new boolean[statement.reads.length];
+        statement.knownValues = new int[statement.reads.length];
+
+        for (int slot : statement.reads) {
+            variable(slot).readers.add(statement);
+        }
+        for (int slot : statement.assigns) {
+            Variable variable = variable(slot);
+            variable.assignments++;
+            changed.add(variable);
+        }
+        if (statement.definedSlot >= 0) {
+            variable(statement.definedSlot).assigners.add(statement);
+        }
+    }
+
+    // statement is gone from the program
+    private void forget(TopLevel statement) {
+        statement.removed = true;
+        if (statement.reads == null) {
+            return; // never compiled
+        }
+        for (int slot : statement.reads) {
+            variables.get(slot).readers.remove(statement);
+        }
+        for (int slot : statement.assigns) {
+            Variable variable = variables.get(slot);
+            variable.assignments--;
+            changed.add(variable);
+        }
+        if (statement.definedSlot >= 0) {
+            variables.get(statement.definedSlot).assigners.remove(statement);
+        }
+    }
+
+    // Work out again whether variable is a constant; if that changed, every statement that
+    // reads it is to be looked at again
+    private static void settle(Variable variable, PriorityQueue<TopLevel> queue) {
+        TopLevel definer = null;
+        int value = 0;
+        if (variable.assignments == 1 && variable.assigners.size() == 1) {
+            TopLevel only = variable.assigners.iterator().next();
+            if (only.optimized != null && only.constant) {
+                definer = only;
+                value = only.value;
+            }
+        }
+        if (definer == variable.definer && value == variable.value) {
+            return;
+        }
+        variable.definer = definer;
+        variable.value = value;
+        for (TopLevel reader : variable.readers) {
+            if (!reader.queued) {
+                queue.add(reader);
+                reader.queued = true;
+            }
+        }
+    }
+
+    private static void collect(StatementNode node, Set<Integer> reads, List<Integer> assigns) {
+        if (node instanceof StatementNode.Block) {
+            for (StatementNode statement : ((StatementNode.Block) node).statements) {
+                collect(statement, reads, assigns);
+            }
+        } else if (node instanceof StatementNode.Assign) {
+            assigns.add(((StatementNode.Assign) node).slot);
+            collectReads(((StatementNode.Assign) node).value, reads);
+        } else if (node instanceof StatementNode.Print) {
+            collectReads(((StatementNode.Print) node).value, reads);
+        } else if (node instanceof StatementNode.If) {
+            StatementNode.If branch = (StatementNode.If) node;
+            collectReads(branch.condition, reads);
+            collect(branch.thenBlock, reads, assigns);
+            if (branch.elseBlock != null) {
+                collect(branch.elseBlock, reads, assigns);
+            }
+        } else if (node instanceof StatementNode.While) {
+            StatementNode.While loop = (StatementNode.While) node;
+            collectReads(loop.condition, reads);
+            collect(loop.body, reads, assigns);
+        }
+    }
+
+    private static void collectReads(ExpressionNode node, Set<Integer> reads) {
+        if (node instanceof ExpressionNode.Read) {
+            reads.add(((ExpressionNode.Read) node).slot);
+        } else if (node instanceof ExpressionNode.Binary) {
+            collectReads(((ExpressionNode.Binary) node).left, reads);
+            collectReads(((ExpressionNode.Binary) node).right, reads);
+        }
+    }
+
+    /**
+     A top-level statement (blocks included): where it starts, and what the last compile
+     made of it. Where it ends is where the next one starts.
+     */
+    private static final class TopLevel {
+        int firstLine;
+        boolean removed; // an edit split its lines up again
+
+        // Filled in by the first compile after it was made
+        StatementNode parsed;   // only until it is optimized
+        int[] reads;            // every slot it reads
+        int[] assigns;          // every assignment in it, by slot
+        int definedSlot = -1;   // the slot it assigns, if it is an assignment itself
+        StatementNode[] optimized; // optimized and prepared
+        boolean constant;       // if it is an assignment: whether optimized it assigns a constant,
+        int value;              // which
+        boolean queued;
+
+        // What the Optimizer knew of every read when it optimized the statement
+        boolean[] knownReads;
+        int[] knownValues;
+
+        TopLevel(int firstLine) {
+            this.firstLine = firstLine;
+        }
+
+        // Lines were added (removed, if negative) above it
+        void move(int lines) {
+            firstLine += lines;
+            if (optimized != null) {
+                for (StatementNode statement : optimized) {
+                    StatementNode.moveLines(statement, lines);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ EngineOptions: which optimizations a program is compiled and run with.
+
+ DEFAULT is read once, from the system properties:
+ -Dinterpreter.superinstructions=false: no fused statements (in the tree and in the VM)
+ -Dinterpreter.jit=false: no tracing JIT (see TracingJit)
+ -Dinterpreter.jit.threshold=N: how many iterations make a loop hot
+
+ Something that compares them (a benchmark, a test) makes its own with the with* methods
+ and gives them to CompiledProgram.compile or BytecodeCompiler.compile; they stay with that
+ program and every run of it, so nothing global is switched.
+ */
+final class EngineOptions {
+    static final EngineOptions DEFAULT = new EngineOptions(
+            !"false".equals(System.getProperty("interpreter.superinstructions")),
+            !"false".equals(System.getProperty("interpreter.jit")),
+            Integer.getInteger("interpreter.jit.threshold", 1000));
+
+    final boolean superinstructions;
+    final boolean tracing;
+    final int traceThreshold;
+
+    private EngineOptions(boolean superinstructions, boolean tracing, int traceThreshold) {
+        if (traceThreshold < 1) {
+            throw new IllegalArgumentException("Trace threshold must be at least 1: " + traceThreshold);
+        }
+        this.superinstructions = superinstructions;
+        this.tracing = tracing;
+        this.traceThreshold = traceThreshold;
+    }
+
+    EngineOptions withSuperinstructions(boolean on) {
+        return new EngineOptions(on, tracing, traceThreshold);
+    }
+
+    EngineOptions withTracing(boolean on) {
+        return new EngineOptions(superinstructions, on, traceThreshold);
+    }
+
+    EngineOptions withTraceThreshold(int iterations) {
+        return new EngineOptions(superinstructions, tracing, iterations);
+    }
+
+    @Override
+    public String toString() {
+        return "superinstructions=" + superinstructions + " tracing=" + tracing + " traceThreshold=" + traceThreshold;
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ Examples: the sample programs from Main, with their inputs as parameters
+ so the same scripts can be run at bigger sizes (e.g. in Benchmark).
+ */
+final class Examples {
+
+    private Examples() {
+    }
+
+    // 1) Basic arithmetic snippet
+    static String basicArithmetic() {
+        return ""
+                + "x = 5\n"
+                + "y = 10\n"
+                + "z = x + y\n"
+                + "print(z)\n"
+                + "z = z * 2\n"
+                + "print(z)\n";
+    }
+
+    // 2) Sum of First N Numbers
+    static String sumOfN(int n) {
+        return ""
+                + "N = " + n + "\n"
+                + "sum = 0\n"
+                + "i = 1\n"
+                + "while i <= N:\n"
+                + "    sum = sum + i\n"
+                + "    i = i + 1\n"
+                + "print(sum)\n";
+    }
+
+    // 3) Factorial of N
+    static String factorial(int n) {
+        return ""
+                + "N = " + n + "\n"
+                + "fact = 1\n"
+                + "i = 1\n"
+                + "while i <= N:\n"
+                + "    fact = fact * i\n"
+                + "    i = i + 1\n"
+                + "print(fact)\n";
+    }
+
+    // 4) GCD of two numbers
+    static String gcd(int a, int b) {
+        return ""
+                + "a = " + a + "\n"
+                + "b = " + b + "\n"
+                + "while b != 0:\n"
+                + "    temp = b\n"
+                + "    b = a % b\n"
+                + "    a = temp\n"
+                + "print(a)\n";
+    }
+
+    // 5) Reverse a number (1234 => 4321)
+    static String reverseNumber(int n) {
+        return ""
+                + "n = " + n + "\n"
+                + "rev = 0\n"
+                + "while n > 0:\n"
+                + "    digit = n % 10\n"
+                + "    rev = rev * 10 + digit\n"
+                + "    n = n / 10\n"
+                + "print(rev)\n";
+    }
+
+    // 6) Check if a Number is Prime (prints 1 for True, 0 for False)
+    static String primeTest(int n) {
+        return ""
+                + "N = " + n + "\n"
+                + "i = 2\n"
+                + "flag = 1\n"
+                + "while i < N:\n"
+                + "    if N % i == 0:\n"
+                + "        flag = 0\n"
+                + "    i = i + 1\n"
+                + "if flag == 1:\n"
+                + "    print(1)\n"
+                + "else:\n"
+                + "    print(0)\n";
+    }
+
+    // 7) Check if a Number is Palindrome (1 for True, else 0)
+    static String palindromeTest(int n) {
+        return ""
+                + "n = " + n + "\n"
+                + "temp = n\n"
+                + "rev = 0\n"
+                + "while temp > 0:\n"
+                + "    digit = temp % 10\n"
+                + "    rev = rev * 10 + digit\n"
+                + "    temp = temp / 10\n"
+                + "if rev == n:\n"
+                + "    print(1)\n"
+                + "else:\n"
+                + "    print(0)\n";
+    }
+
+    // 8) Find the Largest Digit in a Number
+    static String largestDigit(int n) {
+        return ""
+                + "n = " + n + "\n"
+                + "largest = 0\n"
+                + "while n > 0:\n"
+                + "    digit = n % 10\n"
+                + "    if digit > largest:\n"
+                + "        largest = digit\n"
+                + "    n = n / 10\n"
+                + "print(largest)\n";
+    }
+
+    // 9) Sum of Digits
+    static String sumOfDigits(int n) {
+        return ""
+                + "n = " + n + "\n"
+                + "sum = 0\n"
+                + "while n > 0:\n"
+                + "    digit = n % 10\n"
+                + "    sum = sum + digit\n"
+                + "    n = n / 10\n"
+                + "print(sum)\n";
+    }
+
+    // 10) Multiplication Table (N * 1 .. N * rows)
+    static String multiplicationTable(int n, int rows) {
+        return ""
+                + "N = " + n + "\n"
+                + "i = 1\n"
+                + "while i <= " + rows + ":\n"
+                + "    print(N * i)\n"
+                + "    i = i + 1\n";
+    }
+
+    // 11) Nth Fibonacci Number
+    // We'll do an iterative approach because recursive is not implemented in interpreter and is not in our task
+    static String nthFibonacci(int n) {
+        return ""
+                + "N = " + n + "\n"
+                + "if N == 0:\n"
+                + "    print(0)\n"
+                + "else:\n"
+                + "    a = 0\n"
+                + "    b = 1\n"
+                + "    i = 2\n"
+                + "    while i <= N:\n"
+                + "        c = a + b\n"
+                + "        a = b\n"
+                + "        b = c\n"
+                + "        i = i + 1\n"
+                + "    print(b)\n";
+    }
+}
@@ -0,0 +1,180 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ ExecutionContext: the mutable state a node tree runs against.
+ The tree itself only describes the program, the values live here.
+
+ A variable whose value doesn't fit in an int (see Numbers) holds BIG in slots and its
+ BigInteger in bigSlots. read() checks for that, so everything that reads a variable as an
+ int gets an Overflow instead of a wrong number.
+ */
+class ExecutionContext {
+    // In slots: the value is in bigSlots (if there is one there; BIG is also a plain int)
+    static final int BIG = Integer.MIN_VALUE;
+
+    // Our variables: slot number (from SymbolTable) => integer value
+    final int[] slots;
+
+    // The values that don't fit in an int, by slot; null until there is one
+    private BigInteger[] bigSlots;
+    private int bigCount = 0;
+
+    // For traceValues(); null until a trace ran
+    private long[] traceValues;
+
+    // Where print statements go
+    final OutputSink out;
+
+    // Counts and times every statement when set (see Profiler); null when not profiling
+    final Profiler profiler;
+
+    // What this run executed, for Telemetry; null when nobody is counting
+    final Telemetry.Counters counters;
+
+    // Takes checkpoints at loop back-edges when set (see Checkpointer); null otherwise
+    final Checkpointer checkpointer;
+
+    // The profiler or the counters are set: blocks report to them, and loops stay in the
+    // interpreter (no tracing), so they see every iteration
+    final boolean monitored;
+
+    // What the program was compiled with; the loops read whether and when to trace
+    final EngineOptions options;
+
+    ExecutionContext(int slotCount, OutputSink out, Profiler profiler) {
+        this(slotCount, out, profiler, null);
+    }
+
+    ExecutionContext(int slotCount, OutputSink out, Profiler profiler, Checkpointer checkpointer) {
+        this(slotCount, out, profiler, checkpointer, EngineOptions.DEFAULT);
+    }
+
+    ExecutionContext(int slotCount, OutputSink out, Profiler profiler, Checkpointer checkpointer, EngineOptions options) {
+        this(slotCount, out, profiler, Telemetry.newCounters(), checkpointer, options);
+    }
+
+    private ExecutionContext(int slotCount, OutputSink out, Profiler profiler, Telemetry.Counters counters,
+                             Checkpointer checkpointer, EngineOptions options) {
+        // Undefined variables read as 0, like before
+        this.slots = new int[slotCount];
+        this.out = out;
+        this.profiler = profiler;
+        this.counters = counters;
+        this.checkpointer = checkpointer;
+        this.monitored = profiler != null || counters != null;
+        this.options = options;
+    }
+
+    ExecutionContext(int slotCount, OutputSink out) {
+        this(slotCount, out, null);
+    }
+
+    /**
+     A context with at least slotCount slots and the same values; this one if it is big enough.
+     */
+    ExecutionContext withSlotCount(int slotCount) {
+        if (slotCount <= slots.length) {
+            return this;
+        }
+        ExecutionContext grown = new ExecutionContext(slotCount, out, profiler, counters, checkpointer, options);
+        System.arraycopy(slots, 0, grown.slots, 0, slots.length);
+        if (bigSlots != null) {
+            grown.bigSlots = Arrays.copyOf(bigSlots, slotCount);
+            grown.bigCount = bigCount;
+        }
+        return grown;
+    }
+
+    /**
+     A variable's value; Numbers.Overflow if it is a BigInteger.
+     */
+    int read(int slot) {
+        int value = slots[slot];
+        if (value == BIG && isBig(slot)) {
+            throw Numbers.Overflow.INSTANCE;
+        }
+        return value;
+    }
+
+    void write(int slot, int value) {
+        if (slots[slot] == BIG && isBig(slot)) {
+            bigSlots[slot] = null;
+            bigCount--;
+        }
+        slots[slot] = value;
+    }
+
+    BigInteger readBig(int slot) {
+        return isBig(slot) ? bigSlots[slot] : BigInteger.valueOf(slots[slot]);
+    }
+
+    /**
+     Store value, as an int if it fits.
+     */
+    void writeBig(int slot, BigInteger value) {
+        if (Numbers.fitsInt(value)) {
+            write(slot, value.intValue());
+            return;
+        }
+        if (bigSlots == null) {
+            bigSlots = new BigInteger[slots.length];
+        }
+        if (bigSlots[slot] == null) {
+            bigCount++;
+        }
+        bigSlots[slot] = value;
+        slots[slot] = BIG;
+    }
+
+    /**
+     Store value, as an int if it fits: a variable compiled code kept in a long.
+     */
+    void writeLong(int slot, long value) {
+        if ((int) value == value) {
+            write(slot, (int) value);
+        } else {
+            writeBig(slot, BigInteger.valueOf(value));
+        }
+    }
+
+    /**
+     Where a compiled trace leaves the variables it assigned, as longs (see TracingJit);
+     one array per context, made the first time.
+     */
+    long[] traceValues() {
+        if (traceValues == null) {
+            traceValues = new long[slots.length];
+        }
+        return traceValues;
+    }
+
+    /**
+     A copy of the BigInteger of every slot that has one (null for the others), or null
+     when no variable holds one; for Checkpoint.
+     */
+    BigInteger[] bigValues() {
+        if (bigCount == 0) {
+            return null;
+        }
+        BigInteger[] values = new BigInteger[slots.length];
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (isBig(slot)) {
+                values[slot] = bigSlots[slot];
+            }
+        }
+        return values;
+    }
+
+    /**
+     True if some variable holds a BigInteger; code that reads slots directly (compiled
+     traces) can't run then.
+     */
+    boolean hasBigValues() {
+        return bigCount != 0;
+    }
+
+    private boolean isBig(int slot) {
+        return Numbers.ENABLED && bigSlots != null && bigSlots[slot] != null;
+    }
+}
@@ -0,0 +1,390 @@
+import java.math.BigInteger;
+
+/**
+ ExpressionNode: a node that produces an integer value.
+
+ Expressions are folded strictly left to right ("value op nextValue"), so Parser
+ builds them as a left-leaning chain of Binary nodes over Literal / Read leaves.
+ Literal and Binary start out generic and rewrite themselves on first execution,
+ or all at once ahead of time through prepare() (see CompiledProgram).
+
+ execute() works on ints and throws Numbers.Overflow when a value doesn't fit in one;
+ the statement then evaluates the whole expression again with executeBig().
+ */
+abstract class ExpressionNode extends Node {
+
+    abstract int execute(ExecutionContext context);
+
+    /**
+     The same value as a BigInteger, for when it (or a value on the way) doesn't fit in an
+     int. Never rewrites the tree.
+     */
+    abstract BigInteger executeBig(ExecutionContext context);
+
+    /**
+     Do the rewrites the first execute() would do, now, without evaluating anything.
+     Afterwards the node (and everything below it) never changes again.
+     */
+    void prepare() {
+    }
+
+    /**
+     As the condition of an if or while: is it true (not 0)? A comparison of a variable
+     with a constant or another variable answers this directly (compare-and-branch),
+     without making a 1 or 0 first.
+     */
+    boolean test(ExecutionContext context) {
+        return execute(context) != 0;
+    }
+
+    /**
+     Number of nodes in this expression, itself included (all of them run on every execute).
+     */
+    int size() {
+        return 1;
+    }
+
+    /**
+     Apply one operator to two values, same rules as the old evaluateExpression:
+     comparisons give 1 or 0, and division/modulo by zero are errors. A result that
+     doesn't fit in an int is a Numbers.Overflow.
+     */
+    static int apply(TokenType op, int left, int right) {
+        switch (op) {
+            case PLUS:  return Numbers.add(left, right);
+            case MINUS: return Numbers.subtract(left, right);
+            case STAR:  return Numbers.multiply(left, right);
+            case SLASH: return Numbers.divide(left, right);
+            case MOD:   return Numbers.modulo(left, right);
+            case EQEQ:  return (left == right) ? 1 : 0;
+            case NEQ:   return (left != right) ? 1 : 0;
+            case GT:    return (left >  right) ? 1 : 0;
+            case GTE:   return (left >= right) ? 1 : 0;
+            case LT:    return (left <  right) ? 1 : 0;
+            case LTE:   return (left <= right) ? 1 : 0;
+            default:
+                throw new IllegalArgumentException("Not an operator: " + op);
+        }
+    }
+
+    /**
+     A comparison operator as a condition.
+     */
+    static boolean compare(TokenType op, int left, int right) {
+        switch (op) {
+            case EQEQ:  return left == right;
+            case NEQ:   return left != right;
+            case GT:    return left >  right;
+            case GTE:   return left >= right;
+            case LT:    return left <  right;
+            case LTE:   return left <= right;
+            default:
+                throw new IllegalArgumentException("Not a comparison: " + op);
+        }
+    }
+
+    // ---------------------------------
+    // Leaves
+    // ---------------------------------
+
+    /**
+     A number whose value is already known.
+     */
+    static final class Constant extends ExpressionNode {
+        final int value;
+
+        Constant(int value) {
+            this.value = value;
+        }
+
+        @Override
+        int execute(ExecutionContext context) {
+            return value;
+        }
+
+        @Override
+        BigInteger executeBig(ExecutionContext context) {
+            return BigInteger.valueOf(value);
+        }
+    }
+
+    /**
+     A NUMBER token that has not been parsed yet. The first successful run parses
+     the text and turns this node into a Constant, so parseInt happens once.
+     If the text does not fit in an int it stays a Literal, and is a BigInteger on the
+     slow path.
+     */
+    static final class Literal extends ExpressionNode {
+        final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+
+        @Override
+        int execute(ExecutionContext context) {
+            int value = Numbers.parse(text);
+            replace(new Constant(value));
+            return value;
+        }
+
+        @Override
+        BigInteger executeBig(ExecutionContext context) {
+            return new BigInteger(text);
+        }
+
+        @Override
+        void prepare() {
+            try {
+                replace(new Constant(Integer.parseInt(text)));
+            } catch (NumberFormatException e) {
+                // Stays a Literal and fails when it is reached
+            }
+        }
+    }
+
+    /**
+     Reads a variable from its slot (undefined variables are 0).
+     */
+    static final class Read extends ExpressionNode {
+        final String name;
+        final int slot;
+
+        Read(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        int execute(ExecutionContext context) {
+            return context.read(slot);
+        }
+
+        @Override
+        BigInteger executeBig(ExecutionContext context) {
+            return context.readBig(slot);
+        }
+    }
+
+    /**
+     Stands in for a piece of the expression that can never be evaluated,
+     e.g. a stray token or an operator with no right operand.
+     The error is raised when evaluation reaches it, not when we parse.
+     */
+    static final class Fail extends ExpressionNode {
+        final String message;
+
+        Fail(String message) {
+            this.message = message;
+        }
+
+        @Override
+        int execute(ExecutionContext context) {
+            throw new RuntimeException(message);
+        }
+
+        @Override
+        BigInteger executeBig(ExecutionContext context) {
+            throw new RuntimeException(message);
+        }
+    }
+
+    // ---------------------------------
+    // Binary operators
+    // ---------------------------------
+
+    /**
+     "left op right". This generic form runs both children once and then rewrites
+     itself into the most specific form that fits its operands.
+     */
+    static class Binary extends ExpressionNode {
+        final TokenType op;
+        ExpressionNode left;
+        ExpressionNode right;
+
+        Binary(TokenType op, ExpressionNode left, ExpressionNode right) {
+            this.op = op;
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        int execute(ExecutionContext context) {
+            int l = left.execute(context);
+            int r = right.execute(context);
+            int result = apply(op, l, r);
+            // Children may have specialized themselves above, so look at them now
+            replace(specialize());
+            return result;
+        }
+
+        @Override
+        BigInteger executeBig(ExecutionContext context) {
+            return Numbers.apply(op, left.executeBig(context), right.executeBig(context));
+        }
+
+        @Override
+        void prepare() {
+            // Children replace themselves in our fields first
+            left.prepare();
+            right.prepare();
+            replace(specialize());
+        }
+
+        @Override
+        int size() {
+            return 1 + left.size() + right.size();
+        }
+
+        private Binary specialize() {
+            if (left instanceof Read && right instanceof Constant) {
+                return new ReadConstant(op, (Read) left, (Constant) right);
+            }
+            if (left instanceof Read && right instanceof Read) {
+                return new ReadRead(op, (Read) left, (Read) right);
+            }
+            if (right instanceof Constant) {
+                return new ConstantOperand(op, left, (Constant) right);
+            }
+            if (right instanceof Read) {
+                return new ReadOperand(op, left, (Read) right);
+            }
+            return new Generic(op, left, right);
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            if (left == oldChild) {
+                left = (ExpressionNode) newChild;
+            } else if (right == oldChild) {
+                right = (ExpressionNode) newChild;
+            } else {
+                super.replaceChild(oldChild, newChild);
+            }
+        }
+    }
+
+    /**
+     Base of the rewritten forms below; they are final and don't rewrite again.
+     */
+    abstract static class Specialized extends Binary {
+        Specialized(TokenType op, ExpressionNode left, ExpressionNode right) {
+            super(op, left, right);
+        }
+
+        @Override
+        abstract int execute(ExecutionContext context);
+
+        @Override
+        void prepare() {
+            left.prepare();
+            right.prepare();
+        }
+    }
+
+    /**
+     Already specialized: just evaluate both sides.
+     */
+    static final class Generic extends Specialized {
+        Generic(TokenType op, ExpressionNode left, ExpressionNode right) {
+            super(op, left, right);
+        }
+
+        @Override
+        int execute(ExecutionContext context) {
+            return apply(op, left.execute(context), right.execute(context));
+        }
+    }
+
+    /**
+     "expr op 5": the right side is a constant folded into the node.
+     */
+    static final class ConstantOperand extends Specialized {
+        private final int constant;
+
+        ConstantOperand(TokenType op, ExpressionNode left, Constant right) {
+            super(op, left, right);
+            this.constant = right.value;
+        }
+
+        @Override
+        int execute(ExecutionContext context) {
+            return apply(op, left.execute(context), constant);
+        }
+    }
+
+    /**
+     "expr op x": the right side is a variable read done inline.
+     */
+    static final class ReadOperand extends Specialized {
+        private final int slot;
+
+        ReadOperand(TokenType op, ExpressionNode left, Read right) {
+            super(op, left, right);
+            this.slot = right.slot;
+        }
+
+        @Override
+        int execute(ExecutionContext context) {
+            return apply(op, left.execute(context), context.read(slot));
+        }
+    }
+
+    /**
+     "x op 5", the most common shape in loops (i + 1, i <= 10, n % 10...).
+     */
+    static final class ReadConstant extends Specialized {
+        private final int slot;
+        private final int constant;
+        private final boolean comparison;
+
+        ReadConstant(TokenType op, Read left, Constant right) {
+            super(op, left, right);
+            this.slot = left.slot;
+            this.constant = right.value;
+            this.comparison = Parser.isComparison(op);
+        }
+
+        @Override
+        int execute(ExecutionContext context) {
+            return apply(op, context.read(slot), constant);
+        }
+
+        @Override
+        boolean test(ExecutionContext context) {
+            if (comparison) {
+                return compare(op, context.read(slot), constant);
+            }
+            return execute(context) != 0;
+        }
+    }
+
+    /**
+     "x op y", e.g. i <= N or sum + i.
+     */
+    static final class ReadRead extends Specialized {
+        private final int leftSlot;
+        private final int rightSlot;
+        private final boolean comparison;
+
+        ReadRead(TokenType op, Read left, Read right) {
+            super(op, left, right);
+            this.leftSlot = left.slot;
+            this.rightSlot = right.slot;
+            this.comparison = Parser.isComparison(op);
+        }
+
+        @Override
+        int execute(ExecutionContext context) {
+            return apply(op, context.read(leftSlot), context.read(rightSlot));
+        }
+
+        @Override
+        boolean test(ExecutionContext context) {
+            if (comparison) {
+                return compare(op, context.read(leftSlot), context.read(rightSlot));
+            }
+            return execute(context) != 0;
+        }
+    }
+}
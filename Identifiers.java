@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+/**
+ Identifiers: the distinct identifiers of one source, interned by the Lexer as it finds
+ them, each with a dense id (0, 1, 2, ... in order of first appearance).
+
+ Looking one up takes its position in the source and its hash (String.hashCode's, which
+ the Lexer computes while it scans the identifier) and compares the candidates with the
+ source in place, so an identifier seen before costs no allocation at all; only the first
+ occurrence of each name makes its String. The TokenBuffer keeps the id of every IDENT
+ token, and its text is that one String, so a variable used 50000 times is one String
+ object instead of 50000.
+ */
+final class Identifiers {
+    private int[] table = new int[64]; // open addressing: id + 1, or 0 for a free entry
+    private int[] hashes = new int[16];
+    private String[] names = new String[16];
+    private int size = 0;
+
+    /**
+     Id of the identifier source[start, start + length), whose hash is hash.
+     */
+    int intern(CharSequence source, int start, int length, int hash) {
+        int mask = table.length - 1;
+        for (int i = mix(hash) & mask; ; i = (i + 1) & mask) {
+            int entry = table[i];
+            if (entry == 0) {
+                return add(source.subSequence(start, start + length).toString(), hash, i);
+            }
+            int id = entry - 1;
+            if (hashes[id] == hash && names[id].length() == length && matches(names[id], source, start)) {
+                return id;
+            }
+        }
+    }
+
+    int intern(String name) {
+        return intern(name, 0, name.length(), name.hashCode());
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int add(String name, int hash, int free) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        names[id] = name;
+        hashes[id] = hash;
+        table[free] = id + 1;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int i = mix(hashes[id]) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = id + 1;
+        }
+    }
+
+    // Spread the bits, so names that differ in their last character don't sit side by side
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String name, CharSequence source, int start) {
+        if (source instanceof String) {
+            return ((String) source).regionMatches(start, name, 0, name.length());
+        }
+        for (int k = 0; k < name.length(); k++) {
+            if (source.charAt(start + k) != name.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,36 @@
+import java.util.Map;
+
+/**
+ InterpreterTelemetryMXBean: what Telemetry shows over JMX, as "interpreter:type=Telemetry".
+ Counts are for every run in this JVM since the start (or the last reset), times in nanoseconds.
+ Public because JMX only looks at public interfaces.
+ */
+public interface InterpreterTelemetryMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getRuns();
+
+    long getLinesExecuted();
+
+    long getExpressionEvaluations();
+
+    long getLoopIterations();
+
+    long getPrints();
+
+    long getErrors();
+
+    Map<String, Long> getErrorsByMessage();
+
+    long getLexNanos();
+
+    long getSplitNanos();
+
+    long getParseNanos();
+
+    long getExecuteNanos();
+
+    void reset();
+}
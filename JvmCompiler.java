@@ -0,0 +1,933 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ JvmCompiler: ahead-of-time compiles a script into a real JVM class.
+
+ Every variable becomes a local int of the generated run() method and every while
+ becomes a native loop, so the JVM's own JIT can optimize the script like Java code.
+ The front end is the same as for the other engines (Lexer -> indented lines -> Parser ->
+ Optimizer).
+
+ The generated class implements CompiledScript and prints to the OutputSink it is
+ run with. Errors are the same as in the interpreter:
+ "Division by zero." / "Modulo by zero." RuntimeExceptions and the "Unexpected token"
+ and "Operator at end" errors.
+
+ With Numbers on, ValueBounds works out the range of every value. A variable that is
+ always an int is an int local and its arithmetic is int arithmetic; the others are longs,
+ and their arithmetic is plain long arithmetic wherever it can't leave a long; only the
+ rest uses Math.addExact and friends. A counted loop (i goes up to a limit, and the other
+ variables only add to themselves, or stay put) checks nothing at all. Another loop whose
+ values grow runs strips of iterations that stay within a long and checks at the end of
+ each that its variables are ints again (an int the loop starts from can only grow so much
+ in one strip). When a value doesn't fit (a check fails, or a print
+ gets one), that statement or loop throws CompiledScript.Deopt with the variables, and the
+ script load() returns runs the rest on the tree interpreter, from there. With Numbers off
+ it is all ints, unchecked.
+ */
+class JvmCompiler {
+    // Bump this when the generated code changes, so old cached classes are not reused
+    private static final String VERSION = Numbers.ENABLED ? "5" : "5-int32";
+
+    private static final String RUNTIME_EXCEPTION = "java/lang/RuntimeException";
+    private static final String ARITHMETIC_EXCEPTION = "java/lang/ArithmeticException";
+    private static final String DEOPT = "CompiledScript$Deopt";
+
+    // Deepest operand stack we can need: a print with a division in it (the sink, two longs
+    // and a copy of the divisor to compare with 0L); building a Deopt takes 8
+    private static final int MAX_STACK = 9;
+
+    private final ClassFileWriter cw;
+    private final ClassFileWriter.Code code;
+    private final int outLocal;      // local holding the OutputSink parameter
+    private final int[] locals;      // the local of each variable; the ones before them are 'this' and the parameters
+    private final int scratchLocal;  // after the variables
+    private int nextCounter;         // after that: the strip counters of the loops being generated
+
+    // With Numbers on, a variable that may not be an int is a long (longs[slot]) and takes
+    // two locals. bounds holds the range of each (see ValueBounds) where code is being
+    // generated, and assignedLongs the variables it found a value for that may not be an int
+    private final boolean wide = Numbers.ENABLED;
+    private final boolean[] longs;
+    private final boolean[] assignedLongs;
+    private final ValueBounds valueBounds;
+    private ValueBounds.Range[] bounds;
+    private int loopDepth;           // while loops around the code being generated
+
+    // Where an ArithmeticException in the code of a statement goes (nothing there when
+    // Numbers are off), and the handlers something was sent to
+    private final Map<StatementNode, ClassFileWriter.Label> overflowHandlers = new IdentityHashMap<>();
+    private final Set<ClassFileWriter.Label> usedHandlers = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private JvmCompiler(String className, String interfaceName, int outLocal, int firstVariable, boolean[] longs,
+                        ValueBounds valueBounds) {
+        int slotCount = longs.length;
+        this.cw = new ClassFileWriter(className, "java/lang/Object", interfaceName);
+        this.outLocal = outLocal;
+        this.longs = longs;
+        this.assignedLongs = new boolean[slotCount];
+        this.locals = new int[slotCount];
+        int local = firstVariable;
+        for (int slot = 0; slot < slotCount; slot++) {
+            locals[slot] = local;
+            local += longs[slot] ? 2 : 1;
+        }
+        this.scratchLocal = local;
+        this.nextCounter = scratchLocal + 1;
+        this.code = new ClassFileWriter.Code(MAX_STACK, nextCounter);
+        this.valueBounds = valueBounds;
+        this.bounds = new ValueBounds.Range[slotCount];
+        Arrays.fill(bounds, ValueBounds.Range.ZERO);
+    }
+
+    /**
+     Compile tokenized source into the bytes of a class called className.
+     */
+    static byte[] compile(TokenBuffer tokens, String source, String className) {
+        List<Interpreter.Line> lines = Interpreter.splitIntoIndentedLines(tokens, source);
+        Parser parser = new Parser(lines);
+        StatementNode.Block parsed = parser.parseProgram();
+        int slotCount = parser.symbols().size();
+        StatementNode.Block program = Optimizer.optimize(parsed, slotCount);
+
+        // local 0 is 'this', 1 the OutputSink, variables start at 2
+        ValueBounds valueBounds = new ValueBounds(slotCount);
+        boolean[] longs = longVariables(slotCount, all -> {
+            JvmCompiler first = new JvmCompiler(className, "CompiledScript", 1, 2, all, valueBounds);
+            first.addExecuteMethod(program, slotCount);
+            return first;
+        });
+        JvmCompiler compiler = new JvmCompiler(className, "CompiledScript", 1, 2, longs, valueBounds);
+        compiler.addConstructor();
+        compiler.addExecuteMethod(program, slotCount);
+        return compiler.cw.toByteArray();
+    }
+
+    // Which variables have to be longs: with Numbers on, generate is a first go at the code
+    // with every variable a long, which finds out (and leaves the strips it worked out in
+    // the ValueBounds, for the real go)
+    private static boolean[] longVariables(int slotCount, Function<boolean[], JvmCompiler> generate) {
+        if (!Numbers.ENABLED) {
+            return new boolean[slotCount];
+        }
+        boolean[] all = new boolean[slotCount];
+        Arrays.fill(all, true);
+        return generate.apply(all).assignedLongs;
+    }
+
+    /**
+     Compile and load the script, ready to run (see compileOrInterpret).
+     */
+    static CompiledScript compileAndLoad(String source) {
+        return compileOrInterpret(new Lexer(source).tokenize(), source);
+    }
+
+    /**
+     Compile and load tokenized source. A script the class file can't hold (a method over
+     64 KB, a jump further than 32 KB) runs on the tree interpreter instead, like a loop
+     TracingJit can't compile.
+     */
+    static CompiledScript compileOrInterpret(TokenBuffer tokens, String source) {
+        String className = classNameFor(source);
+        try {
+            return load(className, compile(tokens, source, className), source);
+        } catch (IllegalStateException | LinkageError e) {
+            return interpreted(CompiledProgram.compile(tokens, source));
+        }
+    }
+
+    private static CompiledScript interpreted(CompiledProgram program) {
+        return program::run;
+    }
+
+    /**
+     Like compileAndLoad, but keeps the class file in cacheDir. The file name is a hash of
+     the source (and of the compiler version), so a changed script never picks up an old
+     class. A cached file that can't be loaded is compiled again and overwritten.
+     */
+    static CompiledScript compileCached(String source, Path cacheDir) throws IOException {
+        String className = classNameFor(source);
+        Path file = cacheDir.resolve(className + ".class");
+        if (Files.isRegularFile(file)) {
+            try {
+                return load(className, Files.readAllBytes(file), source);
+            } catch (LinkageError | IOException e) {
+                // Corrupt or truncated entry: fall through and compile it again
+            }
+        }
+
+        TokenBuffer tokens = new Lexer(source).tokenize();
+        byte[] bytes;
+        try {
+            bytes = compile(tokens, source, className);
+        } catch (IllegalStateException e) {
+            // Too big for a class file (see compileOrInterpret): nothing to cache
+            return interpreted(CompiledProgram.compile(tokens, source));
+        }
+        Files.createDirectories(cacheDir);
+        Path temp = Files.createTempFile(cacheDir, className, ".tmp");
+        Files.write(temp, bytes);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return load(className, bytes, source);
+    }
+
+    /**
+     Load a script compiled from source (see compile) and create an instance. When a value
+     outgrows an int, the tree interpreter runs the rest of the script: source is compiled
+     again for that the first time it happens, and kept for the next runs.
+     */
+    static CompiledScript load(String className, byte[] bytes, String source) {
+        CompiledScript script = (CompiledScript) instantiate(className, bytes);
+        if (!Numbers.ENABLED) {
+            return script;
+        }
+        AtomicReference<CompiledProgram> fallback = new AtomicReference<>();
+        return out -> {
+            try {
+                script.execute(out);
+            } catch (CompiledScript.Deopt deopt) {
+                CompiledProgram program = fallback.get();
+                if (program == null) {
+                    program = CompiledProgram.compile(source);
+                    fallback.set(program);
+                }
+                program.resume(deopt.statement, deopt.slots, out);
+            }
+        };
+    }
+
+    /**
+     Compile a trace recorded by TracingJit into the bytes of a class called className,
+     implementing CompiledTrace for a program with slotCount variables.
+
+     The generated run(slots, values, entry, out) copies the variables into locals, jumps to
+     the entry point (0 = the loop condition, k + 1 = where exit k resumes) and loops over
+     the trace. A guard that fails, a nested while, a value too big for an int, the end of
+     a strip (see ValueBounds) with a variable that isn't an int, or (if the trace polls)
+     every TracingJit.pollIterations-th iteration stores the variables back (into values,
+     with Numbers on) and returns the exit number; leaving the loop returns -1.
+     */
+    static byte[] compileTrace(String className, TracingJit.Trace trace, int slotCount) {
+        // local 0 is 'this', 1 the slots array, 2 the values array, 3 the entry point,
+        // 4 the OutputSink; variables start at 5
+        ValueBounds valueBounds = new ValueBounds(slotCount);
+        boolean[] longs = longVariables(slotCount, all -> {
+            JvmCompiler first = new JvmCompiler(className, "CompiledTrace", 4, 5, all, valueBounds);
+            first.addTraceMethod(trace, slotCount);
+            return first;
+        });
+        JvmCompiler compiler = new JvmCompiler(className, "CompiledTrace", 4, 5, longs, valueBounds);
+        compiler.addConstructor();
+        compiler.addTraceMethod(trace, slotCount);
+        return compiler.cw.toByteArray();
+    }
+
+    static CompiledTrace loadTrace(String className, byte[] bytes) {
+        return (CompiledTrace) instantiate(className, bytes);
+    }
+
+    // Define the class in its own class loader (so it can be unloaded again) and create an instance
+    private static Object instantiate(String className, byte[] bytes) {
+        Class<?> scriptClass = new ScriptLoader().define(className, bytes);
+        try {
+            return scriptClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot instantiate compiled script " + className, e);
+        }
+    }
+
+    // "Script_" + the first 16 bytes of SHA-256(version + source), in hex
+    static String classNameFor(String source) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(VERSION.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) '\n');
+            byte[] hash = sha.digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder("Script_");
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class ScriptLoader extends ClassLoader {
+        ScriptLoader() {
+            super(JvmCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    // ---------------------------------
+    // Class structure
+    // ---------------------------------
+
+    // public <init>() { super(); }
+    private void addConstructor() {
+        ClassFileWriter.Code init = new ClassFileWriter.Code(1, 1);
+        init.op(ClassFileWriter.Code.ALOAD_0);
+        init.op(ClassFileWriter.Code.INVOKESPECIAL, cw.methodRef("java/lang/Object", "<init>", "()V"));
+        init.op(ClassFileWriter.Code.RETURN);
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", init);
+    }
+
+    // public void execute(OutputSink out) { int v0 = 0; long v1 = 0; ...; <program> }
+    private void addExecuteMethod(StatementNode.Block program, int slotCount) {
+        List<StatementNode> statements = StatementNode.inOrder(program);
+        if (Numbers.ENABLED) {
+            for (StatementNode statement : statements) {
+                overflowHandlers.put(statement, new ClassFileWriter.Label());
+            }
+        }
+        for (int slot = 0; slot < slotCount; slot++) {
+            code.op(longs[slot] ? ClassFileWriter.Code.LCONST_0 : ClassFileWriter.Code.ICONST_0);
+            store(slot);
+        }
+        statement(program);
+        code.op(ClassFileWriter.Code.RETURN);
+        if (!usedHandlers.isEmpty()) {
+            addDeopt(statements, slotCount);
+        }
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "execute", "(LOutputSink;)V", code);
+    }
+
+    // A value too big for an int in statement k: throw new CompiledScript.Deopt(k, {v0, v1, ...})
+    // (only with Numbers on)
+    private void addDeopt(List<StatementNode> statements, int slotCount) {
+        ClassFileWriter.Label deopt = new ClassFileWriter.Label();
+        for (int k = 0; k < statements.size(); k++) {
+            ClassFileWriter.Label handler = overflowHandlers.get(statements.get(k));
+            if (usedHandlers.contains(handler)) {
+                code.place(handler);
+                code.op(ClassFileWriter.Code.POP);
+                code.pushInt(cw, k);
+                code.jump(ClassFileWriter.Code.GOTO, deopt);
+            }
+        }
+        code.place(deopt);
+        code.local(ClassFileWriter.Code.ISTORE, scratchLocal);
+        code.op(ClassFileWriter.Code.NEW, cw.classRef(DEOPT));
+        code.op(ClassFileWriter.Code.DUP);
+        code.local(ClassFileWriter.Code.ILOAD, scratchLocal);
+        code.pushInt(cw, slotCount);
+        code.newArray(ClassFileWriter.Code.T_LONG);
+        for (int slot = 0; slot < slotCount; slot++) {
+            code.op(ClassFileWriter.Code.DUP);
+            code.pushInt(cw, slot);
+            loadLong(slot);
+            code.op(ClassFileWriter.Code.LASTORE);
+        }
+        code.op(ClassFileWriter.Code.INVOKESPECIAL, cw.methodRef(DEOPT, "<init>", "(I[J)V"));
+        code.op(ClassFileWriter.Code.ATHROW);
+    }
+
+    // public int run(int[] slots, long[] values, int entry, OutputSink out) { <variables from slots>; <dispatch on entry>; <trace loop> }
+    private void addTraceMethod(TracingJit.Trace trace, int slotCount) {
+        ClassFileWriter.Label head = new ClassFileWriter.Label();
+        ClassFileWriter.Label done = new ClassFileWriter.Label();
+        ClassFileWriter.Label[] exits = new ClassFileWriter.Label[trace.exitCount()];
+        ClassFileWriter.Label[] resumes = new ClassFileWriter.Label[trace.exitCount()];
+        for (int i = 0; i < exits.length; i++) {
+            exits[i] = new ClassFileWriter.Label();
+            resumes[i] = new ClassFileWriter.Label();
+            TracingJit.Op exit = trace.exit(i);
+            if (Numbers.ENABLED && exit.kind == TracingJit.Op.OVERFLOW) {
+                overflowHandlers.put(exit.node, new ClassFileWriter.Label());
+            }
+        }
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            code.op(ClassFileWriter.Code.ALOAD_1);
+            code.pushInt(cw, slot);
+            code.op(ClassFileWriter.Code.IALOAD);
+            if (longs[slot]) {
+                code.op(ClassFileWriter.Code.I2L);
+            }
+            store(slot);
+        }
+
+        // Iterations until the poll exit: the trace's strip (it checks its variables there
+        // and goes on), or pollIterations if that comes first and the trace polls; in the
+        // scratch local (unused in a trace). 0 is neither, the loop just goes round
+        ValueBounds.Strip strip = wide ? valueBounds.strip(trace.loop, trace.ops) : null;
+        int stripLength = strip != null ? strip.iterations : 0;
+        if (trace.polls) {
+            stripLength = stripLength == 0 ? TracingJit.pollIterations : Math.min(stripLength, TracingJit.pollIterations);
+        }
+        if (stripLength > 0) {
+            code.op(ClassFileWriter.Code.ICONST_0);
+            code.local(ClassFileWriter.Code.ISTORE, scratchLocal);
+        }
+        for (int i = 0; i < resumes.length; i++) {
+            int kind = trace.exit(i).kind;
+            if (kind == TracingJit.Op.OVERFLOW || kind == TracingJit.Op.POLL) {
+                // Never entered there: the interpreter finishes that iteration, or enters at 0
+                continue;
+            }
+            code.local(ClassFileWriter.Code.ILOAD, 3);
+            code.pushInt(cw, i + 1);
+            code.jump(ClassFileWriter.Code.IF_ICMPEQ, resumes[i]);
+        }
+
+        // A new strip starts at its own label, not at the loop's head: then the strips and the
+        // iterations in one are two loops, each with one jump back, and the JVM compiles
+        // them as well as the loop without strips
+        ClassFileWriter.Label nextStrip = new ClassFileWriter.Label();
+        code.place(nextStrip);
+        if (stripLength > 0) {
+            code.op(ClassFileWriter.Code.ICONST_0);
+            code.local(ClassFileWriter.Code.ISTORE, scratchLocal);
+        }
+        code.place(head);
+        if (strip != null) {
+            bounds = strip.bounds.clone();
+        }
+        int start = code.position();
+        jumpIfFalse(trace.loop.condition, done);
+        catchOverflow(trace.loop, start);
+        ValueBounds.refine(trace.loop.condition, true, bounds);
+        for (TracingJit.Op op : trace.ops) {
+            switch (op.kind) {
+                case TracingJit.Op.STATEMENT:
+                    statement(op.node);
+                    break;
+                case TracingJit.Op.GUARD:
+                    ExpressionNode condition = ((StatementNode.If) op.node).condition;
+                    start = code.position();
+                    if (op.taken) {
+                        jumpIfFalse(condition, exits[op.exit]);
+                    } else {
+                        jumpIfTrue(condition, exits[op.exit]);
+                    }
+                    catchOverflow(op.node, start);
+                    ValueBounds.refine(condition, op.taken, bounds);
+                    break;
+                case TracingJit.Op.CALL:
+                    code.jump(ClassFileWriter.Code.GOTO, exits[op.exit]);
+                    code.place(resumes[op.exit]);
+                    enteredWithInts();
+                    break;
+                case TracingJit.Op.RESUME:
+                    code.place(resumes[op.exit]);
+                    enteredWithInts();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown trace op: " + op.kind);
+            }
+        }
+        if (stripLength > 0) {
+            countIteration(scratchLocal, stripLength, head);
+            if (trace.polls) {
+                code.jump(ClassFileWriter.Code.GOTO, exits[trace.poll]);
+            } else {
+                // End of a strip: go on with a new one if every variable is an int
+                for (int slot = 0; slot < slotCount; slot++) {
+                    if (longs[slot] && !bounds[slot].isInt()) {
+                        load(slot);
+                        code.op(ClassFileWriter.Code.DUP2);
+                        code.op(ClassFileWriter.Code.L2I);
+                        code.op(ClassFileWriter.Code.I2L);
+                        code.op(ClassFileWriter.Code.LCMP);
+                        code.jump(ClassFileWriter.Code.IFNE, exits[trace.poll]);
+                    }
+                }
+                code.jump(ClassFileWriter.Code.GOTO, nextStrip);
+            }
+        } else {
+            code.jump(ClassFileWriter.Code.GOTO, head);
+        }
+
+        code.place(done);
+        traceExit(trace, -1);
+        for (int i = 0; i < exits.length; i++) {
+            code.place(exits[i]);
+            traceExit(trace, i);
+            ClassFileWriter.Label handler = overflowHandlers.get(trace.exit(i).node);
+            if (trace.exit(i).kind == TracingJit.Op.OVERFLOW && usedHandlers.contains(handler)) {
+                code.place(handler);
+                code.op(ClassFileWriter.Code.POP);
+                code.jump(ClassFileWriter.Code.GOTO, exits[i]);
+            }
+        }
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "run", "([I[JILOutputSink;)I", code);
+    }
+
+    // Store the variables the trace assigns back into slots (values, with Numbers on), then
+    // return the exit number
+    private void traceExit(TracingJit.Trace trace, int exit) {
+        for (int slot : trace.assignedSlots()) {
+            code.op(wide ? ClassFileWriter.Code.ALOAD_2 : ClassFileWriter.Code.ALOAD_1);
+            code.pushInt(cw, slot);
+            if (wide) {
+                loadLong(slot);
+                code.op(ClassFileWriter.Code.LASTORE);
+            } else {
+                load(slot);
+                code.op(ClassFileWriter.Code.IASTORE);
+            }
+        }
+        code.pushInt(cw, exit);
+        code.op(ClassFileWriter.Code.IRETURN);
+    }
+
+    // Where the trace is entered after an exit its variables came back from the interpreter
+    // as ints, so they can be any int there
+    private void enteredWithInts() {
+        ValueBounds.join(bounds, valueBounds.ints());
+    }
+
+    private void load(int slot) {
+        code.local(longs[slot] ? ClassFileWriter.Code.LLOAD : ClassFileWriter.Code.ILOAD, locals[slot]);
+    }
+
+    private void loadLong(int slot) {
+        load(slot);
+        if (!longs[slot]) {
+            code.op(ClassFileWriter.Code.I2L);
+        }
+    }
+
+    private void store(int slot) {
+        code.local(longs[slot] ? ClassFileWriter.Code.LSTORE : ClassFileWriter.Code.ISTORE, locals[slot]);
+    }
+
+    // Send an ArithmeticException thrown by the code of node (since start) to its overflow handler
+    private void catchOverflow(StatementNode node, int start) {
+        ClassFileWriter.Label handler = overflowHandlers.get(node);
+        if (handler != null && start < code.position()) {
+            code.handler(start, code.position(), handler, cw.classRef(ARITHMETIC_EXCEPTION));
+            usedHandlers.add(handler);
+        }
+    }
+
+    // ---------------------------------
+    // Statements
+    // ---------------------------------
+
+    private void statement(StatementNode node) {
+        if (node instanceof StatementNode.Block) {
+            for (StatementNode child : ((StatementNode.Block) node).statements) {
+                statement(child);
+            }
+        } else if (node instanceof StatementNode.Assign) {
+            StatementNode.Assign assign = (StatementNode.Assign) node;
+            ValueBounds.Range range = ValueBounds.of(assign.value, bounds);
+            if (!fitsInt(range)) {
+                if (!longs[assign.slot]) {
+                    throw new IllegalStateException("Variable " + assign.slot + " is not an int");
+                }
+                assignedLongs[assign.slot] = true;
+            }
+            int start = code.position();
+            expression(assign.value, !longs[assign.slot]);
+            store(assign.slot);
+            catchOverflow(node, start);
+            bounds[assign.slot] = range;
+        } else if (node instanceof StatementNode.Print) {
+            ExpressionNode value = ((StatementNode.Print) node).value;
+            boolean isInt = fitsInt(ValueBounds.of(value, bounds));
+            int start = code.position();
+            code.local(ClassFileWriter.Code.ALOAD, outLocal);
+            expression(value, isInt);
+            if (!isInt) {
+                code.op(ClassFileWriter.Code.INVOKESTATIC, cw.methodRef("java/lang/Math", "toIntExact", "(J)I"));
+            }
+            catchOverflow(node, start);
+            code.invokeInterface(cw.interfaceMethodRef("OutputSink", "print", "(I)V"), 2);
+        } else if (node instanceof StatementNode.If) {
+            ifStatement((StatementNode.If) node);
+        } else if (node instanceof StatementNode.While) {
+            whileStatement((StatementNode.While) node);
+        } else {
+            throw new IllegalStateException("Unknown statement node: " + node);
+        }
+    }
+
+    private void ifStatement(StatementNode.If node) {
+        ClassFileWriter.Label elseLabel = new ClassFileWriter.Label();
+        int start = code.position();
+        jumpIfFalse(node.condition, elseLabel);
+        catchOverflow(node, start);
+        ValueBounds.Range[] otherwise = bounds.clone();
+        ValueBounds.refine(node.condition, false, otherwise);
+        ValueBounds.refine(node.condition, true, bounds);
+        statement(node.thenBlock);
+        if (node.elseBlock == null) {
+            code.place(elseLabel);
+            ValueBounds.join(bounds, otherwise);
+            return;
+        }
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        code.jump(ClassFileWriter.Code.GOTO, end);
+        code.place(elseLabel);
+        ValueBounds.Range[] afterThen = bounds;
+        bounds = otherwise;
+        statement(node.elseBlock);
+        ValueBounds.join(bounds, afterThen);
+        code.place(end);
+    }
+
+    private void whileStatement(StatementNode.While node) {
+        ClassFileWriter.Label top = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        if (!wide) {
+            code.place(top);
+            int start = code.position();
+            jumpIfFalse(node.condition, end);
+            catchOverflow(node, start);
+            statement(node.body);
+            code.jump(ClassFileWriter.Code.GOTO, top);
+            code.place(end);
+            return;
+        }
+
+        // A counted loop (see ValueBounds.counted) just goes round: its variables can't leave
+        // a long, and the ones that outgrow an int are longs after it
+        ValueBounds.Strip counted = loopDepth == 0 ? valueBounds.counted(node, bounds) : null;
+        if (counted != null) {
+            bounds = counted.bounds.clone();
+            code.place(top);
+            int start = code.position();
+            jumpIfFalse(node.condition, end);
+            catchOverflow(node, start);
+            ValueBounds.refine(node.condition, true, bounds);
+            loopDepth++;
+            statement(node.body);
+            loopDepth--;
+            code.jump(ClassFileWriter.Code.GOTO, top);
+            code.place(end);
+            bounds = counted.bounds.clone();
+            ValueBounds.refine(node.condition, false, bounds);
+            return;
+        }
+
+        // The loop's strips start from ints: a variable that may not be one is checked on the
+        // way in and at the end of every strip, and the loop goes to the interpreter if it isn't
+        ValueBounds.Strip strip = valueBounds.strip(node);
+        int counter = strip.iterations > 0 ? newCounter() : -1;
+        // A new strip starts at its own label (see addTraceMethod)
+        ClassFileWriter.Label nextStrip = new ClassFileWriter.Label();
+        int start = code.position();
+        checkInts();
+        code.place(nextStrip);
+        if (counter >= 0) {
+            code.op(ClassFileWriter.Code.ICONST_0);
+            code.local(ClassFileWriter.Code.ISTORE, counter);
+        }
+        ValueBounds.Range[] entered = valueBounds.entered(node, bounds);
+        bounds = entered.clone();
+        code.place(top);
+        jumpIfFalse(node.condition, end);
+        catchOverflow(node, start);
+        ValueBounds.refine(node.condition, true, bounds);
+        loopDepth++;
+        statement(node.body);
+        loopDepth--;
+        if (counter >= 0) {
+            countIteration(counter, strip.iterations, top);
+            start = code.position();
+            checkInts();
+            catchOverflow(node, start);
+            code.jump(ClassFileWriter.Code.GOTO, nextStrip);
+            nextCounter--;
+        } else {
+            code.jump(ClassFileWriter.Code.GOTO, top);
+        }
+        code.place(end);
+        bounds = entered;
+        ValueBounds.refine(node.condition, false, bounds);
+    }
+
+    // Math.toIntExact on every variable that may not be an int (and is checked again, with
+    // Numbers on); after that they are all ints
+    private void checkInts() {
+        for (int slot = 0; slot < bounds.length; slot++) {
+            if (longs[slot] && !bounds[slot].isInt()) {
+                load(slot);
+                code.op(ClassFileWriter.Code.INVOKESTATIC, cw.methodRef("java/lang/Math", "toIntExact", "(J)I"));
+                code.op(ClassFileWriter.Code.POP);
+            }
+        }
+    }
+
+    // The end of an iteration of a strip: count it in counter (which starts at 0) and go back
+    // to head until there were length. Counting up to a constant, the JVM sees the strip as
+    // a counted loop and unrolls it
+    private void countIteration(int counter, int length, ClassFileWriter.Label head) {
+        code.local(ClassFileWriter.Code.ILOAD, counter);
+        code.op(ClassFileWriter.Code.ICONST_1);
+        code.op(ClassFileWriter.Code.IADD);
+        code.op(ClassFileWriter.Code.DUP);
+        code.local(ClassFileWriter.Code.ISTORE, counter);
+        code.pushInt(cw, length);
+        code.jump(ClassFileWriter.Code.IF_ICMPLT, head);
+    }
+
+    // A local for the strip counter of a loop, until the loop's code is done (nextCounter--)
+    private int newCounter() {
+        int counter = nextCounter++;
+        code.maxLocals = Math.max(code.maxLocals, nextCounter);
+        return counter;
+    }
+
+    // A condition that is a comparison jumps on the comparison directly, without making a 0/1 first
+    private void jumpIfFalse(ExpressionNode condition, ClassFileWriter.Label target) {
+        if (condition instanceof ExpressionNode.Binary && Parser.isComparison(((ExpressionNode.Binary) condition).op)) {
+            ExpressionNode.Binary comparison = (ExpressionNode.Binary) condition;
+            compareJump(comparison.left, negate(comparison.op), comparison.right, target);
+        } else {
+            zeroJump(condition, ClassFileWriter.Code.IFEQ, target);
+        }
+    }
+
+    private void jumpIfTrue(ExpressionNode condition, ClassFileWriter.Label target) {
+        if (condition instanceof ExpressionNode.Binary && Parser.isComparison(((ExpressionNode.Binary) condition).op)) {
+            ExpressionNode.Binary comparison = (ExpressionNode.Binary) condition;
+            compareJump(comparison.left, comparison.op, comparison.right, target);
+        } else {
+            zeroJump(condition, ClassFileWriter.Code.IFNE, target);
+        }
+    }
+
+    // Jump to target if left op right: on ints where both are ints
+    private void compareJump(ExpressionNode left, TokenType op, ExpressionNode right, ClassFileWriter.Label target) {
+        if (fitsInt(ValueBounds.of(left, bounds)) && fitsInt(ValueBounds.of(right, bounds))) {
+            expression(left, true);
+            expression(right, true);
+            code.jump(intCompareJump(op), target);
+        } else {
+            expression(left, false);
+            expression(right, false);
+            code.op(ClassFileWriter.Code.LCMP);
+            code.jump(longCompareJump(op), target);
+        }
+    }
+
+    // Jump to target if value compared with 0 is what ifInstruction (IFEQ, IFNE) asks for
+    private void zeroJump(ExpressionNode value, int ifInstruction, ClassFileWriter.Label target) {
+        boolean isInt = fitsInt(ValueBounds.of(value, bounds));
+        expression(value, isInt);
+        if (!isInt) {
+            code.op(ClassFileWriter.Code.LCONST_0);
+            code.op(ClassFileWriter.Code.LCMP);
+        }
+        code.jump(ifInstruction, target);
+    }
+
+    // ---------------------------------
+    // Expressions
+    // ---------------------------------
+
+    // Whether a value in range can be an int in the code: with Numbers off every value is
+    private boolean fitsInt(ValueBounds.Range range) {
+        return !wide || range.isInt();
+    }
+
+    // Push node's value: an int if asInt (where its range is an int, see fitsInt), else a long
+    private void expression(ExpressionNode node, boolean asInt) {
+        if (node instanceof ExpressionNode.Constant) {
+            pushValue(((ExpressionNode.Constant) node).value, asInt);
+        } else if (node instanceof ExpressionNode.Literal) {
+            literal((ExpressionNode.Literal) node, asInt);
+        } else if (node instanceof ExpressionNode.Read) {
+            int slot = ((ExpressionNode.Read) node).slot;
+            load(slot);
+            convert(longs[slot], asInt);
+        } else if (node instanceof ExpressionNode.Fail) {
+            throwNew(RUNTIME_EXCEPTION, ((ExpressionNode.Fail) node).message);
+        } else if (node instanceof ExpressionNode.Binary) {
+            binary((ExpressionNode.Binary) node, asInt);
+        } else {
+            throw new IllegalStateException("Unknown expression node: " + node);
+        }
+    }
+
+    // A long (isLong) or an int on the stack, as an int if asInt (it is one then) or a long
+    private void convert(boolean isLong, boolean asInt) {
+        if (isLong && asInt) {
+            code.op(ClassFileWriter.Code.L2I);
+        } else if (!isLong && !asInt) {
+            code.op(ClassFileWriter.Code.I2L);
+        }
+    }
+
+    private void pushValue(int value, boolean asInt) {
+        if (asInt) {
+            code.pushInt(cw, value);
+        } else if (value == 0) {
+            code.op(ClassFileWriter.Code.LCONST_0);
+        } else if (value == 1) {
+            code.op(ClassFileWriter.Code.LCONST_1);
+        } else {
+            code.pushInt(cw, value);
+            code.op(ClassFileWriter.Code.I2L);
+        }
+    }
+
+    // Numbers are parsed now; one that doesn't fit in an int is an overflow when it's reached
+    // (a NumberFormatException with Numbers off)
+    private void literal(ExpressionNode.Literal node, boolean asInt) {
+        try {
+            pushValue(Integer.parseInt(node.text), asInt);
+        } catch (NumberFormatException e) {
+            if (Numbers.ENABLED) {
+                throwNew(ARITHMETIC_EXCEPTION, "integer overflow");
+                return;
+            }
+            code.ldc(cw.string(node.text));
+            code.op(ClassFileWriter.Code.INVOKESTATIC, cw.methodRef("java/lang/Integer", "parseInt", "(Ljava/lang/String;)I"));
+        }
+    }
+
+    private void binary(ExpressionNode.Binary node, boolean asInt) {
+        if (Parser.isComparison(node.op)) {
+            // => 1 or 0
+            ClassFileWriter.Label isTrue = new ClassFileWriter.Label();
+            ClassFileWriter.Label end = new ClassFileWriter.Label();
+            compareJump(node.left, node.op, node.right, isTrue);
+            pushValue(0, asInt);
+            code.jump(ClassFileWriter.Code.GOTO, end);
+            code.place(isTrue);
+            pushValue(1, asInt);
+            code.place(end);
+            return;
+        }
+
+        // On ints when the operands and the result are (so nothing overflows), else on longs,
+        // checked only where the result could leave a long
+        ValueBounds.Range result = ValueBounds.of(node, bounds);
+        boolean onInts = fitsInt(ValueBounds.of(node.left, bounds)) && fitsInt(ValueBounds.of(node.right, bounds)) && fitsInt(result);
+        boolean checked = !onInts && !result.isLong();
+        expression(node.left, onInts);
+        expression(node.right, onInts);
+        switch (node.op) {
+            case PLUS:  arithmetic(onInts, ClassFileWriter.Code.IADD, ClassFileWriter.Code.LADD, "addExact", checked); break;
+            case MINUS: arithmetic(onInts, ClassFileWriter.Code.ISUB, ClassFileWriter.Code.LSUB, "subtractExact", checked); break;
+            case STAR:  arithmetic(onInts, ClassFileWriter.Code.IMUL, ClassFileWriter.Code.LMUL, "multiplyExact", checked); break;
+            case SLASH:
+                checkNotZero("Division by zero.", onInts);
+                if (checked) {
+                    checkedDivide();
+                } else {
+                    code.op(onInts ? ClassFileWriter.Code.IDIV : ClassFileWriter.Code.LDIV);
+                }
+                break;
+            case MOD:
+                checkNotZero("Modulo by zero.", onInts);
+                code.op(onInts ? ClassFileWriter.Code.IREM : ClassFileWriter.Code.LREM);
+                break;
+            default:
+                throw new IllegalStateException("Unknown operator: " + node.op);
+        }
+        convert(!onInts, asInt);
+    }
+
+    // Math.addExact & co. on longs (ArithmeticException when the result doesn't fit) if
+    // checked, else the plain instruction
+    private void arithmetic(boolean onInts, int intInstruction, int longInstruction, String exactMethod, boolean checked) {
+        if (checked) {
+            code.op(ClassFileWriter.Code.INVOKESTATIC, cw.methodRef("java/lang/Math", exactMethod, "(JJ)J"));
+        } else {
+            code.op(onInts ? intInstruction : longInstruction);
+        }
+    }
+
+    // left / right on longs, where Long.MIN_VALUE / -1 is an ArithmeticException: x / -1 is Math.negateExact(x)
+    private void checkedDivide() {
+        ClassFileWriter.Label divide = new ClassFileWriter.Label();
+        ClassFileWriter.Label end = new ClassFileWriter.Label();
+        code.op(ClassFileWriter.Code.DUP2);
+        pushValue(-1, false);
+        code.op(ClassFileWriter.Code.LCMP);
+        code.jump(ClassFileWriter.Code.IFNE, divide);
+        code.op(ClassFileWriter.Code.POP2);
+        code.op(ClassFileWriter.Code.INVOKESTATIC, cw.methodRef("java/lang/Math", "negateExact", "(J)J"));
+        code.jump(ClassFileWriter.Code.GOTO, end);
+        code.place(divide);
+        code.op(ClassFileWriter.Code.LDIV);
+        code.place(end);
+    }
+
+    // With the right operand (an int if onInts, else a long) on top of the stack: throw if it is 0
+    private void checkNotZero(String message, boolean onInts) {
+        ClassFileWriter.Label ok = new ClassFileWriter.Label();
+        if (onInts) {
+            code.op(ClassFileWriter.Code.DUP);
+        } else {
+            code.op(ClassFileWriter.Code.DUP2);
+            code.op(ClassFileWriter.Code.LCONST_0);
+            code.op(ClassFileWriter.Code.LCMP);
+        }
+        code.jump(ClassFileWriter.Code.IFNE, ok);
+        throwNew(RUNTIME_EXCEPTION, message);
+        code.place(ok);
+    }
+
+    // throw new <exceptionClass>(message)
+    private void throwNew(String exceptionClass, String message) {
+        code.op(ClassFileWriter.Code.NEW, cw.classRef(exceptionClass));
+        code.op(ClassFileWriter.Code.DUP);
+        code.ldc(cw.string(message));
+        code.op(ClassFileWriter.Code.INVOKESPECIAL, cw.methodRef(exceptionClass, "<init>", "(Ljava/lang/String;)V"));
+        code.op(ClassFileWriter.Code.ATHROW);
+    }
+
+    private static TokenType negate(TokenType op) {
+        switch (op) {
+            case EQEQ: return TokenType.NEQ;
+            case NEQ:  return TokenType.EQEQ;
+            case GT:   return TokenType.LTE;
+            case GTE:  return TokenType.LT;
+            case LT:   return TokenType.GTE;
+            case LTE:  return TokenType.GT;
+            default:
+                throw new IllegalArgumentException("Not a comparison: " + op);
+        }
+    }
+
+    private static int intCompareJump(TokenType op) {
+        switch (op) {
+            case EQEQ: return ClassFileWriter.Code.IF_ICMPEQ;
+            case NEQ:  return ClassFileWriter.Code.IF_ICMPNE;
+            case GT:   return ClassFileWriter.Code.IF_ICMPGT;
+            case GTE:  return ClassFileWriter.Code.IF_ICMPGE;
+            case LT:   return ClassFileWriter.Code.IF_ICMPLT;
+            case LTE:  return ClassFileWriter.Code.IF_ICMPLE;
+            default:
+                throw new IllegalArgumentException("Not a comparison: " + op);
+        }
+    }
+
+    // After LCMP: the result compared with 0
+    private static int longCompareJump(TokenType op) {
+        switch (op) {
+            case EQEQ: return ClassFileWriter.Code.IFEQ;
+            case NEQ:  return ClassFileWriter.Code.IFNE;
+            case GT:   return ClassFileWriter.Code.IFGT;
+            case GTE:  return ClassFileWriter.Code.IFGE;
+            case LT:   return ClassFileWriter.Code.IFLT;
+            case LTE:  return ClassFileWriter.Code.IFLE;
+            default:
+                throw new IllegalArgumentException("Not a comparison: " + op);
+        }
+    }
+}
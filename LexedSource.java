@@ -0,0 +1,20 @@
+import java.util.List;
+
+/**
+ LexedSource: a whole source lexed, with the leading spaces of every line counted in the
+ same pass (ParallelLexer, MappedLexer). lines() gives what splitIntoIndentedLines gives
+ for the same source, without going over its text again.
+ */
+final class LexedSource {
+    final TokenBuffer tokens;
+    final int[] indents; // one more than the source has '\n's
+
+    LexedSource(TokenBuffer tokens, int[] indents) {
+        this.tokens = tokens;
+        this.indents = indents;
+    }
+
+    List<Interpreter.Line> lines() {
+        return Interpreter.splitIntoIndentedLines(tokens, indents);
+    }
+}
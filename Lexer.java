@@ -1,5 +1,4 @@
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  what does lexer class do?
@@ -7,12 +6,21 @@ import java.util.List;
 
  It recognizes keywords (if, else, while, print), operators (+, -, *, etc.),
  identifiers, numbers, colons, and so forth.
+ The tokens go into a TokenBuffer as (type, start, length) entries; no token
+ text is copied out of the source while lexing.
+ No token crosses a newline, so a Lexer can also take just a range of lines of the
+ source (see ParallelLexer).
  */
 class Lexer {
     private final String source;  // This takes entire code as a single string
-    private final int length;     // The total size of our input
+    private final int length;     // Where our input ends (the size of the source, unless we lex a range)
     private int current = 0;      // Index tracking our position in source
-    private List<Token> tokens = new ArrayList<>(); // Accumulates identified tokens
+    private int start = 0;        // Index where the token being scanned starts
+    private final TokenBuffer tokens; // Accumulates identified tokens
+
+    // Leading spaces of every line that starts in our range, when lexing a range
+    private int[] indents;
+    private int lineCount = 0;
 
     /**
      Construct a Lexer for the given source code.
@@ -20,43 +28,81 @@ class Lexer {
     Lexer(String source) {
         this.source = source;
         this.length = source.length();
+        // Typical code has about one token per 4 characters
+        this.tokens = new TokenBuffer(source, length / 4);
+    }
+
+    /**
+     A Lexer for the characters of source from up to (not including) to, where from is 0
+     or just after a '\n', and to is the end of the source or just after a '\n'.
+     */
+    Lexer(String source, int from, int to) {
+        this.source = source;
+        this.length = to;
+        this.current = from;
+        this.tokens = new TokenBuffer(source, (to - from) / 4);
+        this.indents = new int[Math.max(16, (to - from) / 16)];
     }
 
     /**
      Main method to scan through the source and build a list of tokens.
      */
-    public List<Token> tokenize() {
+    public TokenBuffer tokenize() {
+        scan();
+        // Add an end-of-file token so the interpreter knows we're done
+        start = current;
+        addToken(TokenType.EOF);
+        return tokens;
+    }
+
+    /**
+     The tokens of our range of lines, without an EOF. indents() then has the leading
+     spaces of every line that starts in the range: as many as it has '\n's, plus the
+     line after the last one if the range is at the end of the source.
+     */
+    TokenBuffer tokenizeRange() {
+        indent();
+        scan();
+        return tokens;
+    }
+
+    int[] indents() {
+        return Arrays.copyOf(indents, lineCount);
+    }
+
+    private void scan() {
         // We read character by character until end
         while (!isAtEnd()) {
+            start = current;
             char c = advance();
             switch (c) {
-                case '+': addToken(TokenType.PLUS, "+"); break;
-                case '-': addToken(TokenType.MINUS, "-"); break;
-                case '*': addToken(TokenType.STAR, "*"); break;
-                case '/': addToken(TokenType.SLASH, "/"); break;
-                case '%': addToken(TokenType.MOD, "%"); break;
+                case '+': addToken(TokenType.PLUS); break;
+                case '-': addToken(TokenType.MINUS); break;
+                case '*': addToken(TokenType.STAR); break;
+                case '/': addToken(TokenType.SLASH); break;
+                case '%': addToken(TokenType.MOD); break;
 
                 // Parentheses for expressions/print calls
                 case '(':
-                    addToken(TokenType.LPAREN, "(");
+                    addToken(TokenType.LPAREN);
                     break;
                 case ')':
-                    addToken(TokenType.RPAREN, ")");
+                    addToken(TokenType.RPAREN);
                     break;
 
                 // '=' can be assignment or '==' compare
                 case '=':
                     if (match('=')) {
-                        addToken(TokenType.EQEQ, "==");
+                        addToken(TokenType.EQEQ);
                     } else {
-                        addToken(TokenType.EQ, "=");
+                        addToken(TokenType.EQ);
                     }
                     break;
 
                 // '!' might be !=
                 case '!':
                     if (match('=')) {
-                        addToken(TokenType.NEQ, "!=");
+                        addToken(TokenType.NEQ);
                     }
                     // If it's just '!', ignoring for now
                     break;
@@ -64,23 +110,23 @@ class Lexer {
                 // '>' can be > or >=
                 case '>':
                     if (match('=')) {
-                        addToken(TokenType.GTE, ">=");
+                        addToken(TokenType.GTE);
                     } else {
-                        addToken(TokenType.GT, ">");
+                        addToken(TokenType.GT);
                     }
                     break;
 
                 // '<' can be < or <=
                 case '<':
                     if (match('=')) {
-                        addToken(TokenType.LTE, "<=");
+                        addToken(TokenType.LTE);
                     } else {
-                        addToken(TokenType.LT, "<");
+                        addToken(TokenType.LT);
                     }
                     break;
 
                 case ':':
-                    addToken(TokenType.COLON, ":");
+                    addToken(TokenType.COLON);
                     break;
 
                 // # => comment, skip until newline
@@ -92,7 +138,10 @@ class Lexer {
 
                 // End of line => NEWLINE token
                 case '\n':
-                    addToken(TokenType.NEWLINE, "\\n");
+                    addToken(TokenType.NEWLINE);
+                    if (indents != null && (!isAtEnd() || length == source.length())) {
+                        indent();
+                    }
                     break;
 
                 // Whitespace we just skip (except newline)
@@ -104,11 +153,11 @@ class Lexer {
                 // If it's a digit, parse a multi-digit number
                 default:
                     if (isDigit(c)) {
-                        number(c);
+                        number();
                     }
                     // If it's an alpha char, parse an identifier
                     else if (isAlpha(c)) {
-                        identifier(c);
+                        identifier();
                     } else {
                         // If it's something unrecognized throws an exception
                         throw new RuntimeException("Unexpected character: " + c);
@@ -116,10 +165,19 @@ class Lexer {
                     break;
             }
         }
+    }
 
-        // Add an end-of-file token so the interpreter knows we're done
-        addToken(TokenType.EOF, "");
-        return tokens;
+    // At the start of a line: skip its leading spaces, and keep their count
+    private void indent() {
+        int count = 0;
+        while (!isAtEnd() && source.charAt(current) == ' ') {
+            current++;
+            count++;
+        }
+        if (lineCount == indents.length) {
+            indents = Arrays.copyOf(indents, lineCount * 2);
+        }
+        indents[lineCount++] = count;
     }
 
     // Check if we've reached the end of the source
@@ -140,9 +198,9 @@ class Lexer {
         return true;
     }
 
-    // Add a Token of a given type and text to our list
-    private void addToken(TokenType type, String text) {
-        tokens.add(new Token(type, text));
+    // Add a token of the given type, spanning from start to current
+    private void addToken(TokenType type) {
+        tokens.add(type, start, current - start);
     }
 
     // Look at the next character but don't consume it
@@ -157,14 +215,11 @@ class Lexer {
     }
 
     // Keep reading digits for multi-digit numbers
-    private void number(char firstChar) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(firstChar);
-
+    private void number() {
         while (!isAtEnd() && isDigit(peek())) {
-            sb.append(advance());
+            advance();
         }
-        addToken(TokenType.NUMBER, sb.toString());
+        addToken(TokenType.NUMBER);
     }
 
     // Check if character is a letter or underscore
@@ -179,29 +234,57 @@ class Lexer {
         return isAlpha(c) || isDigit(c);
     }
 
-    // Parse an identifier (or keyword) from the source
-    private void identifier(char firstChar) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(firstChar);
-
+    // Parse an identifier (or keyword) from the source, hashing it on the way
+    private void identifier() {
+        int hash = source.charAt(start);
         while (!isAtEnd() && isAlphaNumeric(peek())) {
-            sb.append(advance());
+            hash = 31 * hash + advance();
+        }
+
+        TokenType keyword = keyword(source, start, current - start);
+        if (keyword != null) {
+            addToken(keyword);
+        } else {
+            tokens.addIdentifier(start, current - start, hash);
         }
-        String text = sb.toString();
+    }
+
+    // 'if', 'else', 'while' and 'print', at (first character + length) & 7, which is
+    // different for each of them: a perfect hash
+    private static final String[] KEYWORDS = new String[8];
+    private static final TokenType[] KEYWORD_TYPES = new TokenType[8];
 
-        // If it matches a known keyword, update token type
-        TokenType type = checkKeyword(text);
-        addToken(type, text);
+    static {
+        addKeyword("if", TokenType.IF);
+        addKeyword("else", TokenType.ELSE);
+        addKeyword("while", TokenType.WHILE);
+        addKeyword("print", TokenType.PRINT);
+    }
+
+    private static void addKeyword(String word, TokenType type) {
+        int slot = (word.charAt(0) + word.length()) & 7;
+        if (KEYWORDS[slot] != null) {
+            throw new IllegalStateException("Keywords " + KEYWORDS[slot] + " and " + word + " have the same hash");
+        }
+        KEYWORDS[slot] = word;
+        KEYWORD_TYPES[slot] = type;
     }
 
-    // Check for 'if', 'else', 'while', 'print' or default to IDENT
-    private TokenType checkKeyword(String text) {
-        switch (text) {
-            case "if":    return TokenType.IF;
-            case "else":  return TokenType.ELSE;
-            case "while": return TokenType.WHILE;
-            case "print": return TokenType.PRINT;
-            default:      return TokenType.IDENT;
+    /**
+     The keyword that source[start, start + length) is, or null for an identifier. There is
+     only one keyword it can be, so it is compared with that one only, in place.
+     */
+    static TokenType keyword(CharSequence source, int start, int length) {
+        int slot = (source.charAt(start) + length) & 7;
+        String word = KEYWORDS[slot];
+        if (word == null || word.length() != length) {
+            return null;
+        }
+        for (int k = 0; k < length; k++) {
+            if (source.charAt(start + k) != word.charAt(k)) {
+                return null;
+            }
         }
+        return KEYWORD_TYPES[slot];
     }
-}
\ No newline at end of file
+}
@@ -1,165 +1,250 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 
+/**
+ Main: the command line.
+
+     java -jar py2java-interpreter.jar [--vm | --jvm] script.py
+     java -jar py2java-interpreter.jar [--vm | --jvm] --batch=DIR [--threads=N] [--json]
+     java -jar py2java-interpreter.jar --stream < script.py
+     java -jar py2java-interpreter.jar [--vm | --jvm] --examples
+
+ A script file runs on the tree interpreter, or on the bytecode VirtualMachine with "--vm"
+ (not faster than the tree, see there), or compiled to a JVM class first with "--jvm"
+ (JvmCompiler; one too big for a class file runs on the tree). Its output goes to standard
+ output; an error ends it with "Error: ..." on standard error and exit code 1, a bad
+ command line with the usage and exit code 2.
+
+ "--stream" runs the script on standard input instead, starting while it is still being
+ read (StreamingInterpreter). "--batch=DIR" runs every file in DIR, in parallel, and
+ prints each one's output in order and then a summary (see BatchRunner); DIR can also be a
+ glob, quoted: --batch='jobs/**.py'. "--threads=N" sets how many run at once, "--json"
+ prints one JSON object per file. "--examples" runs the sample programs (Examples), each
+ printed before its output.
+
+ "--profile" prints the hottest lines after a script or each example ran on the tree
+ interpreter (the only engine it works with) (a script's to standard error, so its output stays as it is), and
+ "--flamegraph=FILE" writes their stacks to FILE for flamegraph.pl and friends (see
+ Profiler).
+
+ Startup: a short script spends most of its time starting the JVM, so nothing here is set
+ up before it is needed. Every command only loads the classes it uses (a script on the tree
+ interpreter doesn't touch the VM, the JvmCompiler, the BatchRunner or the Profiler), and
+ Telemetry leaves JFR alone unless it is running. On top of that, "mvn -Pcds package"
+ writes an AppCDS archive from a training run next to the jar, which the JVM maps instead
+ of loading and verifying those classes again:
+
+     java -XX:SharedArchiveFile=target/py2java-interpreter.jsa -jar target/py2java-interpreter-1.0-SNAPSHOT.jar script.py
+
+ Benchmark.measureStartup measures the time to the first output of a one-line script.
+ */
 public class Main {
-    /**
-     * Main class: Entry point for testing our Python-like interpreter.
-     *
-     * We feed various code snippets to our lexer + interpreter and
-     * observe the results in the console.
-     */
-    public static void main(String[] args) {
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java Main [--vm | --jvm] script.py",
+            "       java Main [--profile] [--flamegraph=FILE] script.py",
+            "       java Main [--vm | --jvm] --batch=DIR [--threads=N] [--json]",
+            "       java Main --stream < script.py",
+            "       java Main [--vm | --jvm] --examples",
+            "       java Main [--profile] [--flamegraph=FILE] --examples");
+
+    // Which engine runs the script (or the examples, or the batch): "tree" (default), "vm" or "jvm"
+    private static String engine = "tree";
+
+    // --profile: print the hottest lines; --flamegraph=FILE: write collapsed stacks
+    private static boolean profile = false;
+    private static Path flamegraphFile = null;
+    private static final StringBuilder collapsedStacks = new StringBuilder();
+
+    // --batch=DIR_OR_GLOB: run those files (see BatchRunner)
+    private static String batch = null;
+    private static boolean json = false;
+    private static int threads = 0; // 0: one per core
+
+    public static void main(String[] args) throws IOException {
+        boolean stream = false;
+        boolean examples = false;
+        String script = null;
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                engine = "vm";
+            } else if (arg.equals("--jvm")) {
+                engine = "jvm";
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.equals("--examples")) {
+                examples = true;
+            } else if (arg.equals("--profile")) {
+                profile = true;
+            } else if (arg.startsWith("--flamegraph=")) {
+                flamegraphFile = Path.of(arg.substring("--flamegraph=".length()));
+            } else if (arg.startsWith("--batch=")) {
+                batch = arg.substring("--batch=".length());
+            } else if (arg.equals("--json")) {
+                json = true;
+            } else if (arg.startsWith("--threads=")) {
+                try {
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                } catch (NumberFormatException e) {
+                    usage("Bad thread count: " + arg);
+                }
+            } else if (arg.startsWith("-") || script != null) {
+                usage("Unknown argument: " + arg);
+            } else {
+                script = arg;
+            }
+        }
+        int commands = (stream ? 1 : 0) + (examples ? 1 : 0) + (batch != null ? 1 : 0) + (script != null ? 1 : 0);
+        if (commands != 1) {
+            usage(commands == 0 ? null : "Give one of a script, --stream, --batch or --examples");
+        }
+        if ((profile || flamegraphFile != null) && (!engine.equals("tree") || stream || batch != null)) {
+            // Only the tree interpreter reports to a Profiler
+            usage("--profile and --flamegraph only work for a script or --examples on the tree interpreter");
+        }
+
+        if (stream) {
+            new StreamingInterpreter(System.in).run();
+        } else if (batch != null) {
+            runBatch();
+        } else if (examples) {
+            runExamples();
+        } else {
+            runScript(Path.of(script));
+        }
+        if (flamegraphFile != null) {
+            Files.writeString(flamegraphFile, collapsedStacks);
+        }
+    }
+
+    private static void usage(String problem) {
+        if (problem != null) {
+            System.err.println(problem);
+        }
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+
+    // ---------------------------------
+    // A script file
+    // ---------------------------------
+
+    private static void runScript(Path file) {
+        try {
+            if (engine.equals("tree") && !profile && flamegraphFile == null) {
+                // Lexed straight from the mapped file (MappedLexer), no String of it is made
+                CompiledProgram.compile(file).run(OutputSink.systemOut());
+            } else {
+                run(file.getFileName().toString(), Files.readString(file),
+                        Profiler.DEFAULT_SAMPLE_INTERVAL_NANOS, System.err);
+            }
+        } catch (IOException e) {
+            fail("Can't read " + file + ": " + e.getMessage());
+        } catch (RuntimeException | StackOverflowError e) {
+            fail(e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    private static void fail(String error) {
+        System.out.flush();
+        System.err.println("Error: " + error);
+        System.exit(1);
+    }
+
+    // ---------------------------------
+    // --batch
+    // ---------------------------------
+
+    private static void runBatch() throws IOException {
+        int threadCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        List<BatchRunner.Result> results = new BatchRunner(engine, threadCount, json)
+                .run(BatchRunner.scripts(batch), System.out, System.err);
+        if (results.stream().anyMatch(BatchRunner.Result::failed)) {
+            System.exit(1);
+        }
+    }
+
+    // ---------------------------------
+    // --examples
+    // ---------------------------------
+
+    private static void runExamples() {
         // 1) Basic arithmetic snippet
-        String snippet1 = ""
-                + "x = 5\n"
-                + "y = 10\n"
-                + "z = x + y\n"
-                + "print(z)\n"
-                + "z = z * 2\n"
-                + "print(z)\n";
-        runSnippet("Basic arithmetic", snippet1);
+        runSnippet("Basic arithmetic", Examples.basicArithmetic());
 
         // 2) Sum of First N Numbers (N=10)
-        String sumOfN = ""
-                + "N = 10\n"
-                + "sum = 0\n"
-                + "i = 1\n"
-                + "while i <= N:\n"
-                + "    sum = sum + i\n"
-                + "    i = i + 1\n"
-                + "print(sum)\n";
-        runSnippet("Sum of N = 10", sumOfN);
+        runSnippet("Sum of N = 10", Examples.sumOfN(10));
 
         // 3) Factorial of N (N=5)
-        String factorial = ""
-                + "N = 5\n"
-                + "fact = 1\n"
-                + "i = 1\n"
-                + "while i <= N:\n"
-                + "    fact = fact * i\n"
-                + "    i = i + 1\n"
-                + "print(fact)\n";
-        runSnippet("Factorial of N=5", factorial);
+        runSnippet("Factorial of N=5", Examples.factorial(5));
 
         // 4) GCD of two numbers (48, 18)
-        String gcd = ""
-                + "a = 48\n"
-                + "b = 18\n"
-                + "while b != 0:\n"
-                + "    temp = b\n"
-                + "    b = a % b\n"
-                + "    a = temp\n"
-                + "print(a)\n";
-        runSnippet("GCD(48,18)", gcd);
+        runSnippet("GCD(48,18)", Examples.gcd(48, 18));
 
         // 5) Reverse a number (1234 => 4321)
-        String reverseNumber = ""
-                + "n = 1234\n"
-                + "rev = 0\n"
-                + "while n > 0:\n"
-                + "    digit = n % 10\n"
-                + "    rev = rev * 10 + digit\n"
-                + "    n = n / 10\n"
-                + "print(rev)\n";
-        runSnippet("Reverse Number 1234", reverseNumber);
+        runSnippet("Reverse Number 1234", Examples.reverseNumber(1234));
 
 
         // ---------- NEW TESTS ----------
 
         // 5. Check if a Number is Prime (N=13 => let's print 1 for True, 0 for False)
-        String primeTest = ""
-                + "N = 13\n"
-                + "i = 2\n"
-                + "flag = 1\n"
-                + "while i < N:\n"
-                + "    if N % i == 0:\n"
-                + "        flag = 0\n"
-                + "    i = i + 1\n"
-                + "if flag == 1:\n"
-                + "    print(1)\n"
-                + "else:\n"
-                + "    print(0)\n";
-        runSnippet("Check if 13 is Prime", primeTest);
+        runSnippet("Check if 13 is Prime", Examples.primeTest(13));
 
         // 6. Check if a Number is Palindrome (121 => 1 for True, else 0)
-        String palindromeTest = ""
-                + "n = 121\n"
-                + "temp = n\n"
-                + "rev = 0\n"
-                + "while temp > 0:\n"
-                + "    digit = temp % 10\n"
-                + "    rev = rev * 10 + digit\n"
-                + "    temp = temp / 10\n"
-                + "if rev == n:\n"
-                + "    print(1)\n"
-                + "else:\n"
-                + "    print(0)\n";
-        runSnippet("Palindrome check of 121", palindromeTest);
+        runSnippet("Palindrome check of 121", Examples.palindromeTest(121));
 
         // 7. Find the Largest Digit in a Number (3947 => 9)
-        String largestDigit = ""
-                + "n = 3947\n"
-                + "largest = 0\n"
-                + "while n > 0:\n"
-                + "    digit = n % 10\n"
-                + "    if digit > largest:\n"
-                + "        largest = digit\n"
-                + "    n = n / 10\n"
-                + "print(largest)\n";
-        runSnippet("Largest digit in 3947", largestDigit);
+        runSnippet("Largest digit in 3947", Examples.largestDigit(3947));
 
         // 8. Sum of Digits (1234 => 10)
-        String sumOfDigits = ""
-                + "n = 1234\n"
-                + "sum = 0\n"
-                + "while n > 0:\n"
-                + "    digit = n % 10\n"
-                + "    sum = sum + digit\n"
-                + "    n = n / 10\n"
-                + "print(sum)\n";
-        runSnippet("Sum of digits in 1234", sumOfDigits);
+        runSnippet("Sum of digits in 1234", Examples.sumOfDigits(1234));
 
         // 9. Multiplication Table (5 => 5,10,15,20,...,50)
-        String multiplicationTable = ""
-                + "N = 5\n"
-                + "i = 1\n"
-                + "while i <= 10:\n"
-                + "    print(N * i)\n"
-                + "    i = i + 1\n";
-        runSnippet("Multiplication table of 5", multiplicationTable);
+        runSnippet("Multiplication table of 5", Examples.multiplicationTable(5, 10));
 
         // 10. Nth Fibonacci Number (N=10 => 34)
-        // We'll do an iterative approach because recursive is not implemented in interpreter and is not in our task
-        String nthFibonacci = ""
-                + "N = 10\n"
-                + "if N == 0:\n"
-                + "    print(0)\n"
-                + "else:\n"
-                + "    a = 0\n"
-                + "    b = 1\n"
-                + "    i = 2\n"
-                + "    while i <= N:\n"
-                + "        c = a + b\n"
-                + "        a = b\n"
-                + "        b = c\n"
-                + "        i = i + 1\n"
-                + "    print(b)\n";
-        runSnippet("10th Fibonacci number", nthFibonacci);
+        runSnippet("10th Fibonacci number", Examples.nthFibonacci(10));
     }
 
     private static void runSnippet(String title, String sourceCode) {
         System.out.println("----- " + title + " -----");
         System.out.println("Source Code:\n" + sourceCode);
+        // The snippets are too short to sample, so the profiler times every statement
+        run(title, sourceCode, 0, System.out);
+        System.out.println();
+    }
 
+    /**
+     Run sourceCode on the chosen engine, printing to System.out. With --profile or
+     --flamegraph it runs under a Profiler sampling every sampleIntervalNanos (0: timing
+     every statement), and the profile goes to report.
+     */
+    private static void run(String title, String sourceCode, long sampleIntervalNanos, PrintStream report) {
         Lexer lexer = new Lexer(sourceCode);
-        List<Token> tokens = lexer.tokenize();
-
-        // Optional debug:
-        // for (Token t : tokens) {
-        //    System.out.println(t);
-        // }
-
-        Interpreter interpreter = new Interpreter(tokens, sourceCode);
-        interpreter.interpret();
-        System.out.println();
+        TokenBuffer tokens = lexer.tokenize();
+        switch (engine) {
+            case "vm":
+                new VirtualMachine(BytecodeCompiler.compile(tokens, sourceCode)).run();
+                break;
+            case "jvm":
+                JvmCompiler.compileOrInterpret(tokens, sourceCode).run();
+                break;
+            default:
+                if (profile || flamegraphFile != null) {
+                    Profiler profiler = new Profiler(sourceCode, sampleIntervalNanos);
+                    CompiledProgram.compile(tokens, sourceCode).run(OutputSink.systemOut(), profiler);
+                    if (profile) {
+                        report.println("Profile:");
+                        report.print(profiler.report(10));
+                    }
+                    profiler.writeCollapsedStacks(collapsedStacks, title);
+                    break;
+                }
+                Interpreter interpreter = new Interpreter(tokens, sourceCode);
+                interpreter.interpret();
+                break;
+        }
     }
-}
\ No newline at end of file
+}
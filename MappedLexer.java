@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ MappedLexer: lexes a script file straight from its bytes, memory-mapped, instead of
+ reading it into a String first.
+
+ The file is mapped with FileChannel.map and every byte is one character, so token i
+ starts at byte starts[i] and no String or char[] of the source is ever made; the
+ TokenBuffer's source is a CharSequence over the mapped bytes, and only the texts the
+ Parser asks for (names, numbers) are copied out. The leading spaces of every line are
+ counted in the same pass, so the lines need no second look at the text either. The
+ result is what Lexer.tokenize and splitIntoIndentedLines give for the file read as
+ UTF-8, errors included.
+
+ That only works for ASCII. At the first byte that isn't (an accented letter in a
+ comment, say) the file is read and lexed the usual way instead, so those files work as
+ before, only without the savings.
+
+ The tokens read the mapping for as long as they live: don't change or truncate the file
+ until they are gone.
+ */
+final class MappedLexer {
+    private final ByteBuffer bytes;
+    private final AsciiBytes source;
+    private final int length;
+    private final TokenBuffer tokens;
+    private int[] indents;
+    private int lineCount = 0;
+
+    private MappedLexer(ByteBuffer bytes) {
+        this.bytes = bytes;
+        this.length = bytes.limit();
+        this.source = new AsciiBytes(bytes);
+        this.tokens = new TokenBuffer(source, length / 4);
+        this.indents = new int[Math.max(16, length / 16)];
+    }
+
+    /**
+     The tokens and lines of file.
+     */
+    static LexedSource lex(Path file) throws IOException {
+        Telemetry.PhaseTimer lex = Telemetry.startPhase(Telemetry.Phase.LEX);
+        try {
+            ByteBuffer bytes;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Script too big to lex (" + size + " bytes): " + file);
+                }
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            LexedSource lexed = new MappedLexer(bytes).lex();
+            if (lexed != null) {
+                return lexed;
+            }
+            // Not ASCII
+            String source = Files.readString(file, StandardCharsets.UTF_8);
+            return new LexedSource(new Lexer(source).tokenize(), Interpreter.indentLevels(source));
+        } finally {
+            lex.end();
+        }
+    }
+
+    // Same cases as Lexer.tokenize, on bytes; null at the first byte that isn't ASCII
+    private LexedSource lex() {
+        int current = indent(0);
+        while (current < length) {
+            int start = current;
+            byte c = bytes.get(current++);
+            switch (c) {
+                case '+': tokens.add(TokenType.PLUS, start, 1); break;
+                case '-': tokens.add(TokenType.MINUS, start, 1); break;
+                case '*': tokens.add(TokenType.STAR, start, 1); break;
+                case '/': tokens.add(TokenType.SLASH, start, 1); break;
+                case '%': tokens.add(TokenType.MOD, start, 1); break;
+                case '(': tokens.add(TokenType.LPAREN, start, 1); break;
+                case ')': tokens.add(TokenType.RPAREN, start, 1); break;
+                case ':': tokens.add(TokenType.COLON, start, 1); break;
+
+                case '=':
+                    if (next(current, '=')) {
+                        tokens.add(TokenType.EQEQ, start, 2);
+                        current++;
+                    } else {
+                        tokens.add(TokenType.EQ, start, 1);
+                    }
+                    break;
+                case '!':
+                    // A '!' on its own is ignored, as in Lexer
+                    if (next(current, '=')) {
+                        tokens.add(TokenType.NEQ, start, 2);
+                        current++;
+                    }
+                    break;
+                case '>':
+                    if (next(current, '=')) {
+                        tokens.add(TokenType.GTE, start, 2);
+                        current++;
+                    } else {
+                        tokens.add(TokenType.GT, start, 1);
+                    }
+                    break;
+                case '<':
+                    if (next(current, '=')) {
+                        tokens.add(TokenType.LTE, start, 2);
+                        current++;
+                    } else {
+                        tokens.add(TokenType.LT, start, 1);
+                    }
+                    break;
+
+                case '#':
+                    while (current < length && bytes.get(current) != '\n') {
+                        if (bytes.get(current) < 0) {
+                            return null;
+                        }
+                        current++;
+                    }
+                    break;
+
+                case '\n':
+                    tokens.add(TokenType.NEWLINE, start, 1);
+                    current = indent(current);
+                    break;
+
+                case ' ':
+                case '\r':
+                case '\t':
+                    break;
+
+                default:
+                    if (c >= '0' && c <= '9') {
+                        while (current < length && isDigit(bytes.get(current))) {
+                            current++;
+                        }
+                        tokens.add(TokenType.NUMBER, start, current - start);
+                    } else if (isAlpha(c)) {
+                        int hash = c;
+                        while (current < length && (isAlpha(bytes.get(current)) || isDigit(bytes.get(current)))) {
+                            hash = 31 * hash + bytes.get(current++);
+                        }
+                        TokenType keyword = Lexer.keyword(source, start, current - start);
+                        if (keyword != null) {
+                            tokens.add(keyword, start, current - start);
+                        } else {
+                            tokens.addIdentifier(start, current - start, hash);
+                        }
+                    } else if (c < 0) {
+                        return null;
+                    } else {
+                        throw new RuntimeException("Unexpected character: " + (char) c);
+                    }
+                    break;
+            }
+        }
+        tokens.add(TokenType.EOF, length, 0);
+        return new LexedSource(tokens, Arrays.copyOf(indents, lineCount));
+    }
+
+    // At the start of a line: skip its leading spaces, keep their count, return where it goes on
+    private int indent(int current) {
+        int count = 0;
+        while (current < length && bytes.get(current) == ' ') {
+            current++;
+            count++;
+        }
+        if (lineCount == indents.length) {
+            indents = Arrays.copyOf(indents, lineCount * 2);
+        }
+        indents[lineCount++] = count;
+        return current;
+    }
+
+    private boolean next(int current, char expected) {
+        return current < length && bytes.get(current) == expected;
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAlpha(byte c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    /**
+     The mapped bytes as characters (ASCII, so one byte is one char). A token's text is
+     copied out of the mapping when it is asked for.
+     */
+    private static final class AsciiBytes implements CharSequence {
+        private final ByteBuffer bytes;
+
+        AsciiBytes(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int length() {
+            return bytes.limit();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) bytes.get(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            byte[] text = new byte[end - start];
+            bytes.get(start, text);
+            return new String(text, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ MemoryOutputSink: keeps everything printed, for tests and tools that want to look
+ at a script's output instead of sending it anywhere.
+ */
+final class MemoryOutputSink implements OutputSink {
+    private int[] values = new int[16];
+    private int size = 0;
+
+    // Printed values too big for an int, at the same index; null until there is one
+    private BigInteger[] bigValues;
+
+    @Override
+    public void print(int value) {
+        if (size == values.length) {
+            grow();
+        }
+        values[size++] = value;
+    }
+
+    @Override
+    public void print(BigInteger value) {
+        if (size == values.length) {
+            grow();
+        }
+        if (bigValues == null) {
+            bigValues = new BigInteger[values.length];
+        }
+        bigValues[size++] = value;
+    }
+
+    /**
+     Every printed value, in order: Integers, and BigIntegers for those too big for an int.
+     */
+    Number[] values() {
+        Number[] all = new Number[size];
+        for (int i = 0; i < size; i++) {
+            all[i] = value(i);
+        }
+        return all;
+    }
+
+    /**
+     The output as println would have written it.
+     */
+    String text() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            sb.append(value(i)).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    private Number value(int i) {
+        if (bigValues != null && bigValues[i] != null) {
+            return bigValues[i];
+        }
+        return values[i];
+    }
+
+    private void grow() {
+        values = Arrays.copyOf(values, size * 2);
+        if (bigValues != null) {
+            bigValues = Arrays.copyOf(bigValues, size * 2);
+        }
+    }
+
+    void clear() {
+        size = 0;
+        bigValues = null;
+    }
+}
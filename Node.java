@@ -0,0 +1,44 @@
+/**
+ Node: base class of the executable tree that Parser builds from the indented lines.
+
+ The tree is built once and executed many times. Nodes keep a pointer to their parent,
+ so a node can swap itself for a faster, specialized version the first time it runs
+ (for example a "variable + constant" node instead of a generic "expr + expr" node).
+ */
+abstract class Node {
+    private Node parent;
+
+    // Make this node the parent of the given child and hand the child back
+    protected final <T extends Node> T adopt(T child) {
+        if (child != null) {
+            ((Node) child).parent = this;
+        }
+        return child;
+    }
+
+    // The node this one sits in; null for the root
+    final Node parent() {
+        return parent;
+    }
+
+    /**
+     Replace this node with newNode inside its parent and return newNode.
+     Only nodes that sit under a parent can be replaced.
+     */
+    protected final <T extends Node> T replace(T newNode) {
+        if (parent == null) {
+            throw new IllegalStateException("Cannot replace a node without a parent: " + this);
+        }
+        parent.replaceChild(this, newNode);
+        ((Node) newNode).parent = parent;
+        return newNode;
+    }
+
+    /**
+     Swap oldChild for newChild in this node's own fields.
+     Nodes that have replaceable children override this.
+     */
+    protected void replaceChild(Node oldChild, Node newChild) {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no replaceable children");
+    }
+}
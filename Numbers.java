@@ -0,0 +1,143 @@
+import java.math.BigInteger;
+
+/**
+ Numbers: integer arithmetic that never overflows, shared by every engine.
+
+ Values are ints for as long as they fit. Every + - * / is checked (the same checks
+ Math.addExact and friends do) and a result that doesn't fit throws Overflow instead of
+ wrapping around. The statement that was running then evaluates its expression again, on
+ BigIntegers (ExpressionNode.executeBig), and stores the result; a variable keeps a
+ BigInteger (see ExecutionContext) until it is assigned a value that fits in an int again.
+ A number literal too big for an int works the same way, so 12345678901234567890 is just a
+ number now. Evaluating an expression has no side effects, so running it again from the
+ start is safe, and it fails with the same error as before if it fails.
+
+ Scripts whose values all fit in an int pay for the checks and nothing else. Compiled loops
+ (traces and JvmCompiler's classes) mostly don't even do those: they compute in longs where
+ ValueBounds shows a value can't leave one, and check once at the end of a loop or strip.
+ -Dinterpreter.bigint=false turns them off: values wrap around at 32 bits, as they used to
+ (for comparison, and for benchmarks that want the old arithmetic).
+ */
+final class Numbers {
+    static final boolean ENABLED = !"false".equals(System.getProperty("interpreter.bigint"));
+
+    private Numbers() {
+    }
+
+    /**
+     A value doesn't fit in an int: a result, a literal, or a variable that already holds a
+     BigInteger. Thrown every time a statement has to take the slow path, so there is one
+     instance, without a stack trace.
+     */
+    static final class Overflow extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        static final Overflow INSTANCE = new Overflow();
+
+        private Overflow() {
+            super("Integer overflow", null, false, false);
+        }
+    }
+
+    // ---------------------------------
+    // ints
+    // ---------------------------------
+
+    static int add(int left, int right) {
+        int result = left + right;
+        if (ENABLED && ((left ^ result) & (right ^ result)) < 0) {
+            throw Overflow.INSTANCE;
+        }
+        return result;
+    }
+
+    static int subtract(int left, int right) {
+        int result = left - right;
+        if (ENABLED && ((left ^ right) & (left ^ result)) < 0) {
+            throw Overflow.INSTANCE;
+        }
+        return result;
+    }
+
+    static int multiply(int left, int right) {
+        long result = (long) left * right;
+        if (ENABLED && (int) result != result) {
+            throw Overflow.INSTANCE;
+        }
+        return (int) result;
+    }
+
+    static int divide(int left, int right) {
+        if (right == 0) {
+            throw new RuntimeException("Division by zero.");
+        }
+        // The one quotient that doesn't fit: -2147483648 / -1
+        if (ENABLED && right == -1 && left == Integer.MIN_VALUE) {
+            throw Overflow.INSTANCE;
+        }
+        return left / right;
+    }
+
+    static int modulo(int left, int right) {
+        if (right == 0) {
+            throw new RuntimeException("Modulo by zero.");
+        }
+        return left % right;
+    }
+
+    /**
+     Parse a number literal (only digits); Overflow if it is too big for an int.
+     */
+    static int parse(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            if (ENABLED) {
+                throw Overflow.INSTANCE;
+            }
+            throw e;
+        }
+    }
+
+    // ---------------------------------
+    // BigIntegers
+    // ---------------------------------
+
+    /**
+     Apply one operator on the slow path. Same rules as on ints: / and % truncate towards
+     zero (the remainder has the sign of the left side), comparisons give 1 or 0.
+     */
+    static BigInteger apply(TokenType op, BigInteger left, BigInteger right) {
+        switch (op) {
+            case PLUS:  return left.add(right);
+            case MINUS: return left.subtract(right);
+            case STAR:  return left.multiply(right);
+            case SLASH:
+                if (right.signum() == 0) {
+                    throw new RuntimeException("Division by zero.");
+                }
+                return left.divide(right);
+            case MOD:
+                if (right.signum() == 0) {
+                    throw new RuntimeException("Modulo by zero.");
+                }
+                return left.remainder(right);
+            case EQEQ:  return truth(left.compareTo(right) == 0);
+            case NEQ:   return truth(left.compareTo(right) != 0);
+            case GT:    return truth(left.compareTo(right) > 0);
+            case GTE:   return truth(left.compareTo(right) >= 0);
+            case LT:    return truth(left.compareTo(right) < 0);
+            case LTE:   return truth(left.compareTo(right) <= 0);
+            default:
+                throw new IllegalArgumentException("Not an operator: " + op);
+        }
+    }
+
+    static boolean fitsInt(BigInteger value) {
+        return value.bitLength() < 32;
+    }
+
+    private static BigInteger truth(boolean value) {
+        return value ? BigInteger.ONE : BigInteger.ZERO;
+    }
+}
@@ -0,0 +1,305 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ Optimizer: simplifies a freshly parsed tree before it is prepared or compiled, so no
+ engine spends run time on work whose result is already known.
+
+ - Numbers are parsed here, and operators on two constants are folded: N * 2 + 10
+   becomes one Constant once N is known. (Not when the result is too big for an int;
+   that one is left to the slow path at run time, see Numbers.)
+ - Runs of + / - (or of *) with constants are merged: (i + 1) - 1 is just i. Exact, since
+   numbers never wrap around, as long as the merged constant fits in an int.
+ - Identities: x + 0, x - 0, 0 + x, x * 1, 1 * x and x / 1 are x; x * 0 and x % 1 are 0
+   when x can't fail.
+ - A variable that is assigned exactly once, by a top-level statement, and to a value
+   that folds to a constant, is that constant in every statement after that one (before
+   it, the variable still reads 0, so those reads are left alone).
+ - An if whose condition is constant is replaced by the branch it takes, and a while
+   whose condition is constant 0 is dropped.
+
+ Errors stay exactly where they were: 5 / 0, 5 % 0 and the "Unexpected token" /
+ "Operator at end" failures are never folded or dropped, so they still happen when (and
+ only when) the run reaches them, with the same message. Numbers too big for an int are
+ left as they are too.
+ */
+final class Optimizer {
+    // Per slot: the known constant value, while known[slot] is true
+    private final boolean[] known;
+    private final int[] values;
+
+    /**
+     An Optimizer that takes no variable to be known until it is told so (see know), for
+     optimizing top-level statements one at a time and in any order (see EditableProgram).
+     */
+    Optimizer(int slotCount) {
+        this.known = new boolean[slotCount];
+        this.values = new int[slotCount];
+    }
+
+    /**
+     Optimize a whole program (every optimization above).
+     */
+    static StatementNode.Block optimize(StatementNode.Block program, int slotCount) {
+        Optimizer optimizer = new Optimizer(slotCount);
+        boolean[] assignedOnce = assignedOnceAtTopLevel(program, slotCount);
+
+        List<StatementNode> statements = new ArrayList<>();
+        for (StatementNode statement : program.statements) {
+            optimizer.statement(statement, statements);
+            // From the next statement on, the one assignment of this slot has happened
+            if (statement instanceof StatementNode.Assign && assignedOnce[((StatementNode.Assign) statement).slot]) {
+                StatementNode.Assign assign = (StatementNode.Assign) statements.get(statements.size() - 1);
+                if (assign.value instanceof ExpressionNode.Constant) {
+                    optimizer.known[assign.slot] = true;
+                    optimizer.values[assign.slot] = ((ExpressionNode.Constant) assign.value).value;
+                }
+            }
+        }
+        return new StatementNode.Block(program.line, statements.toArray(new StatementNode[0]));
+    }
+
+    /**
+     Add statement to out, optimized with the variables know was told about as constants.
+     */
+    void topLevel(StatementNode statement, List<StatementNode> out) {
+        statement(statement, out);
+    }
+
+    /**
+     Read slot as value in what topLevel optimizes, until forget(slot).
+     */
+    void know(int slot, int value) {
+        known[slot] = true;
+        values[slot] = value;
+    }
+
+    void forget(int slot) {
+        known[slot] = false;
+    }
+
+    /**
+     Fold constants, identities and constant branches in a piece of a program, without
+     assuming anything about variables (for StreamingInterpreter, where more of the
+     program may still come and assign them again).
+     */
+    static StatementNode.Block fold(StatementNode.Block block) {
+        return new Optimizer(0).block(block);
+    }
+
+    // Slots with exactly one assignment in the whole program, which is a top-level statement
+    private static boolean[] assignedOnceAtTopLevel(StatementNode.Block program, int slotCount) {
+        int[] assignments = new int[slotCount];
+        countAssignments(program, assignments);
+        boolean[] once = new boolean[slotCount];
+        for (StatementNode statement : program.statements) {
+            if (statement instanceof StatementNode.Assign) {
+                int slot = ((StatementNode.Assign) statement).slot;
+                once[slot] = assignments[slot] == 1;
+            }
+        }
+        return once;
+    }
+
+    private static void countAssignments(StatementNode node, int[] assignments) {
+        if (node instanceof StatementNode.Block) {
+            for (StatementNode statement : ((StatementNode.Block) node).statements) {
+                countAssignments(statement, assignments);
+            }
+        } else if (node instanceof StatementNode.Assign) {
+            assignments[((StatementNode.Assign) node).slot]++;
+        } else if (node instanceof StatementNode.If) {
+            StatementNode.If branch = (StatementNode.If) node;
+            countAssignments(branch.thenBlock, assignments);
+            if (branch.elseBlock != null) {
+                countAssignments(branch.elseBlock, assignments);
+            }
+        } else if (node instanceof StatementNode.While) {
+            countAssignments(((StatementNode.While) node).body, assignments);
+        }
+    }
+
+    // ---------------------------------
+    // Statements
+    // ---------------------------------
+
+    private StatementNode.Block block(StatementNode.Block block) {
+        List<StatementNode> statements = new ArrayList<>();
+        for (StatementNode statement : block.statements) {
+            statement(statement, statements);
+        }
+        return new StatementNode.Block(block.line, statements.toArray(new StatementNode[0]));
+    }
+
+    // Add the optimized statement to out: nothing, one statement, or a whole branch
+    private void statement(StatementNode node, List<StatementNode> out) {
+        if (node instanceof StatementNode.Assign) {
+            StatementNode.Assign assign = (StatementNode.Assign) node;
+            out.add(new StatementNode.Assign(assign.line, assign.name, assign.slot, expression(assign.value)));
+        } else if (node instanceof StatementNode.Print) {
+            out.add(new StatementNode.Print(node.line, expression(((StatementNode.Print) node).value)));
+        } else if (node instanceof StatementNode.If) {
+            ifStatement((StatementNode.If) node, out);
+        } else if (node instanceof StatementNode.While) {
+            StatementNode.While loop = (StatementNode.While) node;
+            ExpressionNode condition = expression(loop.condition);
+            if (isConstant(condition, 0)) {
+                return;
+            }
+            out.add(new StatementNode.While(loop.line, condition, block(loop.body)));
+        } else if (node instanceof StatementNode.Block) {
+            out.add(block((StatementNode.Block) node));
+        } else {
+            throw new IllegalStateException("Unknown statement node: " + node);
+        }
+    }
+
+    private void ifStatement(StatementNode.If node, List<StatementNode> out) {
+        ExpressionNode condition = expression(node.condition);
+        if (condition instanceof ExpressionNode.Constant) {
+            StatementNode.Block taken = ((ExpressionNode.Constant) condition).value != 0 ? node.thenBlock : node.elseBlock;
+            if (taken != null) {
+                out.addAll(Arrays.asList(block(taken).statements));
+            }
+            return;
+        }
+        StatementNode.Block elseBlock = node.elseBlock != null ? block(node.elseBlock) : null;
+        out.add(new StatementNode.If(node.line, condition, block(node.thenBlock), elseBlock));
+    }
+
+    // ---------------------------------
+    // Expressions
+    // ---------------------------------
+
+    private ExpressionNode expression(ExpressionNode node) {
+        if (node instanceof ExpressionNode.Literal) {
+            String text = ((ExpressionNode.Literal) node).text;
+            try {
+                return new ExpressionNode.Constant(Integer.parseInt(text));
+            } catch (NumberFormatException e) {
+                // Too big for an int: dealt with when it is reached (see Numbers)
+                return new ExpressionNode.Literal(text);
+            }
+        }
+        if (node instanceof ExpressionNode.Read) {
+            ExpressionNode.Read read = (ExpressionNode.Read) node;
+            if (read.slot < known.length && known[read.slot]) {
+                return new ExpressionNode.Constant(values[read.slot]);
+            }
+            return new ExpressionNode.Read(read.name, read.slot);
+        }
+        if (node instanceof ExpressionNode.Constant) {
+            return new ExpressionNode.Constant(((ExpressionNode.Constant) node).value);
+        }
+        if (node instanceof ExpressionNode.Fail) {
+            return new ExpressionNode.Fail(((ExpressionNode.Fail) node).message);
+        }
+        if (node instanceof ExpressionNode.Binary) {
+            ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+            return binary(binary.op, expression(binary.left), expression(binary.right));
+        }
+        throw new IllegalStateException("Unknown expression node: " + node);
+    }
+
+    private static ExpressionNode binary(TokenType op, ExpressionNode left, ExpressionNode right) {
+        if (left instanceof ExpressionNode.Constant && right instanceof ExpressionNode.Constant) {
+            int l = ((ExpressionNode.Constant) left).value;
+            int r = ((ExpressionNode.Constant) right).value;
+            if (!((op == TokenType.SLASH || op == TokenType.MOD) && r == 0)) {
+                try {
+                    return new ExpressionNode.Constant(ExpressionNode.apply(op, l, r));
+                } catch (Numbers.Overflow e) {
+                    // Too big for an int: computed at run time
+                }
+            }
+            // x / 0 and x % 0 stay, and fail when they are reached
+        }
+
+        if (right instanceof ExpressionNode.Constant) {
+            int r = ((ExpressionNode.Constant) right).value;
+            if (op == TokenType.PLUS || op == TokenType.MINUS) {
+                long offset = op == TokenType.PLUS ? r : -(long) r;
+                // (e + a) - b => e + (a - b)
+                if (left instanceof ExpressionNode.Binary && isAddConstant((ExpressionNode.Binary) left)) {
+                    ExpressionNode.Binary inner = (ExpressionNode.Binary) left;
+                    long a = ((ExpressionNode.Constant) inner.right).value;
+                    long merged = offset + (inner.op == TokenType.PLUS ? a : -a);
+                    if (merged == (int) merged) {
+                        offset = merged;
+                        left = inner.left;
+                    }
+                }
+                if (offset == 0) {
+                    return left;
+                }
+                if (offset != (int) offset) {
+                    // Only e - (-2147483648) gets here
+                    return new ExpressionNode.Binary(op, left, right);
+                }
+                return offset > 0 || offset == Integer.MIN_VALUE
+                        ? new ExpressionNode.Binary(TokenType.PLUS, left, new ExpressionNode.Constant((int) offset))
+                        : new ExpressionNode.Binary(TokenType.MINUS, left, new ExpressionNode.Constant((int) -offset));
+            }
+            if (op == TokenType.STAR) {
+                int factor = r;
+                // (e * a) * b => e * (a * b)
+                if (left instanceof ExpressionNode.Binary && ((ExpressionNode.Binary) left).op == TokenType.STAR
+                        && ((ExpressionNode.Binary) left).right instanceof ExpressionNode.Constant) {
+                    ExpressionNode.Binary inner = (ExpressionNode.Binary) left;
+                    long merged = (long) factor * ((ExpressionNode.Constant) inner.right).value;
+                    if (merged == (int) merged) {
+                        factor = (int) merged;
+                        left = inner.left;
+                    }
+                }
+                if (factor == 1) {
+                    return left;
+                }
+                if (factor == 0 && cannotFail(left)) {
+                    return new ExpressionNode.Constant(0);
+                }
+                return new ExpressionNode.Binary(TokenType.STAR, left, new ExpressionNode.Constant(factor));
+            }
+            if (op == TokenType.SLASH && r == 1) {
+                return left;
+            }
+            if (op == TokenType.MOD && (r == 1 || r == -1) && cannotFail(left)) {
+                return new ExpressionNode.Constant(0);
+            }
+        }
+
+        // 0 + x and 1 * x: the constant is evaluated first, but it can't fail
+        if (isConstant(left, 0) && op == TokenType.PLUS) {
+            return right;
+        }
+        if (isConstant(left, 1) && op == TokenType.STAR) {
+            return right;
+        }
+        return new ExpressionNode.Binary(op, left, right);
+    }
+
+    private static boolean isAddConstant(ExpressionNode.Binary node) {
+        return (node.op == TokenType.PLUS || node.op == TokenType.MINUS) && node.right instanceof ExpressionNode.Constant;
+    }
+
+    private static boolean isConstant(ExpressionNode node, int value) {
+        return node instanceof ExpressionNode.Constant && ((ExpressionNode.Constant) node).value == value;
+    }
+
+    // True if evaluating node can never throw, so dropping it changes nothing
+    private static boolean cannotFail(ExpressionNode node) {
+        if (node instanceof ExpressionNode.Constant || node instanceof ExpressionNode.Read) {
+            return true;
+        }
+        if (node instanceof ExpressionNode.Binary) {
+            ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+            if ((binary.op == TokenType.SLASH || binary.op == TokenType.MOD)
+                    && !(binary.right instanceof ExpressionNode.Constant && !isConstant(binary.right, 0))) {
+                return false;
+            }
+            return cannotFail(binary.left) && cannotFail(binary.right);
+        }
+        return false;
+    }
+}
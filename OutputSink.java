@@ -0,0 +1,34 @@
+import java.math.BigInteger;
+
+/**
+ OutputSink: where print statements go, for every engine (tree, VM, compiled classes).
+
+ Engines call print for every print statement and flush once when the script ends
+ (also when it ends with an error). See BufferedOutputSink for the normal one and
+ MemoryOutputSink for collecting output in tests.
+ Public because compiled scripts (JvmCompiler) call it from their own class loader.
+ */
+public interface OutputSink {
+    /**
+     Print value on a line of its own.
+     */
+    void print(int value);
+
+    /**
+     Print a value too big for an int (see Numbers) on a line of its own.
+     */
+    void print(BigInteger value);
+
+    /**
+     Write out anything still buffered.
+     */
+    default void flush() {
+    }
+
+    /**
+     A buffered sink writing to whatever System.out is at the time it flushes.
+     */
+    static OutputSink systemOut() {
+        return BufferedOutputSink.toSystemOut();
+    }
+}
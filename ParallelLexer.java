@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ ParallelLexer: lexes a big source on a ForkJoinPool, a range of lines per task.
+
+ No token crosses a newline ('#' comments end at one too), so the source is cut into
+ ranges that end just after a '\n' and each range is lexed on its own (see Lexer's range
+ constructor), which also counts the leading spaces of every line on the way. The ranges'
+ tokens are then copied end to end into one TokenBuffer, followed by the EOF, and their
+ indents into one array. That gives the same tokens and the same lines as Lexer.tokenize
+ followed by Interpreter.splitIntoIndentedLines, without a second pass over the source
+ for the indents. A lexer error is the one the sequential Lexer throws: the first one in
+ the source.
+
+     CompiledProgram.compile(new ParallelLexer(pool).tokenize(source).lines())
+ */
+final class ParallelLexer {
+    // Ranges are at least this many characters; a smaller source is one range
+    static final int MIN_CHUNK = 1 << 16;
+
+    private final ForkJoinPool pool;
+    private final int chunksPerThread;
+
+    ParallelLexer(ForkJoinPool pool) {
+        this(pool, 4);
+    }
+
+    /**
+     chunksPerThread ranges for every thread of the pool, so that a thread that is done
+     early can take another range.
+     */
+    ParallelLexer(ForkJoinPool pool, int chunksPerThread) {
+        this.pool = pool;
+        this.chunksPerThread = chunksPerThread;
+    }
+
+    LexedSource tokenize(String source) {
+        Telemetry.PhaseTimer lex = Telemetry.startPhase(Telemetry.Phase.LEX);
+        int[] bounds = chunks(source, pool.getParallelism() * chunksPerThread);
+        List<Chunk> chunks = new ArrayList<>(bounds.length - 1);
+        for (int k = 0; k + 1 < bounds.length; k++) {
+            Chunk chunk = new Chunk(new Lexer(source, bounds[k], bounds[k + 1]));
+            chunks.add(chunk);
+            pool.execute(chunk);
+        }
+
+        List<TokenBuffer> tokens = new ArrayList<>(chunks.size());
+        List<int[]> indents = new ArrayList<>(chunks.size());
+        int lineCount = 0;
+        for (Chunk chunk : chunks) {
+            chunk.join();
+            if (chunk.error != null) {
+                // The first range with an error has the first error of the source
+                throw chunk.error;
+            }
+            tokens.add(chunk.tokens);
+            indents.add(chunk.indents);
+            lineCount += chunk.indents.length;
+        }
+
+        int[] allIndents = new int[lineCount];
+        int line = 0;
+        for (int[] part : indents) {
+            System.arraycopy(part, 0, allIndents, line, part.length);
+            line += part.length;
+        }
+        LexedSource lexed = new LexedSource(TokenBuffer.concat(source, tokens), allIndents);
+        lex.end();
+        return lexed;
+    }
+
+    // Where the ranges start: 0, then just after the first '\n' that ends each stretch
+    // of size characters; the last entry is the end of the source
+    private static int[] chunks(String source, int count) {
+        int length = source.length();
+        int size = Math.max(MIN_CHUNK, length / Math.max(count, 1) + 1);
+        int[] bounds = new int[16];
+        int n = 1; // bounds[0] = 0
+        int start = 0;
+        while (length - start > size) {
+            int newline = source.indexOf('\n', start + size - 1);
+            if (newline < 0 || newline + 1 >= length) {
+                break;
+            }
+            start = newline + 1;
+            if (n + 1 >= bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[n++] = start;
+        }
+        bounds[n++] = length;
+        return Arrays.copyOf(bounds, n);
+    }
+
+    // One range, lexed on the pool; its error is kept for the caller to throw
+    private static final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Lexer lexer;
+        private transient TokenBuffer tokens;
+        private int[] indents;
+        private RuntimeException error;
+
+        Chunk(Lexer lexer) {
+            this.lexer = lexer;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                tokens = lexer.tokenizeRange();
+                indents = lexer.indents();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ Parser: the compile phase. Turns the indented lines into a tree of StatementNode /
+ ExpressionNode objects once, so running a loop never has to look at tokens again.
+
+ Blocks follow the same rule the line walker used: a block is every following line
+ whose indent is greater than the header's indent. Where each block ends and which
+ else belongs to which if comes from the BlockIndex, so nothing is scanned twice.
+ Lines the old interpreter skipped (empty lines, an 'if' without ':', a lone 'else',
+ unknown statements) produce no node.
+ */
+class Parser {
+    private final List<Interpreter.Line> lines;
+    private final BlockIndex blocks;
+    private final SymbolTable symbols;
+    private final Map<Interpreter.Line, ExpressionNode> parsedLines; // null: parse every line
+    private int current = 0; // index of the next line to compile
+
+    // Slot of every symbol id of slotIdentifiers (-1: not looked up yet)
+    private Identifiers slotIdentifiers;
+    private int[] slotsBySymbol;
+
+    Parser(List<Interpreter.Line> lines) {
+        this(lines, new SymbolTable());
+    }
+
+    /**
+     Parse with slots from an existing table, so variables keep their slots
+     across separately parsed pieces of one program (see StreamingInterpreter).
+     */
+    Parser(List<Interpreter.Line> lines, SymbolTable symbols) {
+        this(lines, symbols, new BlockIndex(lines), null);
+    }
+
+    /**
+     Same, with blocks (which must be the index of lines as they are now) instead of an
+     index of its own, and taking the expression of every line found in parsedLines from
+     there instead of parsing it, adding the ones it parses (see EditableProgram). The
+     expressions must have been parsed with the same SymbolTable; the tree shares them, so
+     they must not be run or prepared, only optimized (the Optimizer copies).
+     */
+    Parser(List<Interpreter.Line> lines, SymbolTable symbols, BlockIndex blocks,
+           Map<Interpreter.Line, ExpressionNode> parsedLines) {
+        this.lines = lines;
+        this.blocks = blocks;
+        this.symbols = symbols;
+        this.parsedLines = parsedLines;
+    }
+
+    /**
+     The variable slots handed out while parsing (complete after parseProgram).
+     */
+    SymbolTable symbols() {
+        return symbols;
+    }
+
+    /**
+     Compile every line into one top-level block.
+     */
+    StatementNode.Block parseProgram() {
+        // Top level runs every line regardless of its indent
+        return parseBlock(0, lines.size());
+    }
+
+    /**
+     Compile just the top-level statement that starts at line (plus its blocks, if any),
+     as parseProgram would; null for a line that does nothing.
+     */
+    StatementNode parseStatementAt(int line) {
+        current = line;
+        return parseStatement();
+    }
+
+    /**
+     The line after the statement that starts at line, blocks included: where
+     parseStatement stops, worked out from the indents without compiling anything.
+     */
+    int statementEnd(int line) {
+        Interpreter.Line first = lines.get(line);
+        if (first.isEmpty()) {
+            return line + 1;
+        }
+        switch (first.type(0)) {
+            case IF:
+                if (findColon(first) < 0) {
+                    return line + 1;
+                }
+                int elseLine = blocks.elseLine(line);
+                return blocks.blockEnd(elseLine >= 0 ? elseLine : line);
+            case WHILE:
+                return findColon(first) < 0 ? line + 1 : blocks.blockEnd(line);
+            case ELSE:
+                return blocks.blockEnd(line);
+            default:
+                return line + 1;
+        }
+    }
+
+    // Compile the lines from firstLine up to (not including) endLine
+    private StatementNode.Block parseBlock(int firstLine, int endLine) {
+        List<StatementNode> statements = new ArrayList<>();
+        current = firstLine;
+        while (current < endLine) {
+            StatementNode statement = parseStatement();
+            if (statement != null) {
+                statements.add(statement);
+            }
+        }
+        return new StatementNode.Block(firstLine, statements.toArray(new StatementNode[0]));
+    }
+
+    /**
+     Compile the statement that starts at the current line (plus its blocks, if any).
+     Returns null for lines that do nothing.
+     */
+    private StatementNode parseStatement() {
+        Interpreter.Line line = getLine();
+        int lineIndex = current;
+        current++;
+
+        if (line.isEmpty()) {
+            return null;
+        }
+
+        switch (line.type(0)) {
+            case IDENT:
+                return parseAssignment(line, lineIndex);
+            case PRINT:
+                return parsePrint(line, lineIndex);
+            case IF:
+                return parseIf(line, lineIndex);
+            case WHILE:
+                return parseWhile(line, lineIndex);
+            case ELSE:
+                // An else that doesn't follow an if: its block is skipped
+                current = blocks.blockEnd(lineIndex);
+                return null;
+            default:
+                // Unrecognized line => skip
+                return null;
+        }
+    }
+
+    private StatementNode parseAssignment(Interpreter.Line line, int lineIndex) {
+        if (line.size() < 3 || line.type(1) != TokenType.EQ) {
+            return null;
+        }
+        ExpressionNode value = lineExpression(line, 2, line.size());
+        return new StatementNode.Assign(lineIndex, line.text(0), slotOf(line, 0), value);
+    }
+
+    /**
+     We skip optional parentheses around the expression if present -> e.g.: print(z) or print z
+     */
+    private StatementNode parsePrint(Interpreter.Line line, int lineIndex) {
+        if (line.size() < 2) {
+            return null;
+        }
+        int startIndex = 1;
+        int endIndex = line.size();
+        if (line.type(startIndex) == TokenType.LPAREN) {
+            startIndex++;
+        }
+        if (line.type(endIndex - 1) == TokenType.RPAREN) {
+            endIndex--;
+        }
+        if (startIndex >= endIndex) {
+            return null;
+        }
+        return new StatementNode.Print(lineIndex, lineExpression(line, startIndex, endIndex));
+    }
+
+    /**
+     if expr:
+     [block]
+     else:
+     [block]
+     The else only belongs to the if when it sits at exactly the same indent.
+     */
+    private StatementNode parseIf(Interpreter.Line line, int lineIndex) {
+        int colonIndex = findColon(line);
+        if (colonIndex < 0) {
+            return null;
+        }
+        ExpressionNode condition = lineExpression(line, 1, colonIndex);
+        StatementNode.Block thenBlock = parseBlock(lineIndex + 1, blocks.blockEnd(lineIndex));
+
+        StatementNode.Block elseBlock = null;
+        int elseLine = blocks.elseLine(lineIndex);
+        if (elseLine >= 0) {
+            elseBlock = parseBlock(elseLine + 1, blocks.blockEnd(elseLine));
+        }
+        return new StatementNode.If(lineIndex, condition, thenBlock, elseBlock);
+    }
+
+    /**
+     while expr:
+     [block]
+     */
+    private StatementNode parseWhile(Interpreter.Line line, int lineIndex) {
+        int colonIndex = findColon(line);
+        if (colonIndex < 0) {
+            return null;
+        }
+        ExpressionNode condition = lineExpression(line, 1, colonIndex);
+        StatementNode.Block body = parseBlock(lineIndex + 1, blocks.blockEnd(lineIndex));
+        return new StatementNode.While(lineIndex, condition, body);
+    }
+
+    /**
+     Finds the position of the first ':' in the line's tokens.
+     Returns -1 if not found.
+     */
+    private int findColon(Interpreter.Line line) {
+        for (int i = 0; i < line.size(); i++) {
+            if (line.type(i) == TokenType.COLON) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // ---------------------------------
+    // Expressions
+    // ---------------------------------
+
+    // The expression of a statement line (there is at most one per line), parsed before
+    // if parsedLines has it
+    private ExpressionNode lineExpression(Interpreter.Line line, int from, int to) {
+        if (parsedLines == null) {
+            return parseExpression(line, from, to);
+        }
+        ExpressionNode expression = parsedLines.get(line);
+        if (expression == null) {
+            expression = parseExpression(line, from, to);
+            parsedLines.put(line, expression);
+        }
+        return expression;
+    }
+
+    /**
+     Build the left-to-right chain for a simple expression with
+     +, -, *, /, %, and comparisons (==, !=, <, etc.).
+     The expression is the line's tokens from 'from' up to (not including) 'to'.
+     Tokens that are not operators between operands are ignored, like before.
+     */
+    ExpressionNode parseExpression(Interpreter.Line line, int from, int to) {
+        if (from >= to) {
+            return new ExpressionNode.Constant(0);
+        }
+
+        ExpressionNode value = parseOperand(line, from);
+        int i = from + 1;
+        while (i < to) {
+            TokenType op = line.type(i);
+            if (isOperator(op)) {
+                ExpressionNode right;
+                if (i + 1 >= to) {
+                    right = new ExpressionNode.Fail("Operator at end with no operand.");
+                } else {
+                    right = parseOperand(line, i + 1);
+                }
+                value = new ExpressionNode.Binary(op, value, right);
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+        return value;
+    }
+
+    /**
+     NUMBER => literal, IDENT => variable read from its slot, anything else fails when evaluated.
+     */
+    private ExpressionNode parseOperand(Interpreter.Line line, int k) {
+        switch (line.type(k)) {
+            case NUMBER:
+                return new ExpressionNode.Literal(line.text(k));
+            case IDENT:
+                return new ExpressionNode.Read(line.text(k), slotOf(line, k));
+            default:
+                return new ExpressionNode.Fail("Unexpected token in expression: " + line.token(k));
+        }
+    }
+
+    // Slot of the variable IDENT token k of line names. Looked up by its symbol id, without
+    // hashing the name, for as long as the tokens come from the same Identifiers
+    private int slotOf(Interpreter.Line line, int k) {
+        Identifiers identifiers = line.tokens.identifiers();
+        if (identifiers != slotIdentifiers || slotsBySymbol.length < identifiers.size()) {
+            slotIdentifiers = identifiers;
+            slotsBySymbol = new int[identifiers.size()];
+            Arrays.fill(slotsBySymbol, -1);
+        }
+        int symbol = line.symbol(k);
+        int slot = slotsBySymbol[symbol];
+        if (slot < 0) {
+            slot = symbols.slotOf(line.text(k));
+            slotsBySymbol[symbol] = slot;
+        }
+        return slot;
+    }
+
+    // Check if token type is an operator or comparison
+    static boolean isOperator(TokenType t) {
+        switch (t) {
+            case PLUS: case MINUS: case STAR: case SLASH: case MOD:
+            case EQEQ: case NEQ: case GT: case GTE: case LT: case LTE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Comparisons give 1 or 0
+    static boolean isComparison(TokenType t) {
+        switch (t) {
+            case EQEQ: case NEQ: case GT: case GTE: case LT: case LTE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // ---------------------------------
+    // Helpers for line-based parsing
+    // ---------------------------------
+
+    private Interpreter.Line getLine() {
+        return lines.get(current);
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ Profiler: where a tree interpreter run spends its time, per source line.
+
+ Pass one to CompiledProgram.run and every statement the run executes is counted: hits per
+ line, plus the number of iterations of every while, exactly, in primitive arrays indexed
+ by line. A run without a profiler pays one null check per block it executes; with one,
+ loops stay in the interpreter (no tracing) so every iteration is counted.
+
+ Time is sampled: before each statement the run stores its line in one int field (besides
+ counting the hit), and a sampler thread reads that field every sampleIntervalNanos. The
+ time since the last look counts as self time for that line and as total time for it and
+ every if/while around it, which come from the tree when the run starts; the run keeps no
+ stack. A while points the field back at its own line before it tests its condition again.
+ The field is written and read with opaque access: no fence on the run's side, and the
+ sampler may see a store a little late, which over many samples evens out. On one CPU the
+ sampler only gets to run between the interpreter's time slices, so it takes fewer samples,
+ but the shares between lines still hold. What a sampled run costs is mostly the
+ interpreter's monitored path and the untraced loops, not the sampling: the prime check
+ with tracing off runs at about 0.75x of an unprofiled run (Benchmark.measureProfiler),
+ and far slower than a traced one.
+
+ With sampleIntervalNanos = 0 there is no sampler, and every statement is timed with
+ System.nanoTime instead: exact, for short scripts, but it makes the run several times
+ slower and that cost shows up in the enclosing if/while.
+
+ The nesting comes from the if/while structure: a statement's parent is the if or while it
+ is in. There are no functions, so that is also the run-time "call stack", and
+ writeCollapsedStacks prints it in the collapsed format flamegraph tools read.
+
+ A Profiler adds up every run it is passed to; use one per thread.
+ */
+public final class Profiler {
+    static final long DEFAULT_SAMPLE_INTERVAL_NANOS = 200_000;
+
+    // What two back-to-back System.nanoTime calls measure; taken off every statement timed
+    // in exact mode, or short statements would look as slow as the clock
+    private static final long CLOCK_NANOS = clockNanos();
+
+    private final String[] sourceLines;
+    private final long sampleIntervalNanos;
+
+    // Per line, written by the run: times run and while iterations
+    private long[] hits;
+    private long[] iterations;
+
+    // Per line, nanoseconds with and without nested statements, and the line of the
+    // enclosing if/while (-1 at the top level); written by the sampler (or by the run in
+    // exact mode)
+    private long[] totalNanos;
+    private long[] selfNanos;
+    private int[] parents;
+
+    // In exact mode, the lines running right now, innermost last, their start time and
+    // the time spent in their nested statements so far
+    private int depth = 0;
+    private int[] stackLines = new int[16];
+    private long[] stackStarts = new long[16];
+    private long[] stackChildNanos = new long[16];
+
+    // The line the run is at, for the sampler; -1 before the first statement (see CURRENT_LINE)
+    @SuppressWarnings("unused")
+    private int currentLine = -1;
+
+    private Thread sampler;
+    private volatile boolean running;
+
+    private static final VarHandle CURRENT_LINE;
+
+    static {
+        try {
+            CURRENT_LINE = MethodHandles.lookup().findVarHandle(Profiler.class, "currentLine", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public Profiler(String source, long sampleIntervalNanos) {
+        if (sampleIntervalNanos < 0) {
+            throw new IllegalArgumentException("sampleIntervalNanos must not be negative");
+        }
+        this.sourceLines = source.split("\n", -1);
+        this.sampleIntervalNanos = sampleIntervalNanos;
+        int size = sourceLines.length + 1;
+        hits = new long[size];
+        iterations = new long[size];
+        parents = new int[size];
+        totalNanos = new long[size];
+        selfNanos = new long[size];
+    }
+
+    public Profiler(String source) {
+        this(source, DEFAULT_SAMPLE_INTERVAL_NANOS);
+    }
+
+    // ---------------------------------
+    // Recording (called by CompiledProgram and the nodes)
+    // ---------------------------------
+
+    // Timing every statement (enter/exit) rather than sampling (at)
+    boolean timesEveryStatement() {
+        return sampleIntervalNanos == 0;
+    }
+
+    /**
+     A run of the program with these statements starts.
+     */
+    void start(List<StatementNode> statements) {
+        for (StatementNode statement : statements) {
+            ensureTimeCapacity(statement.line);
+            parents[statement.line] = -1;
+            for (Node node = statement.parent(); node != null; node = node.parent()) {
+                if (node instanceof StatementNode.If || node instanceof StatementNode.While) {
+                    parents[statement.line] = ((StatementNode) node).line;
+                    break;
+                }
+            }
+        }
+        if (sampleIntervalNanos == 0) {
+            return;
+        }
+        CURRENT_LINE.setOpaque(this, -1);
+        running = true;
+        sampler = new Thread(this::sample, "profiler-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    void stop() {
+        if (sampler == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(sampler);
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sampler = null;
+    }
+
+    /**
+     The run is about to execute statement (sampling).
+     */
+    void at(StatementNode statement) {
+        count(statement.line);
+        CURRENT_LINE.setOpaque(this, statement.line);
+    }
+
+    /**
+     The run is about to test loop's condition again (sampling).
+     */
+    void atCondition(StatementNode.While loop) {
+        CURRENT_LINE.setOpaque(this, loop.line);
+    }
+
+    /**
+     The run is about to execute the statement on line (timing every statement); exit()
+     when it is done.
+     */
+    void enter(int line) {
+        count(line);
+        if (depth == stackLines.length) {
+            growStack();
+        }
+        ensureTimeCapacity(line);
+        stackLines[depth] = line;
+        stackChildNanos[depth] = 0;
+        stackStarts[depth] = System.nanoTime();
+        depth++;
+    }
+
+    void exit() {
+        depth--;
+        long elapsed = Math.max(0, System.nanoTime() - stackStarts[depth] - CLOCK_NANOS);
+        int line = stackLines[depth];
+        totalNanos[line] += elapsed;
+        selfNanos[line] += Math.max(0, elapsed - stackChildNanos[depth]);
+        if (depth > 0) {
+            stackChildNanos[depth - 1] += elapsed;
+        }
+    }
+
+    void loopIteration(int line) {
+        iterations[line]++;
+    }
+
+    private void count(int line) {
+        if (line >= hits.length) {
+            hits = Arrays.copyOf(hits, line + 1);
+            iterations = Arrays.copyOf(iterations, line + 1);
+        }
+        hits[line]++;
+    }
+
+    // The sampler thread: charge the time since the last look to the line the run is at and
+    // to the ifs and whiles around it. The time between the last look and the end of the run
+    // is left out, the run has moved on from that line by then
+    private void sample() {
+        long last = System.nanoTime();
+        while (true) {
+            LockSupport.parkNanos(sampleIntervalNanos);
+            if (!running) {
+                return;
+            }
+            long now = System.nanoTime();
+            long elapsed = now - last;
+            last = now;
+            int line = (int) CURRENT_LINE.getOpaque(this);
+            if (line < 0 || line >= selfNanos.length) {
+                continue;
+            }
+            selfNanos[line] += elapsed;
+            for (; line >= 0; line = parents[line]) {
+                totalNanos[line] += elapsed;
+            }
+        }
+    }
+
+    // The arrays start() fills and the sampler writes (or, timing every statement, the run)
+    private void ensureTimeCapacity(int line) {
+        if (line >= totalNanos.length) {
+            totalNanos = Arrays.copyOf(totalNanos, line + 1);
+            selfNanos = Arrays.copyOf(selfNanos, line + 1);
+            parents = Arrays.copyOf(parents, line + 1);
+        }
+    }
+
+    private void growStack() {
+        int size = stackLines.length * 2;
+        stackLines = Arrays.copyOf(stackLines, size);
+        stackStarts = Arrays.copyOf(stackStarts, size);
+        stackChildNanos = Arrays.copyOf(stackChildNanos, size);
+    }
+
+    private static long clockNanos() {
+        long total = 0;
+        int rounds = 20_000;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            total += System.nanoTime() - start;
+        }
+        return total / rounds;
+    }
+
+    // ---------------------------------
+    // Results (read them after the run)
+    // ---------------------------------
+
+    public long hits(int line) {
+        return line < hits.length ? hits[line] : 0;
+    }
+
+    public long iterations(int line) {
+        return line < iterations.length ? iterations[line] : 0;
+    }
+
+    public long totalNanos(int line) {
+        return line < totalNanos.length ? totalNanos[line] : 0;
+    }
+
+    public long selfNanos(int line) {
+        return line < selfNanos.length ? selfNanos[line] : 0;
+    }
+
+    /**
+     The maxLines lines with the most self time (then the most hits), hottest first, as a
+     table: line number (1-based), hits, loop iterations, total and self milliseconds,
+     share of all self time, and the code.
+     */
+    public String report(int maxLines) {
+        long allNanos = 0;
+        List<Integer> lines = new ArrayList<>();
+        for (int line = 0; line < hits.length; line++) {
+            if (hits[line] > 0) {
+                lines.add(line);
+                allNanos += selfNanos(line);
+            }
+        }
+        lines.sort((a, b) -> selfNanos(a) != selfNanos(b)
+                ? Long.compare(selfNanos(b), selfNanos(a))
+                : Long.compare(hits[b], hits[a]));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%6s %12s %12s %10s %10s %7s  %s%n",
+                "line", "hits", "iterations", "total ms", "self ms", "self%", "code"));
+        for (int line : lines.subList(0, Math.min(maxLines, lines.size()))) {
+            sb.append(String.format("%6d %12d %12s %10.3f %10.3f %6.1f%%  %s%n",
+                    line + 1, hits[line], iterations[line] > 0 ? Long.toString(iterations[line]) : "",
+                    totalNanos(line) / 1e6, selfNanos(line) / 1e6,
+                    allNanos > 0 ? 100.0 * selfNanos(line) / allNanos : 0.0, code(line)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     One collapsed stack per line with self time: its enclosing if/while lines and itself,
+     outermost first, separated by ';', then its self time in nanoseconds. Every stack
+     starts with root (e.g. the script's name) unless root is empty.
+     */
+    public void writeCollapsedStacks(Appendable out, String root) {
+        try {
+            for (int line = 0; line < hits.length; line++) {
+                if (hits[line] == 0 || selfNanos(line) <= 0) {
+                    continue;
+                }
+                StringBuilder stack = new StringBuilder(frame(line));
+                for (int parent = parents[line]; parent >= 0; parent = parents[parent]) {
+                    stack.insert(0, frame(parent) + ";");
+                }
+                if (!root.isEmpty()) {
+                    stack.insert(0, root.replace(';', ',') + ";");
+                }
+                out.append(stack).append(' ').append(Long.toString(selfNanos(line))).append('\n');
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String frame(int line) {
+        return (line + 1) + ": " + code(line).replace(';', ',');
+    }
+
+    private String code(int line) {
+        return line < sourceLines.length ? sourceLines[line].trim() : "";
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ ProgramCache: compiled programs kept on disk (see ProgramFile), so a script that was
+ compiled before is loaded without lexing or parsing it again.
+
+ Entries are named after the SHA-256 of the source, so an edited script gets a new entry
+ and never an old program. An entry from another format version, or one that is truncated
+ or corrupt, is compiled again and overwritten. Entries are written to a temp file and moved
+ into place, so concurrent users of the same directory only ever see whole files.
+
+ The directory is kept under maxBytes by deleting the least recently used entries; a hit
+ touches the entry's modification time, which is what "recently used" goes by.
+ */
+final class ProgramCache {
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final String SUFFIX = ".program";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    ProgramCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    ProgramCache(Path directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     The compiled program for source, from the cache when it has a good entry, otherwise
+     compiled now and stored.
+     */
+    CompiledProgram load(String source) throws IOException {
+        byte[] hash = sha256(source);
+        Path file = directory.resolve(hex(hash) + SUFFIX);
+        CompiledProgram cached = read(file, hash);
+        if (cached != null) {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return cached;
+        }
+
+        CompiledProgram program = CompiledProgram.compile(source);
+        store(file, ProgramFile.write(program, hash));
+        return program;
+    }
+
+    // The program in file, or null when there is none or it is no good
+    private static CompiledProgram read(Path file, byte[] hash) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return ProgramFile.read(buffer, hash);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IllegalStateException e) {
+            // Stale or corrupt entry: compile again, store() replaces it
+            return null;
+        }
+    }
+
+    private void store(Path file, byte[] bytes) throws IOException {
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, "entry", ".tmp");
+        try {
+            Files.write(temp, bytes);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        evict();
+    }
+
+    /**
+     Delete the least recently used entries until the cache fits in maxBytes.
+     */
+    void evict() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue; // evicted by someone else meanwhile
+                }
+                entries.add(new Entry(file, attributes.size(), attributes.lastModifiedTime()));
+                total += attributes.size();
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        entries.sort(Comparator.comparing((Entry entry) -> entry.lastUsed));
+        for (Entry entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            Files.deleteIfExists(entry.file);
+            total -= entry.size;
+        }
+    }
+
+    private static final class Entry {
+        final Path file;
+        final long size;
+        final FileTime lastUsed;
+
+        Entry(Path file, long size, FileTime lastUsed) {
+            this.file = file;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    // ---------------------------------
+    // Keys
+    // ---------------------------------
+
+    private static byte[] sha256(String source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
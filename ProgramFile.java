@@ -0,0 +1,328 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ ProgramFile: a compiled program (the node tree, variables already resolved to slots)
+ as bytes, so it can be stored and loaded again without lexing or parsing.
+
+ Layout, all ints big-endian so the file can be read straight from a MappedByteBuffer:
+
+   int     magic "P2JC"
+   int     FORMAT_VERSION
+   byte[32] SHA-256 of the source
+   int     slot count
+   int     string count, then per string: int byte length + UTF-8 bytes
+   int     node int count, then the tree as ints in pre-order (see the tags below)
+   int     CRC32 of everything before it
+
+ Strings (variable names, unparsable numbers, error messages) are referenced by index.
+ A file with the wrong magic, version or checksum, or that doesn't decode to a valid
+ tree, is rejected with an IllegalStateException.
+ */
+final class ProgramFile {
+    static final int MAGIC = 0x50324A43; // "P2JC"
+    static final int FORMAT_VERSION = 1;
+
+    // Statement tags: BLOCK line count statements... | ASSIGN line slot name expr | PRINT line expr
+    // | IF line hasElse cond then [else] | WHILE line cond body
+    private static final int BLOCK = 1;
+    private static final int ASSIGN = 2;
+    private static final int PRINT = 3;
+    private static final int IF = 4;
+    private static final int WHILE = 5;
+
+    // Expression tags: CONSTANT value | LITERAL text | READ slot name | FAIL message | BINARY op left right
+    private static final int CONSTANT = 16;
+    private static final int LITERAL = 17;
+    private static final int READ = 18;
+    private static final int FAIL = 19;
+    private static final int BINARY = 20;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private ProgramFile() {
+    }
+
+    // ---------------------------------
+    // Writing
+    // ---------------------------------
+
+    /**
+     Encode program, compiled from the source with the given SHA-256.
+     */
+    static byte[] write(CompiledProgram program, byte[] sourceHash) {
+        Encoder encoder = new Encoder();
+        encoder.statement(program.tree());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.write(sourceHash);
+            out.writeInt(program.slotCount());
+            out.writeInt(encoder.strings.size());
+            for (String string : encoder.strings) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+            out.writeInt(encoder.size);
+            for (int i = 0; i < encoder.size; i++) {
+                out.writeInt(encoder.ints[i]);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static final class Encoder {
+        private int[] ints = new int[256];
+        private int size = 0;
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+
+        void statement(StatementNode node) {
+            if (node instanceof StatementNode.Block) {
+                StatementNode.Block block = (StatementNode.Block) node;
+                emit(BLOCK, block.line, block.statements.length);
+                for (StatementNode statement : block.statements) {
+                    statement(statement);
+                }
+            } else if (node instanceof StatementNode.Assign) {
+                StatementNode.Assign assign = (StatementNode.Assign) node;
+                emit(ASSIGN, assign.line, assign.slot);
+                emit(string(assign.name));
+                expression(assign.value);
+            } else if (node instanceof StatementNode.Print) {
+                emit(PRINT, node.line);
+                expression(((StatementNode.Print) node).value);
+            } else if (node instanceof StatementNode.If) {
+                StatementNode.If ifNode = (StatementNode.If) node;
+                emit(IF, ifNode.line, ifNode.elseBlock != null ? 1 : 0);
+                expression(ifNode.condition);
+                statement(ifNode.thenBlock);
+                if (ifNode.elseBlock != null) {
+                    statement(ifNode.elseBlock);
+                }
+            } else if (node instanceof StatementNode.While) {
+                StatementNode.While loop = (StatementNode.While) node;
+                emit(WHILE, loop.line);
+                expression(loop.condition);
+                statement(loop.body);
+            } else {
+                throw new IllegalStateException("Unknown statement node: " + node);
+            }
+        }
+
+        void expression(ExpressionNode node) {
+            if (node instanceof ExpressionNode.Constant) {
+                emit(CONSTANT, ((ExpressionNode.Constant) node).value);
+            } else if (node instanceof ExpressionNode.Literal) {
+                emit(LITERAL, string(((ExpressionNode.Literal) node).text));
+            } else if (node instanceof ExpressionNode.Read) {
+                ExpressionNode.Read read = (ExpressionNode.Read) node;
+                emit(READ, read.slot, string(read.name));
+            } else if (node instanceof ExpressionNode.Fail) {
+                emit(FAIL, string(((ExpressionNode.Fail) node).message));
+            } else if (node instanceof ExpressionNode.Binary) {
+                ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+                emit(BINARY, binary.op.ordinal());
+                expression(binary.left);
+                expression(binary.right);
+            } else {
+                throw new IllegalStateException("Unknown expression node: " + node);
+            }
+        }
+
+        private int string(String value) {
+            return stringIndex.computeIfAbsent(value, s -> {
+                strings.add(s);
+                return strings.size() - 1;
+            });
+        }
+
+        private void emit(int... values) {
+            for (int value : values) {
+                if (size == ints.length) {
+                    ints = java.util.Arrays.copyOf(ints, size * 2);
+                }
+                ints[size++] = value;
+            }
+        }
+    }
+
+    // ---------------------------------
+    // Reading
+    // ---------------------------------
+
+    /**
+     Decode a program from buffer (from its position to its limit), checking that it was
+     compiled from the source with the given SHA-256.
+     */
+    static CompiledProgram read(ByteBuffer buffer, byte[] sourceHash) {
+        try {
+            ByteBuffer in = buffer.slice();
+            int end = in.limit() - 4;
+            if (end < 8) {
+                throw corrupt("too short");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(in.duplicate().limit(end));
+            if ((int) crc.getValue() != in.getInt(end)) {
+                throw corrupt("checksum mismatch");
+            }
+            in.limit(end);
+
+            if (in.getInt() != MAGIC) {
+                throw corrupt("not a program file");
+            }
+            int version = in.getInt();
+            if (version != FORMAT_VERSION) {
+                throw corrupt("format version " + version + ", expected " + FORMAT_VERSION);
+            }
+            byte[] hash = new byte[32];
+            in.get(hash);
+            if (!java.util.Arrays.equals(hash, sourceHash)) {
+                throw corrupt("compiled from a different source");
+            }
+
+            int slotCount = in.getInt();
+            String[] strings = new String[checkedCount(in.getInt(), in.remaining())];
+            for (int i = 0; i < strings.length; i++) {
+                int length = checkedCount(in.getInt(), in.remaining());
+                ByteBuffer utf8 = in.slice().limit(length);
+                strings[i] = StandardCharsets.UTF_8.decode(utf8).toString();
+                in.position(in.position() + length);
+            }
+            int nodeInts = checkedCount(in.getInt(), in.remaining() / 4);
+
+            Decoder decoder = new Decoder(in, strings, slotCount);
+            StatementNode node = decoder.statement();
+            if (!(node instanceof StatementNode.Block) || in.hasRemaining() || nodeInts * 4 != decoder.bytesRead()) {
+                throw corrupt("bad tree");
+            }
+            return CompiledProgram.fromTree((StatementNode.Block) node, slotCount);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw corrupt("truncated or malformed (" + e + ")");
+        }
+    }
+
+    private static final class Decoder {
+        private final ByteBuffer in;
+        private final int start;
+        private final String[] strings;
+        private final int slotCount;
+
+        Decoder(ByteBuffer in, String[] strings, int slotCount) {
+            this.in = in;
+            this.start = in.position();
+            this.strings = strings;
+            this.slotCount = slotCount;
+        }
+
+        int bytesRead() {
+            return in.position() - start;
+        }
+
+        StatementNode statement() {
+            int tag = in.getInt();
+            int line = in.getInt();
+            switch (tag) {
+                case BLOCK: {
+                    StatementNode[] statements = new StatementNode[checkedCount(in.getInt(), in.remaining())];
+                    for (int i = 0; i < statements.length; i++) {
+                        statements[i] = statement();
+                    }
+                    return new StatementNode.Block(line, statements);
+                }
+                case ASSIGN: {
+                    int slot = slot(in.getInt());
+                    String name = strings[in.getInt()];
+                    return new StatementNode.Assign(line, name, slot, expression());
+                }
+                case PRINT:
+                    return new StatementNode.Print(line, expression());
+                case IF: {
+                    boolean hasElse = in.getInt() != 0;
+                    ExpressionNode condition = expression();
+                    StatementNode.Block thenBlock = block();
+                    StatementNode.Block elseBlock = hasElse ? block() : null;
+                    return new StatementNode.If(line, condition, thenBlock, elseBlock);
+                }
+                case WHILE: {
+                    ExpressionNode condition = expression();
+                    return new StatementNode.While(line, condition, block());
+                }
+                default:
+                    throw corrupt("unknown statement tag " + tag);
+            }
+        }
+
+        private StatementNode.Block block() {
+            StatementNode node = statement();
+            if (!(node instanceof StatementNode.Block)) {
+                throw corrupt("expected a block");
+            }
+            return (StatementNode.Block) node;
+        }
+
+        ExpressionNode expression() {
+            int tag = in.getInt();
+            switch (tag) {
+                case CONSTANT:
+                    return new ExpressionNode.Constant(in.getInt());
+                case LITERAL:
+                    return new ExpressionNode.Literal(strings[in.getInt()]);
+                case READ: {
+                    int slot = slot(in.getInt());
+                    return new ExpressionNode.Read(strings[in.getInt()], slot);
+                }
+                case FAIL:
+                    return new ExpressionNode.Fail(strings[in.getInt()]);
+                case BINARY: {
+                    TokenType op = TYPES[in.getInt()];
+                    if (!Parser.isOperator(op)) {
+                        throw corrupt("not an operator: " + op);
+                    }
+                    ExpressionNode left = expression();
+                    return new ExpressionNode.Binary(op, left, expression());
+                }
+                default:
+                    throw corrupt("unknown expression tag " + tag);
+            }
+        }
+
+        private int slot(int slot) {
+            if (slot < 0 || slot >= slotCount) {
+                throw corrupt("slot " + slot + " out of range");
+            }
+            return slot;
+        }
+    }
+
+    // A count read from the file can't be negative or larger than what is left of it
+    private static int checkedCount(int count, int limit) {
+        if (count < 0 || count > limit) {
+            throw corrupt("bad count " + count);
+        }
+        return count;
+    }
+
+    private static IllegalStateException corrupt(String why) {
+        return new IllegalStateException("Corrupt program file: " + why);
+    }
+}
@@ -0,0 +1,213 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ ScriptScheduler: runs many scripts on a fixed number of worker threads, a slice at a time,
+ so that one script that loops forever can't keep a thread to itself.
+
+ Every script runs on its own VirtualMachine. A worker takes the script at the head of the
+ ready queue, runs it for one quantum of fuel (statements plus loop iterations, see
+ VirtualMachine.runFor) and, unless it ended, puts it back at the tail: round robin, so
+ every script gets the same share of the threads. The thread CPU time of every slice is
+ added to its script, and a script can be cancelled at any time; it stops at the end of
+ its current slice at the latest.
+
+ Scripts are compiled to bytecode (with compileForSlices) when submitted, so errors in them ("Division by zero."
+ and the like) happen while they run and fail only their own Task.
+ */
+final class ScriptScheduler implements AutoCloseable {
+    static final int DEFAULT_QUANTUM = 10_000;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final int quantum;
+    private final LinkedBlockingQueue<Task> ready = new LinkedBlockingQueue<>();
+    private final Thread[] workers;
+    private volatile boolean closed = false;
+
+    ScriptScheduler(int workerCount, int quantum) {
+        if (workerCount < 1 || quantum < 1) {
+            throw new IllegalArgumentException("Need at least one worker and a quantum of at least 1");
+        }
+        this.quantum = quantum;
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::work, "script-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    ScriptScheduler(int workerCount) {
+        this(workerCount, DEFAULT_QUANTUM);
+    }
+
+    /**
+     Compile source and queue it to run, printing to out.
+     */
+    Task submit(String name, String source, OutputSink out) {
+        Bytecode program = BytecodeCompiler.compileForSlices(new Lexer(source).tokenize(), source);
+        return submit(name, program, out);
+    }
+
+    /**
+     Queue a program compiled with BytecodeCompiler.compileForSlices. (Plain bytecode has
+     no fuel instructions: it would run to its end in its first slice.)
+     */
+    Task submit(String name, Bytecode program, OutputSink out) {
+        if (closed) {
+            throw new IllegalStateException("Scheduler is closed");
+        }
+        Task task = new Task(this, name, new VirtualMachine(program, out));
+        ready.add(task);
+        return task;
+    }
+
+    /**
+     Scripts waiting for a worker right now.
+     */
+    int pending() {
+        return ready.size();
+    }
+
+    /**
+     Stop the workers; scripts that haven't ended are cancelled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        Task task;
+        while ((task = ready.poll()) != null) {
+            task.finishCancelled();
+        }
+    }
+
+    private void work() {
+        while (!closed) {
+            Task task;
+            try {
+                task = ready.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task.runSlice(quantum)) {
+                ready.add(task);
+            }
+        }
+    }
+
+    /**
+     One submitted script: its progress, its CPU use, and a future that completes (with
+     the Task itself) when it ends, fails or is cancelled.
+     */
+    static final class Task {
+        enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+        final String name;
+        private final ScriptScheduler scheduler;
+        private final VirtualMachine vm;
+        private final CompletableFuture<Task> completion = new CompletableFuture<>();
+
+        private volatile State state = State.QUEUED;
+        private volatile boolean cancelRequested = false;
+        private volatile long cpuNanos = 0;
+        private volatile long slices = 0;
+
+        private Task(ScriptScheduler scheduler, String name, VirtualMachine vm) {
+            this.scheduler = scheduler;
+            this.name = name;
+            this.vm = vm;
+        }
+
+        State state() {
+            return state;
+        }
+
+        // Thread CPU time of all its slices so far
+        long cpuNanos() {
+            return cpuNanos;
+        }
+
+        long slices() {
+            return slices;
+        }
+
+        // Fuel used so far (statements plus loop iterations)
+        long steps() {
+            return vm.steps();
+        }
+
+        CompletableFuture<Task> completion() {
+            return completion;
+        }
+
+        /**
+         Stop the script: right away if it is waiting in the queue, after its current
+         slice if it is running. Does nothing once it has ended.
+         */
+        void cancel() {
+            cancelRequested = true;
+            if (scheduler.ready.remove(this)) {
+                finishCancelled();
+            }
+        }
+
+        // Run one slice; true if the script should be queued again
+        private boolean runSlice(int quantum) {
+            if (cancelRequested) {
+                finishCancelled();
+                return false;
+            }
+            state = State.RUNNING;
+            long start = THREADS.getCurrentThreadCpuTime();
+            boolean ended;
+            try {
+                ended = vm.runFor(quantum);
+            } catch (RuntimeException e) {
+                addSlice(start);
+                state = State.FAILED;
+                completion.completeExceptionally(e);
+                return false;
+            }
+            addSlice(start);
+            if (ended) {
+                state = State.DONE;
+                completion.complete(this);
+                return false;
+            }
+            if (cancelRequested) {
+                finishCancelled();
+                return false;
+            }
+            state = State.QUEUED;
+            return true;
+        }
+
+        // Only the worker running the slice writes these
+        private void addSlice(long cpuStart) {
+            cpuNanos += THREADS.getCurrentThreadCpuTime() - cpuStart;
+            slices++;
+        }
+
+        private void finishCancelled() {
+            // What it printed until now still comes out
+            vm.flush();
+            state = State.CANCELLED;
+            completion.completeExceptionally(new CancellationException("Script " + name + " was cancelled"));
+        }
+    }
+}
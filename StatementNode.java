@@ -0,0 +1,608 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ StatementNode: a node that does something (assign, print, branch, loop).
+ Every statement remembers the index of the source line it came from.
+
+ Statements are where a value that doesn't fit in an int is caught (Numbers.Overflow):
+ the statement evaluates its expression again with executeBig and goes on with that.
+ */
+abstract class StatementNode extends Node {
+    int line; // only ever changed by moveLines
+
+    // Expression nodes one execution evaluates, for Telemetry; -1 until first asked
+    private int expressionNodes = -1;
+
+    StatementNode(int line) {
+        this.line = line;
+    }
+
+    abstract void execute(ExecutionContext context);
+
+    /**
+     Specialize every expression below this statement ahead of time (ExpressionNode.prepare),
+     so running the tree never rewrites it and it can be shared between threads. Assignments
+     are fused into superinstructions here if options has them on.
+     */
+    abstract void prepare(EngineOptions options);
+
+    /**
+     How many expression nodes running this statement once evaluates, not counting the
+     blocks inside it; for a while, how many one check of its condition evaluates.
+     */
+    final int expressionNodes() {
+        int count = expressionNodes;
+        if (count < 0) {
+            count = countExpressionNodes();
+            expressionNodes = count;
+        }
+        return count;
+    }
+
+    int countExpressionNodes() {
+        return 0;
+    }
+
+    /**
+     condition.test, or the same test on BigIntegers when a value in it doesn't fit in an int.
+     */
+    static boolean test(ExpressionNode condition, ExecutionContext context) {
+        try {
+            return condition.test(context);
+        } catch (Numbers.Overflow e) {
+            return condition.executeBig(context).signum() != 0;
+        }
+    }
+
+    // ---------------------------------
+    // Taking over a run part way
+    // ---------------------------------
+
+    /**
+     The statements of program (no blocks) in the order a walk through the tree meets them:
+     an if, then its then-block and its else-block; a while, then its body. Compiled code
+     names the statement it stopped in by its index here.
+     */
+    static List<StatementNode> inOrder(Block program) {
+        List<StatementNode> statements = new ArrayList<>();
+        addInOrder(program, statements);
+        return statements;
+    }
+
+    private static void addInOrder(StatementNode node, List<StatementNode> statements) {
+        if (node instanceof Block) {
+            for (StatementNode statement : ((Block) node).statements) {
+                addInOrder(statement, statements);
+            }
+            return;
+        }
+        statements.add(node);
+        if (node instanceof If) {
+            addInOrder(((If) node).thenBlock, statements);
+            if (((If) node).elseBlock != null) {
+                addInOrder(((If) node).elseBlock, statements);
+            }
+        } else if (node instanceof While) {
+            addInOrder(((While) node).body, statements);
+        }
+    }
+
+    /**
+     Add lines to the line of node and of every statement inside it: for EditableProgram,
+     whose statements stay as they are when an edit above them adds or removes lines.
+     */
+    static void moveLines(StatementNode node, int lines) {
+        node.line += lines;
+        if (node instanceof Block) {
+            for (StatementNode statement : ((Block) node).statements) {
+                moveLines(statement, lines);
+            }
+        } else if (node instanceof If) {
+            moveLines(((If) node).thenBlock, lines);
+            if (((If) node).elseBlock != null) {
+                moveLines(((If) node).elseBlock, lines);
+            }
+        } else if (node instanceof While) {
+            moveLines(((While) node).body, lines);
+        }
+    }
+
+    /**
+     Run the part of node that comes after statement from (and from itself too, if
+     including): the rest of every block around from, with every while around it going on
+     with its next iteration. This is how compiled code that can only deal with ints hands
+     a run over to the tree in the middle, when a value outgrows an int, and how a run goes
+     on from a Checkpoint. Returns false
+     (having run nothing) when from is not inside node.
+     */
+    static boolean resume(StatementNode node, StatementNode from, boolean including, ExecutionContext context) {
+        if (node == from) {
+            if (including) {
+                node.execute(context);
+            }
+            return true;
+        }
+        if (node instanceof Block) {
+            StatementNode[] statements = ((Block) node).statements;
+            for (int i = 0; i < statements.length; i++) {
+                if (resume(statements[i], from, including, context)) {
+                    for (int j = i + 1; j < statements.length; j++) {
+                        statements[j].execute(context);
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (node instanceof If) {
+            If branch = (If) node;
+            return resume(branch.thenBlock, from, including, context)
+                    || (branch.elseBlock != null && resume(branch.elseBlock, from, including, context));
+        }
+        if (node instanceof While && resume(((While) node).body, from, including, context)) {
+            // On with the loop, from its condition
+            node.execute(context);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     A list of statements run one after another (the body of if/else/while,
+     or the whole program).
+     */
+    static final class Block extends StatementNode {
+        final StatementNode[] statements;
+
+        Block(int line, StatementNode[] statements) {
+            super(line);
+            this.statements = statements;
+            for (StatementNode statement : statements) {
+                adopt(statement);
+            }
+        }
+
+        @Override
+        void execute(ExecutionContext context) {
+            if (context.monitored) {
+                Profiler profiler = context.profiler;
+                if (context.counters == null && !profiler.timesEveryStatement()) {
+                    executeSampled(context, profiler);
+                } else {
+                    executeMonitored(context, profiler, context.counters);
+                }
+                return;
+            }
+            for (StatementNode statement : statements) {
+                statement.execute(context);
+            }
+        }
+
+        // As small as the plain loop, so a sampled run is compiled much like an unprofiled one
+        private void executeSampled(ExecutionContext context, Profiler profiler) {
+            for (StatementNode statement : statements) {
+                profiler.at(statement);
+                statement.execute(context);
+            }
+        }
+
+        private void executeMonitored(ExecutionContext context, Profiler profiler, Telemetry.Counters counters) {
+            for (StatementNode statement : statements) {
+                if (counters != null) {
+                    counters.statement(statement);
+                }
+                if (profiler == null) {
+                    statement.execute(context);
+                    continue;
+                }
+                if (!profiler.timesEveryStatement()) {
+                    profiler.at(statement);
+                    statement.execute(context);
+                    continue;
+                }
+                profiler.enter(statement.line);
+                try {
+                    statement.execute(context);
+                } finally {
+                    profiler.exit();
+                }
+            }
+        }
+
+        @Override
+        void prepare(EngineOptions options) {
+            // An assignment may replace itself with a fused one in our array
+            for (StatementNode statement : statements) {
+                statement.prepare(options);
+            }
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            for (int i = 0; i < statements.length; i++) {
+                if (statements[i] == oldChild) {
+                    statements[i] = (StatementNode) newChild;
+                    return;
+                }
+            }
+            super.replaceChild(oldChild, newChild);
+        }
+    }
+
+    /**
+     name = expr. Preparing it turns the common shapes into a fused subclass (see FusedAssign).
+     */
+    static class Assign extends StatementNode {
+        final String name;
+        final int slot;
+        ExpressionNode value;
+
+        Assign(int line, String name, int slot, ExpressionNode value) {
+            super(line);
+            this.name = name;
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        void execute(ExecutionContext context) {
+            try {
+                context.write(slot, value.execute(context));
+            } catch (Numbers.Overflow e) {
+                executeBig(context);
+            }
+        }
+
+        // The slow path: value on BigIntegers
+        final void executeBig(ExecutionContext context) {
+            context.writeBig(slot, value.executeBig(context));
+        }
+
+        @Override
+        void prepare(EngineOptions options) {
+            value.prepare();
+            if (options.superinstructions) {
+                Assign fused = fuse();
+                if (fused != null) {
+                    replace(fused);
+                }
+            }
+        }
+
+        // The fused form of this assignment, or null if it has none
+        private Assign fuse() {
+            if (value instanceof ExpressionNode.Read) {
+                return new MoveSlot(this, ((ExpressionNode.Read) value).slot);
+            }
+            if (!(value instanceof ExpressionNode.ReadConstant) || Parser.isComparison(((ExpressionNode.Binary) value).op)) {
+                return null;
+            }
+            ExpressionNode.Binary binary = (ExpressionNode.Binary) value;
+            int source = ((ExpressionNode.Read) binary.left).slot;
+            int constant = ((ExpressionNode.Constant) binary.right).value;
+            if (source == slot && binary.op == TokenType.PLUS) {
+                return new IncrementSlot(this, constant);
+            }
+            if (source == slot && binary.op == TokenType.MINUS && constant != Integer.MIN_VALUE) {
+                return new IncrementSlot(this, -constant);
+            }
+            return new SlotOpConst(this, source, constant);
+        }
+
+        @Override
+        int countExpressionNodes() {
+            return value.size();
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            if (value == oldChild) {
+                value = (ExpressionNode) newChild;
+            } else {
+                super.replaceChild(oldChild, newChild);
+            }
+        }
+    }
+
+    // ---------------------------------
+    // Superinstructions
+    // ---------------------------------
+
+    /**
+     The assignments hot loops are made of, each run as one operation on the slots, without
+     calling into its expression. They keep value (the expression they stand for), so
+     everything else that reads the tree (the compilers, ProgramFile, the tracing JIT, the
+     counters) still sees a plain Assign.
+     */
+    abstract static class FusedAssign extends Assign {
+        FusedAssign(Assign assign) {
+            super(assign.line, assign.name, assign.slot, assign.value);
+        }
+
+        @Override
+        abstract void execute(ExecutionContext context);
+
+        @Override
+        void prepare(EngineOptions options) {
+            // Made by prepare, nothing left to do
+        }
+    }
+
+    /**
+     x = y
+     */
+    static final class MoveSlot extends FusedAssign {
+        private final int source;
+
+        MoveSlot(Assign assign, int source) {
+            super(assign);
+            this.source = source;
+        }
+
+        @Override
+        void execute(ExecutionContext context) {
+            try {
+                context.write(slot, context.read(source));
+            } catch (Numbers.Overflow e) {
+                executeBig(context);
+            }
+        }
+    }
+
+    /**
+     i = i + 1, i = i - 1 (any constant)
+     */
+    static final class IncrementSlot extends FusedAssign {
+        private final int delta;
+
+        IncrementSlot(Assign assign, int delta) {
+            super(assign);
+            this.delta = delta;
+        }
+
+        @Override
+        void execute(ExecutionContext context) {
+            try {
+                context.write(slot, Numbers.add(context.read(slot), delta));
+            } catch (Numbers.Overflow e) {
+                executeBig(context);
+            }
+        }
+    }
+
+    /**
+     x = y op 5, e.g. digit = n % 10 or n = n / 10
+     */
+    static final class SlotOpConst extends FusedAssign {
+        private final TokenType op;
+        private final int source;
+        private final int constant;
+
+        SlotOpConst(Assign assign, int source, int constant) {
+            super(assign);
+            this.op = ((ExpressionNode.Binary) assign.value).op;
+            this.source = source;
+            this.constant = constant;
+        }
+
+        @Override
+        void execute(ExecutionContext context) {
+            try {
+                context.write(slot, ExpressionNode.apply(op, context.read(source), constant));
+            } catch (Numbers.Overflow e) {
+                executeBig(context);
+            }
+        }
+    }
+
+    /**
+     print(expr) or print expr
+     */
+    static final class Print extends StatementNode {
+        ExpressionNode value;
+
+        Print(int line, ExpressionNode value) {
+            super(line);
+            this.value = adopt(value);
+        }
+
+        @Override
+        void execute(ExecutionContext context) {
+            int result;
+            try {
+                result = value.execute(context);
+            } catch (Numbers.Overflow e) {
+                context.out.print(value.executeBig(context));
+                return;
+            }
+            context.out.print(result);
+        }
+
+        @Override
+        void prepare(EngineOptions options) {
+            value.prepare();
+        }
+
+        @Override
+        int countExpressionNodes() {
+            return value.size();
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            if (value == oldChild) {
+                value = (ExpressionNode) newChild;
+            } else {
+                super.replaceChild(oldChild, newChild);
+            }
+        }
+    }
+
+    /**
+     if cond: then-block, with an optional else-block (null when there is no else).
+     */
+    static final class If extends StatementNode {
+        ExpressionNode condition;
+        final Block thenBlock;
+        final Block elseBlock;
+
+        If(int line, ExpressionNode condition, Block thenBlock, Block elseBlock) {
+            super(line);
+            this.condition = adopt(condition);
+            this.thenBlock = adopt(thenBlock);
+            this.elseBlock = adopt(elseBlock);
+        }
+
+        @Override
+        void execute(ExecutionContext context) {
+            if (test(condition, context)) {
+                thenBlock.execute(context);
+            } else if (elseBlock != null) {
+                elseBlock.execute(context);
+            }
+        }
+
+        @Override
+        void prepare(EngineOptions options) {
+            condition.prepare();
+            thenBlock.prepare(options);
+            if (elseBlock != null) {
+                elseBlock.prepare(options);
+            }
+        }
+
+        @Override
+        int countExpressionNodes() {
+            return condition.size();
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            if (condition == oldChild) {
+                condition = (ExpressionNode) newChild;
+            } else {
+                super.replaceChild(oldChild, newChild);
+            }
+        }
+    }
+
+    /**
+     while cond: body. The condition is re-checked before every iteration.
+     After options.traceThreshold iterations (see EngineOptions) the loop is traced and runs compiled from then on
+     (not while profiling, see Profiler).
+
+     The tracing state is shared by every thread running the tree: the counter may lose
+     updates (it only decides when to trace), and the trace is published through a volatile
+     field. Two threads may both record a trace; either one is correct.
+
+     In a run that takes checkpoints, the end of every iteration tells the Checkpointer
+     (see atBackEdge): the loop is then about to test its condition again, which is where a
+     checkpoint taken there goes on.
+     */
+    static final class While extends StatementNode {
+        ExpressionNode condition;
+        final Block body;
+
+        private int iterations;
+        private boolean untraceable;
+        private volatile TracingJit.LoopTrace trace;
+
+        While(int line, ExpressionNode condition, Block body) {
+            super(line);
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+        }
+
+        @Override
+        void execute(ExecutionContext context) {
+            if (context.monitored) {
+                executeMonitored(context, context.profiler, context.counters, context.checkpointer);
+                return;
+            }
+            Checkpointer checkpointer = context.checkpointer;
+            TracingJit.LoopTrace compiled = trace;
+            if (compiled != null && (compiled.polls || checkpointer == null)) {
+                compiled.run(context);
+                return;
+            }
+            // No trace yet, or one that has no place for a checkpoint: the next iteration
+            // records one (that polls) if the loop is hot
+            while (test(condition, context)) {
+                if (context.options.tracing && !untraceable && ++iterations >= context.options.traceThreshold) {
+                    // This iteration runs in the recorder; the rest of the loop in the trace
+                    compiled = TracingJit.recordAndCompile(this, context);
+                    if (compiled == null) {
+                        untraceable = true;
+                        continue;
+                    }
+                    trace = compiled;
+                    compiled.run(context);
+                    return;
+                }
+                body.execute(context);
+                if (checkpointer != null) {
+                    checkpointer.atBackEdge(this, context);
+                }
+            }
+        }
+
+        /**
+         The rest of the loop (from its condition on) in the interpreter, not in its trace:
+         for when the trace can't go on, see TracingJit.LoopTrace.
+         */
+        void executeUntraced(ExecutionContext context) {
+            Checkpointer checkpointer = context.checkpointer;
+            while (test(condition, context)) {
+                body.execute(context);
+                if (checkpointer != null) {
+                    checkpointer.atBackEdge(this, context);
+                }
+            }
+        }
+
+        // Never traced, so the profiler and the counters see every iteration
+        private void executeMonitored(ExecutionContext context, Profiler profiler, Telemetry.Counters counters,
+                                      Checkpointer checkpointer) {
+            while (true) {
+                boolean iterates = test(condition, context);
+                if (counters != null) {
+                    counters.loopCheck(this, iterates);
+                }
+                if (!iterates) {
+                    return;
+                }
+                if (profiler != null) {
+                    profiler.loopIteration(line);
+                }
+                body.execute(context);
+                if (profiler != null) {
+                    profiler.atCondition(this);
+                }
+                if (checkpointer != null) {
+                    checkpointer.atBackEdge(this, context);
+                }
+            }
+        }
+
+        @Override
+        void prepare(EngineOptions options) {
+            condition.prepare();
+            body.prepare(options);
+        }
+
+        @Override
+        int countExpressionNodes() {
+            return condition.size();
+        }
+
+        @Override
+        protected void replaceChild(Node oldChild, Node newChild) {
+            if (condition == oldChild) {
+                condition = (ExpressionNode) newChild;
+            } else {
+                super.replaceChild(oldChild, newChild);
+            }
+        }
+    }
+}
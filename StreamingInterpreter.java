@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ StreamingInterpreter: runs a script while it is still being read, for scripts too big
+ to hold as a String, a token list and a line list all at once.
+
+ The source is read from a Reader one physical line at a time, and every line is lexed
+ on its own (no token crosses a newline). A top-level statement runs as soon as it is
+ complete: a plain line right away, an if/while once a line with an indent at or below
+ the header's ends its block (for an if, once we also know whether an else follows).
+ Only the lines of the statement being collected are kept, so memory is bounded by the
+ largest top-level if/while, not by the size of the script.
+
+ The output is the same as Interpreter's for the same source, with one difference:
+ a lexer error ("Unexpected character") happens when its line is reached, after the
+ lines before it have run.
+ */
+class StreamingInterpreter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0; // next unread char in buffer
+    private int limit = 0;    // end of the chars read into buffer
+    private final StringBuilder lineText = new StringBuilder();
+
+    // Variables keep their slots from one statement to the next
+    private final SymbolTable symbols = new SymbolTable();
+    private ExecutionContext context;
+
+    // The top-level if/while (or stray else) whose lines are still being collected
+    private final List<Interpreter.Line> pending = new ArrayList<>();
+    private boolean pendingHasElse = false;
+
+    StreamingInterpreter(Reader in, OutputSink out) {
+        this.in = in;
+        this.context = new ExecutionContext(0, out);
+    }
+
+    StreamingInterpreter(Reader in) {
+        this(in, OutputSink.systemOut());
+    }
+
+    StreamingInterpreter(InputStream in) {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     Read and run the whole script.
+     */
+    void run() throws IOException {
+        // Reading, lexing and parsing happen along the way, so all of it counts as executing
+        Telemetry.Run run = Telemetry.startRun(context.counters);
+        try {
+            readAndRun();
+        } catch (RuntimeException e) {
+            run.failed(e);
+            throw e;
+        } finally {
+            context.out.flush();
+            run.end();
+        }
+    }
+
+    private void readAndRun() throws IOException {
+        boolean endedWithNewline = true;
+        while (endedWithNewline) {
+            endedWithNewline = readLine();
+            String text = lineText.toString();
+            TokenBuffer tokens = new Lexer(text).tokenize();
+            // Every token but the EOF
+            Interpreter.Line line = new Interpreter.Line(tokens, 0, tokens.size() - 1, Interpreter.countLeadingSpaces(text));
+
+            if (endedWithNewline) {
+                feed(line);
+            } else if (!line.isEmpty()) {
+                // Like splitIntoIndentedLines, a last line without a newline is added twice
+                feed(line);
+                feed(line);
+            }
+        }
+        flush();
+    }
+
+    // Add one line: either it belongs to the pending statement, or that statement is complete
+    private void feed(Interpreter.Line line) {
+        if (!pending.isEmpty()) {
+            Interpreter.Line header = pending.get(0);
+            if (line.indent > header.indent) {
+                pending.add(line);
+                return;
+            }
+            if (!pendingHasElse && BlockIndex.isHeader(header, TokenType.IF)
+                    && BlockIndex.startsWith(line, TokenType.ELSE) && line.indent == header.indent) {
+                pending.add(line);
+                pendingHasElse = true;
+                return;
+            }
+            flush();
+        }
+
+        if (BlockIndex.isHeader(line, TokenType.IF) || BlockIndex.isHeader(line, TokenType.WHILE)
+                || BlockIndex.startsWith(line, TokenType.ELSE)) {
+            pending.add(line);
+        } else {
+            execute(Collections.singletonList(line));
+        }
+    }
+
+    // Run the pending statement, if any, and forget its lines
+    private void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            execute(pending);
+        } finally {
+            pending.clear();
+            pendingHasElse = false;
+        }
+    }
+
+    private void execute(List<Interpreter.Line> lines) {
+        // Only folding: later input may still assign any variable
+        StatementNode.Block block = Optimizer.fold(new Parser(lines, symbols).parseProgram());
+        context = context.withSlotCount(symbols.size());
+        block.execute(context);
+    }
+
+    // Read the next physical line into lineText, without its '\n'.
+    // Returns false when the input ended before a '\n'.
+    private boolean readLine() throws IOException {
+        lineText.setLength(0);
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit < 0) {
+                    limit = 0;
+                    return false;
+                }
+            }
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    lineText.append(buffer, position, i - position);
+                    position = i + 1;
+                    return true;
+                }
+            }
+            lineText.append(buffer, position, limit - position);
+            position = limit;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ SymbolTable: gives every variable name a slot number when the program is loaded.
+ At run time variables are then plain int[] entries, no String hashing and no boxing.
+ */
+class SymbolTable {
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    // Slot of this name, giving it the next free slot if it's new
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = names.size();
+            slots.put(name, slot);
+            names.add(name);
+        }
+        return slot;
+    }
+
+    // Name stored in the given slot
+    String nameOf(int slot) {
+        return names.get(slot);
+    }
+
+    // How many slots a frame for this program needs
+    int size() {
+        return names.size();
+    }
+
+    String[] names() {
+        return names.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,366 @@
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ Telemetry: counters for every program run in this JVM, readable over JMX, plus JFR events.
+
+ When counting is on, every run counts what it executes (lines, expression nodes evaluated,
+ loop iterations, prints) in plain fields of its own Counters, and adds them to the shared
+ LongAdders once, when it ends; so runs on many threads don't contend. The time of each
+ phase (lex, split, parse, execute) and every error, by message, are added up the same way.
+
+ Counting is on with -Dinterpreter.telemetry=true (which also registers the MBean) or
+ through the MBean's Enabled attribute, and whenever a JFR recording has the
+ interpreter.Execution event enabled. When it is off, a run pays one check per block it
+ executes, and the phase and execution JFR events cost what a disabled JFR event costs, or
+nothing until JFR is started (see jfr()).
+ Counting uses the same hook as the Profiler, so counted runs don't trace their loops.
+
+ JFR events: interpreter.Phase for every phase of a compile or run, and
+ interpreter.Execution for every run, with its counts and error; both have a duration, so
+ they line up with GC and CPU events in the recording.
+ */
+final class Telemetry {
+    static final String OBJECT_NAME = "interpreter:type=Telemetry";
+
+    // Different error messages we keep apart; the rest is added up under OTHER_ERRORS
+    private static final int MAX_ERROR_MESSAGES = 100;
+    private static final String OTHER_ERRORS = "(other)";
+
+    enum Phase { LEX, SPLIT, PARSE, EXECUTE }
+
+    static volatile boolean enabled = Boolean.getBoolean("interpreter.telemetry");
+
+    static final LongAdder runs = new LongAdder();
+    static final LongAdder lines = new LongAdder();
+    static final LongAdder expressions = new LongAdder();
+    static final LongAdder loopIterations = new LongAdder();
+    static final LongAdder prints = new LongAdder();
+    static final LongAdder errors = new LongAdder();
+    static final ConcurrentHashMap<String, LongAdder> errorsByMessage = new ConcurrentHashMap<>();
+    private static final Map<Phase, LongAdder> phaseNanos = new EnumMap<>(Phase.class);
+
+    static {
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new LongAdder());
+        }
+        if (enabled) {
+            registerMBean();
+        }
+    }
+
+    private Telemetry() {
+    }
+
+    /**
+     Register the MBean under OBJECT_NAME with the platform MBean server (once).
+     */
+    static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // already there
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     Counters for a new run, or null when nothing would read them.
+     */
+    static Counters newCounters() {
+        return enabled || jfr() && Jfr.EXECUTION.isEnabled() ? new Counters() : null;
+    }
+
+    /**
+     True once JFR is up in this JVM. Until then there is no recording to commit events to,
+     and the events aren't created at all: loading the first event class registers it with
+     JFR, which loads a few hundred classes of JFR's own and is most of the startup time of
+     a short script. A recording started later (jcmd JFR.start) starts JFR, and the runs
+     and phases that start after that have their events.
+     */
+    static boolean jfr() {
+        return FlightRecorder.isInitialized();
+    }
+
+    // Only loaded once JFR is up, see jfr()
+    private static final class Jfr {
+        static final EventType EXECUTION = EventType.getEventType(ExecutionEvent.class);
+    }
+
+    static long phaseNanos(Phase phase) {
+        return phaseNanos.get(phase).sum();
+    }
+
+    static void reset() {
+        runs.reset();
+        lines.reset();
+        expressions.reset();
+        loopIterations.reset();
+        prints.reset();
+        errors.reset();
+        errorsByMessage.clear();
+        for (LongAdder adder : phaseNanos.values()) {
+            adder.reset();
+        }
+    }
+
+    // ---------------------------------
+    // Runs
+    // ---------------------------------
+
+    /**
+     What one run executed; only the thread running it writes here.
+     */
+    static final class Counters {
+        long lines;
+        long expressions;
+        long loopIterations;
+        long prints;
+
+        // A statement starts: one more line, and the expression nodes it evaluates
+        // (a while's are counted on every check instead)
+        void statement(StatementNode statement) {
+            lines++;
+            if (statement instanceof StatementNode.While) {
+                return;
+            }
+            expressions += statement.expressionNodes();
+            if (statement instanceof StatementNode.Print) {
+                prints++;
+            }
+        }
+
+        // A while checks its condition again
+        void loopCheck(StatementNode.While loop, boolean iterates) {
+            expressions += loop.expressionNodes();
+            if (iterates) {
+                loopIterations++;
+            }
+        }
+    }
+
+    /**
+     Start timing a run with counters (null when not counting).
+     */
+    static Run startRun(Counters counters) {
+        return new Run(counters);
+    }
+
+    static final class Run {
+        private final Counters counters;
+        private final ExecutionEvent event = jfr() ? new ExecutionEvent() : null;
+        private final PhaseTimer execute = startPhase(Phase.EXECUTE);
+        private String error;
+
+        private Run(Counters counters) {
+            this.counters = counters;
+            if (event != null) {
+                event.begin();
+            }
+        }
+
+        void failed(RuntimeException e) {
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+            if (enabled) {
+                errors.increment();
+                LongAdder byMessage = errorsByMessage.get(error);
+                if (byMessage == null) {
+                    String key = errorsByMessage.size() < MAX_ERROR_MESSAGES ? error : OTHER_ERRORS;
+                    byMessage = errorsByMessage.computeIfAbsent(key, k -> new LongAdder());
+                }
+                byMessage.increment();
+            }
+        }
+
+        void end() {
+            execute.end();
+            if (enabled) {
+                runs.increment();
+                if (counters != null) {
+                    lines.add(counters.lines);
+                    expressions.add(counters.expressions);
+                    loopIterations.add(counters.loopIterations);
+                    prints.add(counters.prints);
+                }
+            }
+            if (event == null) {
+                return;
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                if (counters != null) {
+                    event.lines = counters.lines;
+                    event.expressions = counters.expressions;
+                    event.loopIterations = counters.loopIterations;
+                    event.prints = counters.prints;
+                }
+                event.error = error;
+                event.commit();
+            }
+        }
+    }
+
+    // ---------------------------------
+    // Phases
+    // ---------------------------------
+
+    static PhaseTimer startPhase(Phase phase) {
+        return new PhaseTimer(phase);
+    }
+
+    static final class PhaseTimer {
+        private final Phase phase;
+        private final long start;
+        private final PhaseEvent event = jfr() ? new PhaseEvent() : null;
+
+        private PhaseTimer(Phase phase) {
+            this.phase = phase;
+            this.start = enabled ? System.nanoTime() : 0;
+            if (event != null) {
+                event.begin();
+            }
+        }
+
+        void end() {
+            if (enabled && start != 0) {
+                phaseNanos.get(phase).add(System.nanoTime() - start);
+            }
+            if (event == null) {
+                return;
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.name().toLowerCase(Locale.ROOT);
+                event.commit();
+            }
+        }
+    }
+
+    // ---------------------------------
+    // JFR events
+    // ---------------------------------
+
+    @Name("interpreter.Execution")
+    @Label("Script Execution")
+    @Category("Interpreter")
+    @Description("One run of a program on the tree interpreter")
+    static final class ExecutionEvent extends Event {
+        @Label("Lines")
+        long lines;
+
+        @Label("Expression Evaluations")
+        long expressions;
+
+        @Label("Loop Iterations")
+        long loopIterations;
+
+        @Label("Prints")
+        long prints;
+
+        @Label("Error")
+        String error;
+    }
+
+    @Name("interpreter.Phase")
+    @Label("Interpreter Phase")
+    @Category("Interpreter")
+    @Description("Lexing, splitting into lines, parsing or executing a program")
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    // ---------------------------------
+    // JMX
+    // ---------------------------------
+
+    private static final class Bean implements InterpreterTelemetryMXBean {
+        @Override
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public void setEnabled(boolean on) {
+            enabled = on;
+        }
+
+        @Override
+        public long getRuns() {
+            return runs.sum();
+        }
+
+        @Override
+        public long getLinesExecuted() {
+            return lines.sum();
+        }
+
+        @Override
+        public long getExpressionEvaluations() {
+            return expressions.sum();
+        }
+
+        @Override
+        public long getLoopIterations() {
+            return loopIterations.sum();
+        }
+
+        @Override
+        public long getPrints() {
+            return prints.sum();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public Map<String, Long> getErrorsByMessage() {
+            Map<String, Long> counts = new TreeMap<>();
+            errorsByMessage.forEach((message, count) -> counts.put(message, count.sum()));
+            return counts;
+        }
+
+        @Override
+        public long getLexNanos() {
+            return phaseNanos(Phase.LEX);
+        }
+
+        @Override
+        public long getSplitNanos() {
+            return phaseNanos(Phase.SPLIT);
+        }
+
+        @Override
+        public long getParseNanos() {
+            return phaseNanos(Phase.PARSE);
+        }
+
+        @Override
+        public long getExecuteNanos() {
+            return phaseNanos(Phase.EXECUTE);
+        }
+
+        @Override
+        public void reset() {
+            Telemetry.reset();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ TokenBuffer: the Lexer's output, stored as parallel primitive arrays instead of one
+ Token object (and one String) per token.
+
+ Token i is types[i] (a TokenType ordinal), and its text is the source characters from
+ starts[i], lengths[i] long. The text is only cut out of the source when something asks
+ for it (text(i)), e.g. a number when the Parser builds a node.
+ NEWLINE and EOF have the fixed texts "\n" (backslash, n) and "", as Token always had.
+ An IDENT token has its symbol id (see Identifiers) where the others have their length,
+ and its text is the one String of that name, so it is never cut out again.
+ */
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CharSequence source; // a String, or the bytes of a mapped file (MappedLexer)
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths; // for an IDENT, its symbol id instead
+    private int size = 0;
+    private final Identifiers identifiers;
+
+    TokenBuffer(CharSequence source, int initialCapacity) {
+        this.source = source;
+        int capacity = Math.max(16, initialCapacity);
+        this.types = new byte[capacity];
+        this.starts = new int[capacity];
+        this.lengths = new int[capacity];
+        this.identifiers = new Identifiers();
+    }
+
+    /**
+     A buffer holding tokens that were made some other way. Their texts are laid
+     end to end in a new string that serves as the source.
+     */
+    static TokenBuffer of(List<Token> tokens) {
+        StringBuilder text = new StringBuilder();
+        for (Token token : tokens) {
+            text.append(token.text);
+        }
+        TokenBuffer buffer = new TokenBuffer(text.toString(), tokens.size());
+        int start = 0;
+        for (Token token : tokens) {
+            if (token.type == TokenType.IDENT) {
+                buffer.addIdentifier(start, token.text.length(), token.text.hashCode());
+            } else {
+                buffer.add(token.type, start, token.text.length());
+            }
+            start += token.text.length();
+        }
+        return buffer;
+    }
+
+    /**
+     The tokens of parts, one after the other, and an EOF at the end of the source: what
+     one Lexer would have made of it, if parts are the tokens of consecutive ranges of
+     source (see ParallelLexer).
+     */
+    static TokenBuffer concat(String source, List<TokenBuffer> parts) {
+        int total = 1;
+        for (TokenBuffer part : parts) {
+            total += part.size;
+        }
+        TokenBuffer buffer = new TokenBuffer(source, total);
+        for (TokenBuffer part : parts) {
+            System.arraycopy(part.types, 0, buffer.types, buffer.size, part.size);
+            System.arraycopy(part.starts, 0, buffer.starts, buffer.size, part.size);
+            System.arraycopy(part.lengths, 0, buffer.lengths, buffer.size, part.size);
+            // The part's symbol ids become ours (the first part's stay as they are)
+            int[] ids = new int[part.identifiers.size()];
+            boolean same = true;
+            for (int id = 0; id < ids.length; id++) {
+                ids[id] = buffer.identifiers.intern(part.identifiers.name(id));
+                same &= ids[id] == id;
+            }
+            if (!same) {
+                byte ident = (byte) TokenType.IDENT.ordinal();
+                for (int i = buffer.size; i < buffer.size + part.size; i++) {
+                    if (buffer.types[i] == ident) {
+                        buffer.lengths[i] = ids[buffer.lengths[i]];
+                    }
+                }
+            }
+            buffer.size += part.size;
+        }
+        buffer.add(TokenType.EOF, source.length(), 0);
+        return buffer;
+    }
+
+    void add(TokenType type, int start, int length) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        size++;
+    }
+
+    /**
+     Add an IDENT token, the identifier source[start, start + length) whose hash is hash
+     (as String.hashCode computes it).
+     */
+    void addIdentifier(int start, int length, int hash) {
+        add(TokenType.IDENT, start, identifiers.intern(source, start, length, hash));
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     Symbol id of IDENT token i: the same for every occurrence of a name, dense from 0.
+     */
+    int symbol(int i) {
+        return lengths[i];
+    }
+
+    Identifiers identifiers() {
+        return identifiers;
+    }
+
+    TokenType type(int i) {
+        return TYPES[types[i]];
+    }
+
+    String text(int i) {
+        switch (type(i)) {
+            case NEWLINE: return "\\n";
+            case EOF:     return "";
+            case IDENT:   return identifiers.name(lengths[i]);
+            default:      return source.subSequence(starts[i], starts[i] + lengths[i]).toString();
+        }
+    }
+
+    /**
+     Token i as an object, e.g. for error messages and debugging.
+     */
+    Token token(int i) {
+        return new Token(type(i), text(i));
+    }
+
+    /**
+     Every token as an object. Only meant for debugging: it costs what the buffer saves.
+     */
+    List<Token> toList() {
+        List<Token> tokens = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            tokens.add(token(i));
+        }
+        return tokens;
+    }
+}
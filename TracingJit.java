@@ -0,0 +1,258 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ TracingJit: compiles hot while loops of the tree interpreter while the program runs.
+
+ Every While node counts the iterations it has run. When the count reaches the threshold,
+ the next iteration is run by the recorder, which writes down the path it takes through
+ the body: assignments and prints as they are, every if as a guard on the branch that was
+ taken, and every nested while as a call back into the interpreter. The trace is compiled
+ to a JVM class (JvmCompiler.compileTrace) and runs the rest of the loop.
+
+ When a guard fails, the compiled code stores its variables back and exits; the interpreter
+ runs the other branch of that if and re-enters the trace right after the recorded branch.
+ Nested loops exit the same way and run on the tree (and get their own trace when hot).
+
+ A trace recorded in a run that takes checkpoints (see Checkpointer) also exits every
+ pollIterations iterations, at its back-edge, so the Checkpointer gets to look at the clock
+ in a long traced loop now and then; the trace is entered again right after. Other traces
+ don't poll, which would cost their loops a counter; when a run that takes checkpoints
+ comes to one of those, it records the loop again, with polls, and that trace takes the
+ place of the old one.
+
+ The compiled code reads ints and, with Numbers on, computes in longs: a counted loop
+ (see ValueBounds) can't leave a long at all, and another loop whose values grow runs
+ strips of iterations that can't, and exits at the end of a strip if a variable no longer
+ fits in an int, so the loop itself checks nothing. Variables are handed back as longs.
+ An operation that could leave a long anyway is checked, and exits from the statement it
+ happened in; the interpreter runs that statement and the rest of the iteration. While any
+ variable holds a BigInteger, the loop stays in the interpreter.
+
+ Whether a program's loops are traced, and after how many iterations, is in its
+ EngineOptions (-Dinterpreter.jit=false, -Dinterpreter.jit.threshold=N);
+ -Dinterpreter.jit.poll=N sets how many iterations a trace runs between two POLL exits.
+ */
+final class TracingJit {
+    // Iterations between two POLL exits of a trace
+    static final int pollIterations = Math.max(1, Integer.getInteger("interpreter.jit.poll", 1 << 14));
+
+    private static final AtomicInteger traceCount = new AtomicInteger();
+
+    private TracingJit() {
+    }
+
+    /**
+     One step of a trace. STATEMENT is an assign or print; GUARD is an if that must go the
+     recorded way (taken = the then-branch), and RESUME marks the end of its recorded branch,
+     where the trace continues after the interpreter ran the other one. CALL is a nested
+     while, run by the interpreter.
+
+     OVERFLOW is not a step but only an exit: a value in node (a statement, the condition of
+     a guard, or of the loop itself) doesn't fit in an int. Every STATEMENT and GUARD has one,
+     as its overflow exit. POLL is the other exit that isn't a step: the trace went round
+     pollIterations times (if it polls), or a strip of iterations left a variable that doesn't
+     fit in an int; it is entered again at the loop condition.
+     */
+    static final class Op {
+        static final int STATEMENT = 0;
+        static final int GUARD = 1;
+        static final int RESUME = 2;
+        static final int CALL = 3;
+        static final int OVERFLOW = 4;
+        static final int POLL = 5;
+
+        final int kind;
+        final StatementNode node;
+        final boolean taken;
+        final int exit;     // exit number of a GUARD/RESUME/CALL/OVERFLOW, -1 for statements
+        final int overflow; // exit number of the OVERFLOW of a STATEMENT or GUARD, else -1
+
+        Op(int kind, StatementNode node, boolean taken, int exit, int overflow) {
+            this.kind = kind;
+            this.node = node;
+            this.taken = taken;
+            this.exit = exit;
+            this.overflow = overflow;
+        }
+    }
+
+    /**
+     A recorded iteration of loop, ready to compile.
+     */
+    static final class Trace {
+        final StatementNode.While loop;
+        final List<Op> ops = new ArrayList<>();
+        private final List<Op> exits = new ArrayList<>();
+        final int loopOverflow; // exit for a value too big for an int in the loop's condition
+        final int poll;         // exit at the loop condition (every pollIterations iterations, or a strip's end)
+        final boolean polls;    // whether it takes the poll exit every pollIterations iterations
+
+        Trace(StatementNode.While loop, boolean polls) {
+            this.loop = loop;
+            this.loopOverflow = addOverflow(loop);
+            Op op = new Op(Op.POLL, loop, false, exits.size(), -1);
+            exits.add(op);
+            this.poll = op.exit;
+            this.polls = polls;
+        }
+
+        int exitCount() {
+            return exits.size();
+        }
+
+        Op exit(int number) {
+            return exits.get(number);
+        }
+
+        // Every slot the trace writes, in order
+        int[] assignedSlots() {
+            TreeSet<Integer> slots = new TreeSet<>();
+            for (Op op : ops) {
+                if (op.node instanceof StatementNode.Assign) {
+                    slots.add(((StatementNode.Assign) op.node).slot);
+                }
+            }
+            return slots.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        private int addExit(int kind, StatementNode node, boolean taken, int overflow) {
+            Op op = new Op(kind, node, taken, exits.size(), overflow);
+            exits.add(op);
+            ops.add(op);
+            return op.exit;
+        }
+
+        private int addOverflow(StatementNode node) {
+            Op op = new Op(Op.OVERFLOW, node, false, exits.size(), -1);
+            exits.add(op);
+            return op.exit;
+        }
+    }
+
+    /**
+     A compiled trace and the nodes the interpreter needs for its exits.
+     */
+    static final class LoopTrace {
+        private final StatementNode.While loop;
+        private final CompiledTrace code;
+        private final Op[] exits;
+        private final int[] assigned; // the slots the trace leaves in traceValues, with Numbers on
+        final boolean polls;
+
+        private LoopTrace(StatementNode.While loop, CompiledTrace code, Op[] exits, int[] assigned, boolean polls) {
+            this.loop = loop;
+            this.code = code;
+            this.exits = exits;
+            this.assigned = assigned;
+            this.polls = polls;
+        }
+
+        /**
+         Run the loop to its end, from the condition check on.
+         */
+        void run(ExecutionContext context) {
+            int entry = 0;
+            while (true) {
+                if (context.hasBigValues()) {
+                    // The trace can't read those: the interpreter finishes the iteration it
+                    // was in (after the exit it came back from) and the rest of the loop
+                    if (entry > 0) {
+                        StatementNode.resume(loop.body, exits[entry - 1].node, false, context);
+                    }
+                    loop.executeUntraced(context);
+                    return;
+                }
+                int exit;
+                if (Numbers.ENABLED) {
+                    long[] values = context.traceValues();
+                    exit = code.run(context.slots, values, entry, context.out);
+                    for (int slot : assigned) {
+                        context.writeLong(slot, values[slot]);
+                    }
+                } else {
+                    exit = code.run(context.slots, null, entry, context.out);
+                }
+                if (exit < 0) {
+                    return;
+                }
+                Op op = exits[exit];
+                if (op.kind == Op.POLL) {
+                    // A back-edge: the variables are all stored, and the trace goes on from
+                    // the loop condition, which is where a checkpoint taken now resumes
+                    if (context.checkpointer != null) {
+                        context.checkpointer.atPoll(loop, context);
+                    }
+                    entry = 0;
+                    continue;
+                }
+                if (op.kind == Op.OVERFLOW) {
+                    if (op.node == loop) {
+                        loop.executeUntraced(context);
+                        return;
+                    }
+                    // Nothing of op.node has happened yet: run it, and the rest of the iteration
+                    StatementNode.resume(loop.body, op.node, true, context);
+                    entry = 0;
+                    continue;
+                }
+                if (op.kind == Op.CALL) {
+                    op.node.execute(context);
+                } else {
+                    StatementNode.If node = (StatementNode.If) op.node;
+                    if (!op.taken) {
+                        node.thenBlock.execute(context);
+                    } else if (node.elseBlock != null) {
+                        node.elseBlock.execute(context);
+                    }
+                }
+                entry = exit + 1;
+            }
+        }
+    }
+
+    /**
+     Run one iteration of loop's body (its condition was already true) while recording it,
+     then compile the recording. Returns null when the trace can't be compiled; the loop
+     then stays in the interpreter.
+     */
+    static LoopTrace recordAndCompile(StatementNode.While loop, ExecutionContext context) {
+        Trace trace = new Trace(loop, context.checkpointer != null);
+        record(trace, loop.body, context);
+
+        String className = "Trace_" + traceCount.incrementAndGet();
+        try {
+            byte[] bytes = JvmCompiler.compileTrace(className, trace, context.slots.length);
+            CompiledTrace code = JvmCompiler.loadTrace(className, bytes);
+            return new LoopTrace(loop, code, trace.exits.toArray(new Op[0]), trace.assignedSlots(), trace.polls);
+        } catch (IllegalStateException | LinkageError e) {
+            // e.g. a body too large for one JVM method
+            return null;
+        }
+    }
+
+    private static void record(Trace trace, StatementNode node, ExecutionContext context) {
+        if (node instanceof StatementNode.Block) {
+            for (StatementNode statement : ((StatementNode.Block) node).statements) {
+                record(trace, statement, context);
+            }
+        } else if (node instanceof StatementNode.If) {
+            StatementNode.If ifNode = (StatementNode.If) node;
+            boolean taken = StatementNode.test(ifNode.condition, context);
+            int exit = trace.addExit(Op.GUARD, ifNode, taken, trace.addOverflow(ifNode));
+            StatementNode.Block branch = taken ? ifNode.thenBlock : ifNode.elseBlock;
+            if (branch != null) {
+                record(trace, branch, context);
+            }
+            trace.ops.add(new Op(Op.RESUME, ifNode, taken, exit, -1));
+        } else if (node instanceof StatementNode.While) {
+            trace.addExit(Op.CALL, node, false, -1);
+            node.execute(context);
+        } else {
+            trace.ops.add(new Op(Op.STATEMENT, node, false, -1, trace.addOverflow(node)));
+            node.execute(context);
+        }
+    }
+}
@@ -0,0 +1,602 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ ValueBounds: how big the values of a program can get, for JvmCompiler.
+
+ With Numbers on, compiled code keeps the variables in long locals. A value that started out
+ as an int can go through a fair number of + - * before it could leave a long, and until
+ then nothing needs checking: the long is the exact value. This works out how far that goes.
+
+ A Range is where a value can be, as doubles (it only ever overestimates; infinite when there
+ is no telling). The condition of a loop or an if narrows the range of a variable it compares
+ (i < n: i is below n's top), so a counter stays an int for good. Every variable is an int
+ when a loop starts an iteration with all of them ints. From there a loop can run a strip of
+ Strip.iterations iterations on unchecked long arithmetic, after which the compiled code
+ checks once that its variables are ints again. A counted loop (see counted) needs no
+ strips: how often it goes round is known, and with it how far its values get. An operation
+ whose range could leave a long (beyond LIMIT) is checked where it happens instead
+ (Math.addExact and friends).
+ */
+final class ValueBounds {
+    // Beyond this an operation is checked: a range up to it is a long, with room for the
+    // rounding of the doubles
+    static final double LIMIT = 0x1.fp62;
+
+    // A strip ends before a value gets bigger than this, so the operations in it that take
+    // a range from the end of the strip are still far from LIMIT
+    private static final double STRIP_LIMIT = 0x1p40;
+
+    // How many iterations a strip has at most, and how much simulating may cost
+    private static final int MAX_STRIP = 1 << 16;
+    private static final long WORK = 1 << 16;
+
+    // How many times a counted loop's iteration is run to find ranges that hold for all of it,
+    // and up to how many iterations one is simply run on the ranges instead
+    private static final int PASSES = 8;
+    private static final int SHORT_LOOP = 1 << 8;
+
+    private final int slotCount;
+    private final Map<StatementNode.While, Strip> loops = new IdentityHashMap<>();
+    private final Map<List<TracingJit.Op>, Strip> traces = new IdentityHashMap<>();
+    private final Map<StatementNode.While, Strip> counted = new IdentityHashMap<>();
+
+    ValueBounds(int slotCount) {
+        this.slotCount = slotCount;
+    }
+
+    /**
+     The values from lo to hi.
+     */
+    static final class Range {
+        static final Range INT = new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        static final Range ZERO = new Range(0, 0);
+        private static final Range BOOLEAN = new Range(0, 1);
+
+        final double lo;
+        final double hi;
+
+        Range(double lo, double hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        boolean isInt() {
+            return lo >= Integer.MIN_VALUE && hi <= Integer.MAX_VALUE;
+        }
+
+        // Nothing in it could have left a long
+        boolean isLong() {
+            return lo >= -LIMIT && hi <= LIMIT;
+        }
+
+        boolean contains(long value) {
+            return lo <= value && value <= hi;
+        }
+
+        Range join(Range other) {
+            return within(other) ? other : new Range(Math.min(lo, other.lo), Math.max(hi, other.hi));
+        }
+
+        boolean within(Range other) {
+            return other.lo <= lo && hi <= other.hi;
+        }
+
+        private double magnitude() {
+            return Math.max(-lo, hi);
+        }
+    }
+
+    /**
+     A loop's strip: iterations is how many it can run from all-int variables without
+     checking them (0: any number, the variables can't outgrow ints), and bounds is the range
+     of every variable at the start of any of those iterations. assigned is the variables
+     the loop assigns (for a loop compiled as a whole).
+     */
+    static final class Strip {
+        final int iterations;
+        final Range[] bounds;
+        boolean[] assigned;
+
+        Strip(int iterations, Range[] bounds) {
+            this.iterations = iterations;
+            this.bounds = bounds;
+        }
+    }
+
+    /**
+     Every variable an int.
+     */
+    Range[] ints() {
+        Range[] bounds = new Range[slotCount];
+        Arrays.fill(bounds, Range.INT);
+        return bounds;
+    }
+
+    // ---------------------------------
+    // Expressions and statements
+    // ---------------------------------
+
+    /**
+     The range of node's value, with the variables within bounds.
+     */
+    static Range of(ExpressionNode node, Range[] bounds) {
+        if (node instanceof ExpressionNode.Constant) {
+            int value = ((ExpressionNode.Constant) node).value;
+            return new Range(value, value);
+        }
+        if (node instanceof ExpressionNode.Literal) {
+            try {
+                int value = Integer.parseInt(((ExpressionNode.Literal) node).text);
+                return new Range(value, value);
+            } catch (NumberFormatException e) {
+                return Range.ZERO; // never a value: compiled code sends it to the interpreter
+            }
+        }
+        if (node instanceof ExpressionNode.Read) {
+            return bounds[((ExpressionNode.Read) node).slot];
+        }
+        if (node instanceof ExpressionNode.Binary) {
+            ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+            return apply(binary.op, of(binary.left, bounds), of(binary.right, bounds));
+        }
+        return Range.ZERO; // Fail
+    }
+
+    // The range of left op right
+    static Range apply(TokenType op, Range left, Range right) {
+        switch (op) {
+            case PLUS:
+                return new Range(left.lo + right.lo, left.hi + right.hi);
+            case MINUS:
+                return new Range(left.lo - right.hi, left.hi - right.lo);
+            case STAR:
+                double a = product(left.lo, right.lo);
+                double b = product(left.lo, right.hi);
+                double c = product(left.hi, right.lo);
+                double d = product(left.hi, right.hi);
+                return new Range(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+            case SLASH:
+                // No further from 0 than left (Integer.MIN_VALUE / -1 is as far, on the other side)
+                double magnitude = left.magnitude();
+                return new Range(-magnitude, magnitude);
+            case MOD:
+                // On left's side of 0, and closer to it than left and right
+                double remainder = Math.max(0, right.magnitude() - 1);
+                return new Range(left.lo < 0 ? Math.max(left.lo, -remainder) : 0, left.hi > 0 ? Math.min(left.hi, remainder) : 0);
+            default:
+                return Range.BOOLEAN; // a comparison
+        }
+    }
+
+    // 0 * infinity is 0 here
+    private static double product(double x, double y) {
+        return x == 0 || y == 0 ? 0 : x * y;
+    }
+
+    /**
+     Narrow bounds (in place) to the values for which condition is outcome: a comparison of
+     a variable with something narrows that variable.
+     */
+    static void refine(ExpressionNode condition, boolean outcome, Range[] bounds) {
+        if (!(condition instanceof ExpressionNode.Binary) || !Parser.isComparison(((ExpressionNode.Binary) condition).op)) {
+            return;
+        }
+        ExpressionNode.Binary comparison = (ExpressionNode.Binary) condition;
+        TokenType op = outcome ? comparison.op : negate(comparison.op);
+        if (comparison.left instanceof ExpressionNode.Read) {
+            narrow(((ExpressionNode.Read) comparison.left).slot, op, of(comparison.right, bounds), bounds);
+        }
+        if (comparison.right instanceof ExpressionNode.Read) {
+            narrow(((ExpressionNode.Read) comparison.right).slot, swap(op), of(comparison.left, bounds), bounds);
+        }
+    }
+
+    // bounds[slot] op other holds
+    private static void narrow(int slot, TokenType op, Range other, Range[] bounds) {
+        Range range = bounds[slot];
+        double lo = range.lo;
+        double hi = range.hi;
+        switch (op) {
+            case LT:   hi = Math.min(hi, other.hi - 1); break;
+            case LTE:  hi = Math.min(hi, other.hi); break;
+            case GT:   lo = Math.max(lo, other.lo + 1); break;
+            case GTE:  lo = Math.max(lo, other.lo); break;
+            case EQEQ: lo = Math.max(lo, other.lo); hi = Math.min(hi, other.hi); break;
+            default:   break;
+        }
+        if (lo <= hi && (lo != range.lo || hi != range.hi)) {
+            bounds[slot] = new Range(lo, hi);
+        }
+    }
+
+    private static TokenType negate(TokenType op) {
+        switch (op) {
+            case EQEQ: return TokenType.NEQ;
+            case NEQ:  return TokenType.EQEQ;
+            case GT:   return TokenType.LTE;
+            case GTE:  return TokenType.LT;
+            case LT:   return TokenType.GTE;
+            default:   return TokenType.GT; // LTE
+        }
+    }
+
+    // a op b is b swap(op) a
+    private static TokenType swap(TokenType op) {
+        switch (op) {
+            case GT:  return TokenType.LT;
+            case GTE: return TokenType.LTE;
+            case LT:  return TokenType.GT;
+            case LTE: return TokenType.GTE;
+            default:  return op; // EQEQ, NEQ
+        }
+    }
+
+    /**
+     What running node does to bounds (in place): the bounds after it, for any way it goes.
+     */
+    void transfer(StatementNode node, Range[] bounds) {
+        if (node instanceof StatementNode.Block) {
+            for (StatementNode statement : ((StatementNode.Block) node).statements) {
+                transfer(statement, bounds);
+            }
+        } else if (node instanceof StatementNode.Assign) {
+            StatementNode.Assign assign = (StatementNode.Assign) node;
+            bounds[assign.slot] = of(assign.value, bounds);
+        } else if (node instanceof StatementNode.If) {
+            StatementNode.If ifNode = (StatementNode.If) node;
+            Range[] otherwise = bounds.clone();
+            refine(ifNode.condition, true, bounds);
+            transfer(ifNode.thenBlock, bounds);
+            refine(ifNode.condition, false, otherwise);
+            if (ifNode.elseBlock != null) {
+                transfer(ifNode.elseBlock, otherwise);
+            }
+            join(bounds, otherwise);
+        } else if (node instanceof StatementNode.While) {
+            // After the loop they are as at the start of one of its iterations, and its
+            // condition is false
+            StatementNode.While loop = (StatementNode.While) node;
+            System.arraycopy(entered(loop, bounds), 0, bounds, 0, slotCount);
+            refine(loop.condition, false, bounds);
+        }
+    }
+
+    /**
+     The bounds at the start of any iteration of a loop compiled as a whole, entered with
+     bounds entry: the compiled loop checks on the way in that every variable is an int, so
+     they are within its strip's bounds, and a variable the loop doesn't assign keeps the
+     range it came in with.
+     */
+    Range[] entered(StatementNode.While loop, Range[] entry) {
+        Strip strip = strip(loop);
+        Range[] bounds = strip.bounds.clone();
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!strip.assigned[slot] && entry[slot].isInt()) {
+                bounds[slot] = entry[slot];
+            }
+        }
+        return bounds;
+    }
+
+    // ---------------------------------
+    // Strips
+    // ---------------------------------
+
+    /**
+     The strip of a while loop compiled as a whole (JvmCompiler.compile).
+     */
+    Strip strip(StatementNode.While loop) {
+        Strip strip = loops.get(loop);
+        if (strip == null) {
+            strip = simulate(bounds -> {
+                refine(loop.condition, true, bounds);
+                transfer(loop.body, bounds);
+            }, size(loop.body));
+            strip.assigned = new boolean[slotCount];
+            for (StatementNode statement : StatementNode.inOrder(loop.body)) {
+                if (statement instanceof StatementNode.Assign) {
+                    strip.assigned[((StatementNode.Assign) statement).slot] = true;
+                }
+            }
+            loops.put(loop, strip);
+        }
+        return strip;
+    }
+
+    /**
+     The strip of a trace (TracingJit.Trace). It is entered again after every exit with all
+     variables ints, so at the place it resumes they are ints as well. A trace that never
+     resumes (no if, no nested loop) is entered at its head only, and may be a counted loop.
+     */
+    Strip strip(StatementNode.While loop, List<TracingJit.Op> ops) {
+        return traces.computeIfAbsent(ops, key -> {
+            Iteration iteration = bounds -> {
+                refine(loop.condition, true, bounds);
+                for (TracingJit.Op op : ops) {
+                    if (op.kind == TracingJit.Op.STATEMENT) {
+                        transfer(op.node, bounds);
+                    } else if (op.kind == TracingJit.Op.GUARD) {
+                        refine(((StatementNode.If) op.node).condition, op.taken, bounds);
+                    } else if (op.kind == TracingJit.Op.RESUME || op.kind == TracingJit.Op.CALL) {
+                        join(bounds, ints());
+                    }
+                }
+            };
+            List<StatementNode> statements = new ArrayList<>();
+            for (TracingJit.Op op : ops) {
+                if (op.kind == TracingJit.Op.RESUME || op.kind == TracingJit.Op.CALL) {
+                    return simulate(iteration, ops.size());
+                }
+                statements.add(op.node);
+            }
+            // Its statements all run in every iteration
+            Strip counted = counted(loop.condition, statements, statements, ints(), iteration, ops.size());
+            return counted != null ? counted : simulate(iteration, ops.size());
+        });
+    }
+
+    private interface Iteration {
+        void run(Range[] bounds);
+    }
+
+    // ---------------------------------
+    // Counted loops
+    // ---------------------------------
+
+    /**
+     The strip of a loop compiled as a whole, entered with bounds entry, if it is a counted
+     loop without loops in it (see counted); else null. Only for a loop that isn't in
+     another: the strips of that one take every loop in it to be made of strips.
+     */
+    Strip counted(StatementNode.While loop, Range[] entry) {
+        if (counted.containsKey(loop)) {
+            return counted.get(loop); // JvmCompiler's first go at the code asked already, with the same entry
+        }
+        List<StatementNode> statements = StatementNode.inOrder(loop.body);
+        Strip strip = null;
+        if (statements.stream().noneMatch(statement -> statement instanceof StatementNode.While)) {
+            strip = counted(loop.condition, statements, Arrays.asList(loop.body.statements), entry, bounds -> {
+                refine(loop.condition, true, bounds);
+                transfer(loop.body, bounds);
+            }, statements.size());
+        }
+        counted.put(loop, strip);
+        return strip;
+    }
+
+    /**
+     A counted loop: its condition is i < e or i <= e (or e > i, e >= i), nothing in the
+     loop assigns a variable of e, and the only assignment to i is i = i + a constant > 0,
+     which every iteration runs (it is one of unconditional). From start, such a loop goes
+     round at most count times. A variable the loop only adds to (x = x + y, y + x or x - y,
+     no x in y, nor in a condition) then stays within its start and count times what one
+     iteration adds; every other one within what one iteration makes of these ranges. When
+     all of them are longs, the loop needs no strips (iterations 0): it checks nothing, and
+     a variable that outgrew an int is a long after it. Null if the loop isn't counted, or
+     some variable could leave a long. (A loop that goes round only a few times is simply
+     run count times on the ranges instead.)
+     */
+    private Strip counted(ExpressionNode condition, List<StatementNode> statements, List<StatementNode> unconditional,
+                          Range[] start, Iteration iteration, int size) {
+        if (!(condition instanceof ExpressionNode.Binary)) {
+            return null;
+        }
+        ExpressionNode.Binary comparison = (ExpressionNode.Binary) condition;
+        ExpressionNode counter;
+        ExpressionNode limit;
+        switch (comparison.op) {
+            case LT:
+            case LTE:
+                counter = comparison.left;
+                limit = comparison.right;
+                break;
+            case GT:
+            case GTE:
+                counter = comparison.right;
+                limit = comparison.left;
+                break;
+            default:
+                return null;
+        }
+        if (!(counter instanceof ExpressionNode.Read)) {
+            return null;
+        }
+        int i = ((ExpressionNode.Read) counter).slot;
+
+        boolean[] assigned = new boolean[slotCount];
+        boolean[] compared = new boolean[slotCount];
+        boolean[] accumulates = new boolean[slotCount];
+        Arrays.fill(accumulates, true);
+        reads(condition, compared);
+        double step = 0;
+        for (StatementNode statement : statements) {
+            if (statement instanceof StatementNode.If) {
+                reads(((StatementNode.If) statement).condition, compared);
+            } else if (statement instanceof StatementNode.Assign) {
+                StatementNode.Assign assign = (StatementNode.Assign) statement;
+                assigned[assign.slot] = true;
+                accumulates[assign.slot] &= adds(assign);
+                if (assign.slot == i) {
+                    Range added = step == 0 && unconditional.contains(assign) ? increment(assign) : null;
+                    if (added == null) {
+                        return null;
+                    }
+                    step = added.lo;
+                }
+            }
+        }
+        boolean[] inLimit = new boolean[slotCount];
+        reads(limit, inLimit);
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (inLimit[slot] && assigned[slot]) {
+                return null;
+            }
+            accumulates[slot] &= assigned[slot] && slot != i && !compared[slot];
+        }
+        if (step == 0) {
+            return null;
+        }
+        // i goes up by step every time round, from at least start's lo, while it isn't past limit
+        double last = of(limit, start).hi - (comparison.op == TokenType.LT || comparison.op == TokenType.GT ? 1 : 0);
+        double count = Math.max(0, Math.floor((last - start[i].lo) / step) + 1);
+
+        if (count <= SHORT_LOOP && count * (size + slotCount) <= WORK) {
+            Range[] bounds = start.clone();
+            Range[] seen = start.clone();
+            for (int k = 0; k < count; k++) {
+                iteration.run(bounds);
+                join(seen, bounds);
+            }
+            return longs(seen, assigned) ? new Strip(0, seen) : null;
+        }
+
+        Range[] bounds = start.clone();
+        bounds[i] = new Range(start[i].lo, Math.max(start[i].hi, last + step));
+        for (int pass = 0; pass < PASSES; pass++) {
+            if (!longs(bounds, assigned)) {
+                return null;
+            }
+            Range[] next = bounds.clone();
+            iteration.run(next);
+            boolean closed = true;
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (!assigned[slot]) {
+                    continue;
+                }
+                Range range = next[slot];
+                if (accumulates[slot]) {
+                    // One iteration moves the range by what it adds, and there are count
+                    double down = Math.min(0, next[slot].lo - bounds[slot].lo);
+                    double up = Math.max(0, next[slot].hi - bounds[slot].hi);
+                    range = new Range(start[slot].lo + count * down, start[slot].hi + count * up);
+                }
+                if (!range.within(bounds[slot])) {
+                    bounds[slot] = bounds[slot].join(range);
+                    closed = false;
+                }
+            }
+            if (closed) {
+                return new Strip(0, bounds);
+            }
+        }
+        return null;
+    }
+
+    // Whether the assigned variables are all within longs
+    private static boolean longs(Range[] bounds, boolean[] assigned) {
+        for (int slot = 0; slot < bounds.length; slot++) {
+            if (assigned[slot] && !bounds[slot].isLong()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // x = x + y, x = y + x or x = x - y, without x in y
+    private boolean adds(StatementNode.Assign assign) {
+        if (!(assign.value instanceof ExpressionNode.Binary)) {
+            return false;
+        }
+        ExpressionNode.Binary binary = (ExpressionNode.Binary) assign.value;
+        ExpressionNode added;
+        if (isRead(binary.left, assign.slot) && (binary.op == TokenType.PLUS || binary.op == TokenType.MINUS)) {
+            added = binary.right;
+        } else if (isRead(binary.right, assign.slot) && binary.op == TokenType.PLUS) {
+            added = binary.left;
+        } else {
+            return false;
+        }
+        boolean[] slots = new boolean[slotCount];
+        reads(added, slots);
+        return !slots[assign.slot];
+    }
+
+    // The constant of i = i + a constant > 0, or null
+    private static Range increment(StatementNode.Assign assign) {
+        if (!(assign.value instanceof ExpressionNode.Binary)) {
+            return null;
+        }
+        ExpressionNode.Binary binary = (ExpressionNode.Binary) assign.value;
+        if (binary.op != TokenType.PLUS || !isRead(binary.left, assign.slot)
+                || !(binary.right instanceof ExpressionNode.Constant || binary.right instanceof ExpressionNode.Literal)) {
+            return null;
+        }
+        Range step = of(binary.right, null);
+        return step.lo >= 1 ? step : null;
+    }
+
+    private static boolean isRead(ExpressionNode node, int slot) {
+        return node instanceof ExpressionNode.Read && ((ExpressionNode.Read) node).slot == slot;
+    }
+
+    // Mark the variables node reads in slots
+    private static void reads(ExpressionNode node, boolean[] slots) {
+        if (node instanceof ExpressionNode.Read) {
+            slots[((ExpressionNode.Read) node).slot] = true;
+        } else if (node instanceof ExpressionNode.Binary) {
+            reads(((ExpressionNode.Binary) node).left, slots);
+            reads(((ExpressionNode.Binary) node).right, slots);
+        }
+    }
+
+    // Run iteration on the bounds from all ints until they stop growing, get past
+    // STRIP_LIMIT, or simulating costs too much
+    private Strip simulate(Iteration iteration, int size) {
+        Range[] bounds = ints();
+        Range[] seen = bounds.clone();
+        int iterations = 0;
+        long work = 0;
+        while (true) {
+            Range[] next = bounds.clone();
+            iteration.run(next);
+            if (within(next, bounds)) {
+                return new Strip(0, seen); // no growth: every iteration stays within these
+            }
+            Range[] widened = seen.clone();
+            join(widened, next);
+            if (exceeds(widened, STRIP_LIMIT) && iterations > 0) {
+                return new Strip(iterations, seen);
+            }
+            iterations++;
+            seen = widened;
+            bounds = next;
+            work += size + slotCount;
+            if (iterations == MAX_STRIP || work >= WORK || exceeds(seen, STRIP_LIMIT)) {
+                return new Strip(iterations, seen);
+            }
+        }
+    }
+
+    private static int size(StatementNode.Block node) {
+        return StatementNode.inOrder(node).size();
+    }
+
+    private static boolean within(Range[] bounds, Range[] other) {
+        for (int slot = 0; slot < bounds.length; slot++) {
+            if (!bounds[slot].within(other[slot])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean exceeds(Range[] bounds, double limit) {
+        for (Range range : bounds) {
+            if (range.magnitude() > limit) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // bounds = bounds or other, slot by slot
+    static void join(Range[] bounds, Range[] other) {
+        for (int slot = 0; slot < bounds.length; slot++) {
+            bounds[slot] = bounds[slot].join(other[slot]);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+import java.math.BigInteger;
+
+/**
+ VirtualMachine: runs Bytecode with a primitive int operand stack and the variables in an
+ ExecutionContext. One switch per instruction, no tokens and no boxing. The most common
+ statements and loop tests are single superinstructions (see Bytecode), so they take one
+ dispatch instead of three or four.
+
+ Errors are the same RuntimeExceptions the tree interpreter throws
+ ("Division by zero.", "Modulo by zero.", ...).
+
+ The loop reads and writes the variables as plain ints and has one handler for the whole
+ of it: arithmetic is checked (see Numbers), and when a value doesn't fit in an int, the
+ statement it happened in (Bytecode.statementAt) is done by its tree node, on BigIntegers.
+ The operand stack is empty between statements, so nothing else is lost. While a variable
+ holds a BigInteger the VM goes on statement by statement that way, until none does.
+
+ It is not faster than the tree interpreter, whose hot loops the TracingJit compiles to JVM
+ code; with -Dinterpreter.jit=false the two are about even on loops made of
+ superinstructions and the VM is behind on longer expressions. Its use is running
+ programs in slices:
+
+ A program runs in slices (runFor) if it was compiled with
+ BytecodeCompiler.compileForSlices: then every statement ends with a TICK and every jump back
+ to a loop's condition is a LOOP, each of which uses one unit of fuel, and when the fuel is
+ used up the VM stops there and remembers where. The operand stack is empty at those points,
+ so the position in the code is all there is to remember; the nested if/while structure is
+ part of the flat code. Plain bytecode has no fuel instructions, so run() costs nothing
+ extra for this. ScriptScheduler uses slices to share threads between many scripts.
+ */
+class VirtualMachine {
+    private final Bytecode program;
+    private final ExecutionContext context; // the variables, every one starting at 0
+    private final OutputSink out;
+
+    // Where the next runFor continues, and whether HALT was reached
+    private int pc = 0;
+    private boolean halted = false;
+
+    // Fuel used so far: TICKs plus LOOPs
+    private long steps = 0;
+
+    // The operand stack, for every run and slice; empty between statements
+    private final int[] stack;
+
+    VirtualMachine(Bytecode program, OutputSink out) {
+        this.program = program;
+        this.context = new ExecutionContext(program.slotNames.length, out);
+        this.out = out;
+        this.stack = new int[program.maxStack];
+    }
+
+    VirtualMachine(Bytecode program) {
+        this(program, OutputSink.systemOut());
+    }
+
+    /**
+     Run from the first instruction until HALT, then flush the output
+     (also when the program fails).
+     */
+    void run() {
+        pc = 0;
+        halted = false;
+        try {
+            while (!halted) {
+                execute(Integer.MAX_VALUE);
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     Run on from where the last slice stopped (the start, the first time) until the program
+     ends or fuel (at least 1) is used up. Returns true when it ended; the output is flushed
+     then, also when the program fails. Between slices it stays in the sink's buffer.
+     */
+    boolean runFor(int fuel) {
+        if (halted) {
+            return true;
+        }
+        try {
+            execute(fuel);
+        } catch (RuntimeException e) {
+            halted = true;
+            out.flush();
+            throw e;
+        }
+        if (halted) {
+            out.flush();
+        }
+        return halted;
+    }
+
+    void flush() {
+        out.flush();
+    }
+
+    boolean isHalted() {
+        return halted;
+    }
+
+    long steps() {
+        return steps;
+    }
+
+    // Runs until HALT or until budget fuel is used; saves pc (and the fuel used) when it stops
+    private void execute(int budget) {
+        final int[] code = program.code;
+        final int[] vars = context.slots;
+        final int[] stack = this.stack;
+        int sp = 0; // next free stack position
+        int pc = this.pc;
+        int fuel = budget;
+
+        while (true) {
+            // While a variable holds a BigInteger the variables can't be read as plain ints:
+            // statement by statement on the tree nodes, until none does
+            while (context.hasBigValues()) {
+                switch (code[pc]) {
+                    case Bytecode.JUMP:
+                        pc = code[pc + 1];
+                        break;
+                    case Bytecode.HALT:
+                        halted = true;
+                        steps += budget - fuel;
+                        return;
+                    case Bytecode.LOOP:
+                        pc = code[pc + 1];
+                        if (--fuel == 0) {
+                            this.pc = pc;
+                            steps += budget;
+                            return;
+                        }
+                        break;
+                    case Bytecode.TICK:
+                        pc++;
+                        if (--fuel == 0) {
+                            this.pc = pc;
+                            steps += budget;
+                            return;
+                        }
+                        break;
+                    default:
+                        pc = executeBig(pc);
+                        break;
+                }
+            }
+
+            // Every value is an int: the variables are read and written directly. The one
+            // handler for the whole loop picks up where a value doesn't fit (pc is still in
+            // that statement), and the stack is empty after it
+            try {
+                while (true) {
+                    switch (code[pc]) {
+                        case Bytecode.PUSH_CONST:
+                            stack[sp++] = code[pc + 1];
+                            pc += 2;
+                            break;
+                        case Bytecode.LOAD_SLOT:
+                            stack[sp++] = vars[code[pc + 1]];
+                            pc += 2;
+                            break;
+                        case Bytecode.STORE_SLOT:
+                            vars[code[pc + 1]] = stack[--sp];
+                            pc += 2;
+                            break;
+                        case Bytecode.PARSE_INT:
+                            stack[sp++] = Numbers.parse(program.strings[code[pc + 1]]);
+                            pc += 2;
+                            break;
+
+                        case Bytecode.ADD:
+                            sp--;
+                            stack[sp - 1] = Numbers.add(stack[sp - 1], stack[sp]);
+                            pc++;
+                            break;
+                        case Bytecode.SUB:
+                            sp--;
+                            stack[sp - 1] = Numbers.subtract(stack[sp - 1], stack[sp]);
+                            pc++;
+                            break;
+                        case Bytecode.MUL:
+                            sp--;
+                            stack[sp - 1] = Numbers.multiply(stack[sp - 1], stack[sp]);
+                            pc++;
+                            break;
+                        case Bytecode.DIV:
+                            sp--;
+                            stack[sp - 1] = Numbers.divide(stack[sp - 1], stack[sp]);
+                            pc++;
+                            break;
+                        case Bytecode.MOD:
+                            sp--;
+                            stack[sp - 1] = Numbers.modulo(stack[sp - 1], stack[sp]);
+                            pc++;
+                            break;
+                        case Bytecode.CMP_EQ:
+                            sp--;
+                            stack[sp - 1] = (stack[sp - 1] == stack[sp]) ? 1 : 0;
+                            pc++;
+                            break;
+                        case Bytecode.CMP_NE:
+                            sp--;
+                            stack[sp - 1] = (stack[sp - 1] != stack[sp]) ? 1 : 0;
+                            pc++;
+                            break;
+                        case Bytecode.CMP_GT:
+                            sp--;
+                            stack[sp - 1] = (stack[sp - 1] > stack[sp]) ? 1 : 0;
+                            pc++;
+                            break;
+                        case Bytecode.CMP_GE:
+                            sp--;
+                            stack[sp - 1] = (stack[sp - 1] >= stack[sp]) ? 1 : 0;
+                            pc++;
+                            break;
+                        case Bytecode.CMP_LT:
+                            sp--;
+                            stack[sp - 1] = (stack[sp - 1] < stack[sp]) ? 1 : 0;
+                            pc++;
+                            break;
+                        case Bytecode.CMP_LE:
+                            sp--;
+                            stack[sp - 1] = (stack[sp - 1] <= stack[sp]) ? 1 : 0;
+                            pc++;
+                            break;
+
+                        case Bytecode.JUMP:
+                            pc = code[pc + 1];
+                            break;
+                        case Bytecode.JUMP_IF_ZERO:
+                            pc = (stack[--sp] == 0) ? code[pc + 1] : pc + 2;
+                            break;
+
+                        case Bytecode.PRINT:
+                            out.print(stack[--sp]);
+                            pc++;
+                            break;
+                        case Bytecode.FAIL:
+                            throw new RuntimeException(program.strings[code[pc + 1]]);
+                        case Bytecode.HALT:
+                            halted = true;
+                            steps += budget - fuel;
+                            return;
+
+                        // Fuel, in code compiled for slices; the operand stack is empty here
+                        case Bytecode.LOOP:
+                            pc = code[pc + 1];
+                            if (--fuel == 0) {
+                                this.pc = pc;
+                                steps += budget;
+                                return;
+                            }
+                            break;
+                        case Bytecode.TICK:
+                            pc++;
+                            if (--fuel == 0) {
+                                this.pc = pc;
+                                steps += budget;
+                                return;
+                            }
+                            break;
+
+                        // Superinstructions
+                        case Bytecode.INC_SLOT:
+                            vars[code[pc + 1]] = Numbers.add(vars[code[pc + 1]], code[pc + 2]);
+                            pc += 3;
+                            break;
+                        case Bytecode.MOVE_SLOT:
+                            vars[code[pc + 1]] = vars[code[pc + 2]];
+                            pc += 3;
+                            break;
+                        case Bytecode.SLOT_OP_CONST:
+                            vars[code[pc + 1]] = arithmetic(code[pc + 3], vars[code[pc + 2]], code[pc + 4]);
+                            pc += 5;
+                            break;
+                        case Bytecode.JUMP_UNLESS_SLOT_CONST:
+                            pc = compare(code[pc + 2], vars[code[pc + 1]], code[pc + 3]) ? pc + 5 : code[pc + 4];
+                            break;
+                        case Bytecode.JUMP_UNLESS_SLOT_SLOT:
+                            pc = compare(code[pc + 2], vars[code[pc + 1]], vars[code[pc + 3]]) ? pc + 5 : code[pc + 4];
+                            break;
+                        case Bytecode.SLOT_OP_SLOT:
+                            vars[code[pc + 1]] = arithmetic(code[pc + 3], vars[code[pc + 2]], vars[code[pc + 4]]);
+                            pc += 5;
+                            break;
+                        default:
+                            throw new IllegalStateException("Bad opcode " + code[pc] + " at " + pc);
+                    }
+                }
+            } catch (Numbers.Overflow e) {
+                pc = executeBig(pc);
+                sp = 0;
+            }
+        }
+    }
+
+    // A value in the statement at pc doesn't fit in an int: do that statement with its
+    // tree node, on BigIntegers, and return where the code goes on from there
+    private int executeBig(int pc) {
+        Bytecode.Statement statement = program.statementAt(pc);
+        StatementNode node = statement.node;
+        if (node instanceof StatementNode.Assign) {
+            ((StatementNode.Assign) node).executeBig(context);
+            return statement.end;
+        }
+        if (node instanceof StatementNode.Print) {
+            BigInteger value = ((StatementNode.Print) node).value.executeBig(context);
+            out.print(value);
+            return statement.end;
+        }
+        ExpressionNode condition = node instanceof StatementNode.If
+                ? ((StatementNode.If) node).condition
+                : ((StatementNode.While) node).condition;
+        boolean value = condition.executeBig(context).signum() != 0;
+        return value != statement.jumpsWhenTrue ? statement.end : program.code[statement.end - 1];
+    }
+
+    // SLOT_OP_CONST's and SLOT_OP_SLOT's operator: ADD ... MOD, with the same errors as the plain instructions
+    private static int arithmetic(int op, int left, int right) {
+        switch (op) {
+            case Bytecode.ADD: return Numbers.add(left, right);
+            case Bytecode.SUB: return Numbers.subtract(left, right);
+            case Bytecode.MUL: return Numbers.multiply(left, right);
+            case Bytecode.DIV: return Numbers.divide(left, right);
+            case Bytecode.MOD: return Numbers.modulo(left, right);
+            default:
+                throw new IllegalStateException("Bad operator " + op);
+        }
+    }
+
+    // The comparison of a JUMP_UNLESS_SLOT_*: CMP_EQ ... CMP_LE
+    private static boolean compare(int cmp, int left, int right) {
+        switch (cmp) {
+            case Bytecode.CMP_EQ: return left == right;
+            case Bytecode.CMP_NE: return left != right;
+            case Bytecode.CMP_GT: return left > right;
+            case Bytecode.CMP_GE: return left >= right;
+            case Bytecode.CMP_LT: return left < right;
+            case Bytecode.CMP_LE: return left <= right;
+            default:
+                throw new IllegalStateException("Bad comparison " + cmp);
+        }
+    }
+}
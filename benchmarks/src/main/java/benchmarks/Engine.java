@@ -0,0 +1,260 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ Engine: access to the interpreter classes from the benchmark package.
+
+ The interpreter lives in the default package, which Java code in a named package
+ cannot import, and JMH refuses benchmarks in the default package. So we look the
+ classes up once and call them through static final MethodHandles, which the JIT
+ inlines like direct calls.
+ */
+final class Engine {
+    private static final MethodHandle NEW_LEXER;
+    private static final MethodHandle TOKENIZE;
+    private static final MethodHandle SPLIT_LINES;
+    private static final MethodHandle NEW_INTERPRETER;
+    private static final MethodHandle INTERPRET;
+    private static final MethodHandle COMPILE_PROGRAM;
+    private static final MethodHandle RUN_PROGRAM;
+    private static final MethodHandle COMPILE_BYTECODE;
+    private static final MethodHandle NEW_VM;
+    private static final MethodHandle RUN_VM;
+    private static final MethodHandle SYSTEM_OUT;
+    private static final MethodHandle COMPILE_PROGRAM_WITH_OPTIONS;
+    private static final MethodHandle COMPILE_BYTECODE_WITH_OPTIONS;
+    private static final MethodHandle DEFAULT_OPTIONS;
+    private static final MethodHandle WITH_SUPERINSTRUCTIONS;
+    private static final MethodHandle WITH_TRACING;
+    private static final MethodHandle NEW_PARALLEL_LEXER;
+    private static final MethodHandle TOKENIZE_PARALLEL;
+    private static final MethodHandle LEXED_LINES;
+    private static final Class<?> EXAMPLES;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> lexer = Class.forName("Lexer");
+            Class<?> interpreter = Class.forName("Interpreter");
+            Class<?> tokenBuffer = Class.forName("TokenBuffer");
+            EXAMPLES = Class.forName("Examples");
+
+            NEW_LEXER = lookup.unreflectConstructor(accessible(lexer.getDeclaredConstructor(String.class)));
+            TOKENIZE = lookup.unreflect(accessible(lexer.getDeclaredMethod("tokenize")));
+            SPLIT_LINES = lookup.unreflect(accessible(
+                    interpreter.getDeclaredMethod("splitIntoIndentedLines", tokenBuffer, String.class)));
+            NEW_INTERPRETER = lookup.unreflectConstructor(accessible(
+                    interpreter.getDeclaredConstructor(tokenBuffer, String.class)));
+            INTERPRET = lookup.unreflect(accessible(interpreter.getDeclaredMethod("interpret")));
+
+            Class<?> compiledProgram = Class.forName("CompiledProgram");
+            Class<?> bytecode = Class.forName("Bytecode");
+            Class<?> vm = Class.forName("VirtualMachine");
+            Class<?> outputSink = Class.forName("OutputSink");
+            COMPILE_PROGRAM = lookup.unreflect(accessible(compiledProgram.getDeclaredMethod("compile", String.class)));
+            RUN_PROGRAM = lookup.unreflect(accessible(compiledProgram.getDeclaredMethod("run", outputSink)));
+            COMPILE_BYTECODE = lookup.unreflect(accessible(
+                    Class.forName("BytecodeCompiler").getDeclaredMethod("compile", tokenBuffer, String.class)));
+            NEW_VM = lookup.unreflectConstructor(accessible(vm.getDeclaredConstructor(bytecode, outputSink)));
+            RUN_VM = lookup.unreflect(accessible(vm.getDeclaredMethod("run")));
+            SYSTEM_OUT = lookup.unreflect(accessible(outputSink.getDeclaredMethod("systemOut")));
+            Class<?> options = Class.forName("EngineOptions");
+            COMPILE_PROGRAM_WITH_OPTIONS = lookup.unreflect(accessible(
+                    compiledProgram.getDeclaredMethod("compile", String.class, options)));
+            COMPILE_BYTECODE_WITH_OPTIONS = lookup.unreflect(accessible(
+                    Class.forName("BytecodeCompiler").getDeclaredMethod("compile", tokenBuffer, String.class, options)));
+            DEFAULT_OPTIONS = lookup.unreflectGetter(accessible(options.getDeclaredField("DEFAULT")));
+            WITH_SUPERINSTRUCTIONS = lookup.unreflect(accessible(options.getDeclaredMethod("withSuperinstructions", boolean.class)));
+            WITH_TRACING = lookup.unreflect(accessible(options.getDeclaredMethod("withTracing", boolean.class)));
+
+            Class<?> parallelLexer = Class.forName("ParallelLexer");
+            NEW_PARALLEL_LEXER = lookup.unreflectConstructor(accessible(
+                    parallelLexer.getDeclaredConstructor(ForkJoinPool.class)));
+            TOKENIZE_PARALLEL = lookup.unreflect(accessible(parallelLexer.getDeclaredMethod("tokenize", String.class)));
+            LEXED_LINES = lookup.unreflect(accessible(Class.forName("LexedSource").getDeclaredMethod("lines")));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Engine() {
+    }
+
+    // new Lexer(source).tokenize(), a TokenBuffer
+    static Object tokenize(String source) {
+        try {
+            return TOKENIZE.invoke(NEW_LEXER.invoke(source));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // Interpreter.splitIntoIndentedLines(tokens, source)
+    static List<?> splitIntoIndentedLines(Object tokens, String source) {
+        try {
+            return (List<?>) SPLIT_LINES.invoke(tokens, source);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // new ParallelLexer(pool)
+    static Object newParallelLexer(ForkJoinPool pool) {
+        try {
+            return NEW_PARALLEL_LEXER.invoke(pool);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // parallelLexer.tokenize(source).lines()
+    static List<?> tokenizeParallel(Object parallelLexer, String source) {
+        try {
+            return (List<?>) LEXED_LINES.invoke(TOKENIZE_PARALLEL.invoke(parallelLexer, source));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // new Interpreter(tokens, source): line splitting plus compiling the node tree
+    static Object newInterpreter(Object tokens, String source) {
+        try {
+            return NEW_INTERPRETER.invoke(tokens, source);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // interpreter.interpret()
+    static void interpret(Object interpreter) {
+        try {
+            INTERPRET.invoke(interpreter);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // CompiledProgram.compile(source)
+    static Object compileProgram(String source) {
+        try {
+            return COMPILE_PROGRAM.invoke(source);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // program.run(out)
+    static void run(Object program, Object out) {
+        try {
+            RUN_PROGRAM.invoke(program, out);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // CompiledProgram.compile(source, options)
+    static Object compileProgram(String source, Object options) {
+        try {
+            return COMPILE_PROGRAM_WITH_OPTIONS.invoke(source, options);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // BytecodeCompiler.compile(tokens, source)
+    static Object compileBytecode(Object tokens, String source) {
+        try {
+            return COMPILE_BYTECODE.invoke(tokens, source);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // BytecodeCompiler.compile(tokens, source, options)
+    static Object compileBytecode(Object tokens, String source, Object options) {
+        try {
+            return COMPILE_BYTECODE_WITH_OPTIONS.invoke(tokens, source, options);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // new VirtualMachine(bytecode, out).run()
+    static void runVm(Object bytecode, Object out) {
+        try {
+            RUN_VM.invoke(NEW_VM.invoke(bytecode, out));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // OutputSink.systemOut()
+    static Object systemOut() {
+        try {
+            return SYSTEM_OUT.invoke();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // EngineOptions.DEFAULT.withSuperinstructions(superinstructions).withTracing(tracing), for the compile methods
+    static Object options(boolean superinstructions, boolean tracing) {
+        try {
+            Object options = WITH_SUPERINSTRUCTIONS.invoke(DEFAULT_OPTIONS.invoke(), superinstructions);
+            return WITH_TRACING.invoke(options, tracing);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     Source of one of the Examples programs, scaled so that its main loop runs
+     roughly n times (the digit programs loop once per decimal digit of n).
+     */
+    static String example(String program, int n) {
+        try {
+            switch (program) {
+                case "gcd":
+                    // Consecutive Fibonacci numbers are the slowest case for Euclid
+                    int a = 1;
+                    int b = 1;
+                    while (a + b > 0 && a + b <= n) {
+                        int next = a + b;
+                        a = b;
+                        b = next;
+                    }
+                    return (String) accessible(EXAMPLES.getDeclaredMethod("gcd", int.class, int.class))
+                            .invoke(null, b, a);
+                case "sumOfN":
+                case "factorial":
+                case "primeTest":
+                case "nthFibonacci":
+                case "reverseNumber":
+                    return (String) accessible(EXAMPLES.getDeclaredMethod(program, int.class)).invoke(null, n);
+                default:
+                    throw new IllegalArgumentException("Unknown program: " + program);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T extends java.lang.reflect.AccessibleObject> T accessible(T member) {
+        member.setAccessible(true);
+        return member;
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+}
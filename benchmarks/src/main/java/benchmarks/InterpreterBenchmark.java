@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ InterpreterBenchmark: each phase of running a script, measured on its own,
+ for the Main example programs scaled from N = 10 to N = 10^7.
+
+ - tokenize:      Lexer.tokenize
+ - splitLines:    Interpreter.splitIntoIndentedLines
+ - construct:     new Interpreter(...) (line splitting plus compiling the node tree)
+ - interpret:     Interpreter.interpret() on an already constructed interpreter
+
+ The scripts set all their variables before using them, so running the same
+ interpreter again starts from the same state. Printed output is thrown away.
+
+ Runs with -Dinterpreter.bigint=false: most of these overflow an int long before 10^7, and
+ factorial(10^7) in exact arithmetic would never finish. NumbersBenchmark measures the checks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dinterpreter.bigint=false")
+public class InterpreterBenchmark {
+
+    @Param({"sumOfN", "factorial", "gcd", "primeTest", "nthFibonacci", "reverseNumber"})
+    public String program;
+
+    @Param({"10", "1000", "100000", "10000000"})
+    public int n;
+
+    private String source;
+    private Object tokens;
+    private Object interpreter;
+    private PrintStream realOut;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        realOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        source = Engine.example(program, n);
+        tokens = Engine.tokenize(source);
+        interpreter = Engine.newInterpreter(tokens, source);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(realOut);
+    }
+
+    @Benchmark
+    public Object tokenize() {
+        return Engine.tokenize(source);
+    }
+
+    @Benchmark
+    public List<?> splitLines() {
+        return Engine.splitIntoIndentedLines(tokens, source);
+    }
+
+    @Benchmark
+    public Object construct() {
+        return Engine.newInterpreter(tokens, source);
+    }
+
+    @Benchmark
+    public void interpret() {
+        Engine.interpret(interpreter);
+    }
+}
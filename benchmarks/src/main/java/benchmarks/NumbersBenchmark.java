@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ NumbersBenchmark: what checked arithmetic (see Numbers) costs, on the tree interpreter
+ (with its tracing JIT) and the bytecode VM. NumbersBenchmark itself runs with the checks,
+ NumbersBenchmark.Wrapping in a JVM started with -Dinterpreter.bigint=false, where ints
+ wrap around as they used to.
+
+ gcd, primeTest, reverseNumber and sumOfN never leave the int range at this n
+ (sumOfN(65535) is the biggest sum that fits), so they show the price of the checks alone.
+ factorial outgrows an int at 13! and is BigInteger arithmetic from there, so it only
+ goes to 1000; with the checks off it just computes the wrong number.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumbersBenchmark {
+
+    @Param({"gcd", "primeTest", "reverseNumber", "sumOfN", "factorial"})
+    public String program;
+
+    @Param({"65535"})
+    public int n;
+
+    private Object compiledProgram;
+    private Object bytecode;
+    private Object out;
+    private PrintStream realOut;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        realOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        String source = Engine.example(program, program.equals("factorial") ? 1000 : n);
+        compiledProgram = Engine.compileProgram(source);
+        bytecode = Engine.compileBytecode(Engine.tokenize(source), source);
+        out = Engine.systemOut();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(realOut);
+    }
+
+    @Benchmark
+    public void tree() {
+        Engine.run(compiledProgram, out);
+    }
+
+    @Benchmark
+    public void vm() {
+        Engine.runVm(bytecode, out);
+    }
+
+    /**
+     The same, with 32-bit ints that wrap around.
+     */
+    @Fork(value = 1, jvmArgsAppend = "-Dinterpreter.bigint=false")
+    public static class Wrapping extends NumbersBenchmark {
+    }
+}
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ ParallelLexerBenchmark: source to indented lines for a script of 10 million lines
+ (about 250 MB), on one thread (Lexer.tokenize, then Interpreter.splitIntoIndentedLines)
+ and with ParallelLexer on a ForkJoinPool of 1 to 8 threads. The speedup can't go beyond
+ the number of cores the machine has, so compare sequential with parallel at threads = 1
+ for the overhead, and the threads among themselves for the scaling.
+
+ The tokens of 10 million lines need a few GB, hence the bigger heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ParallelLexerBenchmark {
+
+    @Param({"10000000"})
+    public int lines;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private String source;
+    private ForkJoinPool pool;
+    private Object parallelLexer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = script(lines);
+        pool = new ForkJoinPool(threads);
+        parallelLexer = Engine.newParallelLexer(pool);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public List<?> sequential() {
+        return Engine.splitIntoIndentedLines(Engine.tokenize(source), source);
+    }
+
+    @Benchmark
+    public List<?> parallel() {
+        return Engine.tokenizeParallel(parallelLexer, source);
+    }
+
+    // Blocks of four lines: an assignment, an if, an indented print and a comment
+    private static String script(int lineCount) {
+        StringBuilder sb = new StringBuilder(lineCount * 26);
+        for (int i = 0; i < lineCount / 4; i++) {
+            sb.append("total = total + i * 3 - counter\n");
+            sb.append("if total > ").append(i % 1000).append(":\n");
+            sb.append("    print(total % 1000)\n");
+            sb.append("# block ").append(i).append('\n');
+        }
+        return sb.toString();
+    }
+}
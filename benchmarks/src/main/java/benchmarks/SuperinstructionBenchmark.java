@@ -0,0 +1,79 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ SuperinstructionBenchmark: the Main example programs with superinstructions on and off,
+ on the tree interpreter (tracing JIT off, since a traced loop is JVM code either way)
+ and on the bytecode VM.
+
+ The two settings have to be measured in different JVMs: fused and plain nodes would
+ share the type profiles of the interpreter's call sites, and whichever ran second would
+ be compiled for both. JMH runs every combination of @Params in a fork of its own, with
+ -Dinterpreter.bigint=false, like InterpreterBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dinterpreter.bigint=false")
+public class SuperinstructionBenchmark {
+
+    @Param({"sumOfN", "factorial", "gcd", "primeTest", "nthFibonacci", "reverseNumber"})
+    public String program;
+
+    @Param({"10000000"})
+    public int n;
+
+    @Param({"true", "false"})
+    public boolean superinstructions;
+
+    private Object compiledProgram;
+    private Object bytecode;
+    private Object out;
+    private PrintStream realOut;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        realOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Object options = Engine.options(superinstructions, false);
+        String source = Engine.example(program, n);
+        compiledProgram = Engine.compileProgram(source, options);
+        bytecode = Engine.compileBytecode(Engine.tokenize(source), source, options);
+        out = Engine.systemOut();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(realOut);
+    }
+
+    @Benchmark
+    public void tree() {
+        Engine.run(compiledProgram, out);
+    }
+
+    @Benchmark
+    public void vm() {
+        Engine.runVm(bytecode, out);
+    }
+}
@@ -0,0 +1,14 @@
+n = 30
+count = 0
+i = 2
+while i <= n:
+    d = 2
+    prime = 1
+    while d * d <= i:
+        if i % d == 0:
+            prime = 0
+        d = d + 1
+    if prime == 1:
+        count = count + 1
+    i = i + 1
+print(count)
@@ -0,0 +1,54 @@
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ The tree interpreter's loops don't allocate: with variables in int slots and print
+ formatting into the sink's byte buffer, a run after the warm-up allocates next to nothing,
+ however many iterations it goes round. We allow a small constant for the run itself (its
+ frame, the sink), far below one object per iteration.
+ */
+class AllocationTest {
+    private static final long THRESHOLD_BYTES = 256;
+
+    @Test
+    void primeCheckDoesNotAllocatePerIteration() {
+        assertAllocatesLittle(Examples.primeTest(10_000_000));
+    }
+
+    @Test
+    void sumOfNDoesNotAllocatePerIteration() {
+        // Its sum still fits in an int at N = 60000
+        assertAllocatesLittle(Examples.sumOfN(60_000));
+    }
+
+    private static void assertAllocatesLittle(String source) {
+        long allocated = allocatedBytes(source);
+        assertTrue(allocated <= THRESHOLD_BYTES,
+                "a run allocated " + allocated + " bytes, more than " + THRESHOLD_BYTES);
+    }
+
+    private static long allocatedBytes(String source) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Interpreter interpreter = new Interpreter(new Lexer(source).tokenize(), source);
+
+        long threadId = Thread.currentThread().getId();
+        PrintStream realOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            // One run first, so node rewriting and class loading are not counted
+            interpreter.interpret();
+
+            long before = threads.getThreadAllocatedBytes(threadId);
+            interpreter.interpret();
+            return threads.getThreadAllocatedBytes(threadId) - before;
+        } finally {
+            System.setOut(realOut);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ A run that takes checkpoints prints what a plain run prints, and resuming from any of its
+ checkpoints, in a program compiled again (as another JVM would), prints exactly the rest.
+ */
+class CheckpointTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void checkpointedRunPrintsWhatAPlainRunPrints() {
+        String source = manyVariablesScript(50, 2000);
+        CompiledProgram program = CompiledProgram.compile(source);
+        Checkpointer checkpointer = new Checkpointer(program, 0, checkpoint -> { });
+        MemoryOutputSink out = new MemoryOutputSink();
+        program.run(out, checkpointer);
+
+        assertTrue(checkpointer.taken() > 0, "no checkpoints taken");
+        assertEquals(plainRun(source), out.text());
+    }
+
+    @Test
+    void resumesFromEveryCheckpoint() {
+        // Nested loops, both branches of an if, and a sum that outgrows an int
+        String source = ""
+                + "total = 0\n"
+                + "i = 0\n"
+                + "while i < 300:\n"
+                + "    j = 0\n"
+                + "    while j < 20:\n"
+                + "        if j % 3 == 0:\n"
+                + "            total = total + i * 1000000\n"
+                + "        else:\n"
+                + "            total = total - j\n"
+                + "        j = j + 1\n"
+                + "    if i % 25 == 0:\n"
+                + "        print(total)\n"
+                + "    i = i + 1\n"
+                + "print(total)\n";
+        assertResumesFromEveryCheckpoint(source, 97);
+    }
+
+    @Test
+    void resumesFromCheckpointsInATracedLoop() {
+        // The loop is traced after its first iterations; its checkpoints come from poll exits
+        assertResumesFromEveryCheckpoint(manyVariablesScript(3, 100_000), Checkpointer.DEFAULT_CHECK_EVERY);
+    }
+
+    @Test
+    void resumesFromAFile() throws IOException {
+        String source = manyVariablesScript(1000, 200);
+        CompiledProgram program = CompiledProgram.compile(source);
+        List<Checkpoint> taken = new ArrayList<>();
+        List<String> printedBefore = new ArrayList<>();
+        MemoryOutputSink out = new MemoryOutputSink();
+        program.run(out, new Checkpointer(program, 0, 1, checkpoint -> {
+            taken.add(checkpoint);
+            printedBefore.add(out.text());
+        }));
+
+        int middle = taken.size() / 2;
+        Path file = directory.resolve("run.checkpoint");
+        taken.get(middle).write(file);
+        MemoryOutputSink resumed = new MemoryOutputSink();
+        CompiledProgram.compile(source).resume(Checkpoint.read(file), resumed, null);
+        assertEquals(plainRun(source), printedBefore.get(middle) + resumed.text());
+    }
+
+    @Test
+    void rejectsACheckpointOfAnotherProgram() {
+        String source = manyVariablesScript(5, 2000);
+        CompiledProgram program = CompiledProgram.compile(source);
+        List<Checkpoint> taken = new ArrayList<>();
+        program.run(new MemoryOutputSink(), new Checkpointer(program, 0, 1, taken::add));
+        Checkpoint checkpoint = taken.get(0);
+
+        CompiledProgram other = CompiledProgram.compile(manyVariablesScript(6, 2000));
+        assertThrows(IllegalStateException.class, () -> other.resume(checkpoint, new MemoryOutputSink(), null));
+    }
+
+    private static void assertResumesFromEveryCheckpoint(String source, int checkEvery) {
+        String whole = plainRun(source);
+        CompiledProgram program = CompiledProgram.compile(source);
+        List<Checkpoint> taken = new ArrayList<>();
+        List<String> printedBefore = new ArrayList<>();
+        MemoryOutputSink out = new MemoryOutputSink();
+        program.run(out, new Checkpointer(program, 0, checkEvery, checkpoint -> {
+            taken.add(checkpoint);
+            printedBefore.add(out.text());
+        }));
+        assertEquals(whole, out.text());
+        assertTrue(taken.size() > 1, "only " + taken.size() + " checkpoints taken");
+
+        for (int i = 0; i < taken.size(); i++) {
+            Checkpoint checkpoint = Checkpoint.read(ByteBuffer.wrap(taken.get(i).toBytes()));
+            MemoryOutputSink resumed = new MemoryOutputSink();
+            CompiledProgram.compile(source).resume(checkpoint, resumed, null);
+            assertEquals(whole, printedBefore.get(i) + resumed.text(), "resumed from checkpoint " + i);
+        }
+    }
+
+    private static String plainRun(String source) {
+        MemoryOutputSink out = new MemoryOutputSink();
+        CompiledProgram.compile(source).run(out);
+        return out.text();
+    }
+
+    // vars variables, all added to on every one of iterations iterations, printing as it goes
+    private static String manyVariablesScript(int vars, int iterations) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("i = 0\n");
+        sb.append("while i < ").append(iterations).append(":\n");
+        for (int k = 0; k < vars; k++) {
+            sb.append("    v").append(k).append(" = i * ").append(k + 1).append(" + v").append(k).append("\n");
+        }
+        sb.append("    if i % 100 == 0:\n");
+        sb.append("        print(v").append(vars - 1).append(")\n");
+        sb.append("    i = i + 1\n");
+        sb.append("print(v0)\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,66 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ One CompiledProgram shared by many threads: 10000 concurrent runs of a freshly compiled
+ program (so its loops get traced while the runs race), each printing into its own
+ MemoryOutputSink, and every output must be exactly what a run on its own prints.
+ Uses virtual threads when the JVM has them (Java 21+), platform threads otherwise.
+ */
+class CompiledProgramConcurrencyTest {
+    private static final int RUNS = 10_000;
+
+    @Test
+    void concurrentPrimeChecksPrintWhatOneRunPrints() throws Exception {
+        assertConcurrentRunsAgree(Examples.primeTest(10_007));
+    }
+
+    @Test
+    void concurrentMultiplicationTablesPrintWhatOneRunPrints() throws Exception {
+        assertConcurrentRunsAgree(Examples.multiplicationTable(3, 2_000));
+    }
+
+    private static void assertConcurrentRunsAgree(String source) throws Exception {
+        MemoryOutputSink expected = new MemoryOutputSink();
+        CompiledProgram.compile(source).run(expected);
+
+        CompiledProgram program = CompiledProgram.compile(source);
+        AtomicInteger wrong = new AtomicInteger();
+        ExecutorService executor = newThreadPerTaskExecutor();
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < RUNS; i++) {
+                results.add(executor.submit(() -> {
+                    MemoryOutputSink out = new MemoryOutputSink();
+                    program.run(out);
+                    if (!out.text().equals(expected.text())) {
+                        wrong.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, wrong.get(), "concurrent runs that printed the wrong output");
+    }
+
+    // Virtual threads when this JVM has them (Java 21+), otherwise a big pool of platform threads
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(256);
+        }
+    }
+}
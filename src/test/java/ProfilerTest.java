@@ -0,0 +1,52 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ Hit and iteration counts are exact in both modes, and time lands on the lines that run,
+ nested by their if/while structure.
+ */
+class ProfilerTest {
+    private static final String SCRIPT = ""
+            + "t = 0\n"
+            + "i = 0\n"
+            + "while i < 2000000:\n"
+            + "    if i % 2 == 0:\n"
+            + "        t = t + 1\n"
+            + "    i = i + 1\n"
+            + "print(t)\n";
+
+    @Test
+    void samplingCountsExactlyAndChargesTheLoop() {
+        Profiler profiler = run(new Profiler(SCRIPT, 100_000));
+        assertCounts(profiler);
+        // Lines are 0-based here: the while is line 2
+        assertTrue(profiler.totalNanos(2) > 0, "no samples in the loop");
+        assertTrue(profiler.totalNanos(2) >= profiler.totalNanos(3), "the if's time is not inside the loop's");
+        assertEquals(0, profiler.totalNanos(0));
+    }
+
+    @Test
+    void collapsedStacksFollowTheIfWhileNesting() {
+        Profiler profiler = run(new Profiler(SCRIPT, 0));
+        assertCounts(profiler);
+        StringBuilder stacks = new StringBuilder();
+        profiler.writeCollapsedStacks(stacks, "script.py");
+        assertTrue(stacks.toString().contains(
+                "script.py;3: while i < 2000000:;4: if i % 2 == 0:;5: t = t + 1 "), stacks.toString());
+    }
+
+    private static Profiler run(Profiler profiler) {
+        CompiledProgram.compile(SCRIPT).run(new MemoryOutputSink(), profiler);
+        return profiler;
+    }
+
+    private static void assertCounts(Profiler profiler) {
+        assertEquals(1, profiler.hits(2));
+        assertEquals(2_000_000, profiler.iterations(2));
+        assertEquals(2_000_000, profiler.hits(3));
+        assertEquals(1_000_000, profiler.hits(4));
+        assertEquals(1, profiler.hits(6));
+    }
+}
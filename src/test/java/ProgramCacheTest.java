@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ Programs loaded from a ProgramCache print what the programs compiled from source print,
+ and a truncated or corrupted entry is compiled again and rewritten rather than trusted.
+ */
+class ProgramCacheTest {
+    private static final int SCRIPTS = 10;
+
+    @TempDir
+    Path cacheDir;
+
+    @Test
+    void cachedProgramsPrintWhatTheSourcePrints() throws IOException {
+        fill();
+        ProgramCache cache = new ProgramCache(cacheDir);
+        for (int i = 0; i < SCRIPTS; i++) {
+            assertPrintsAsCompiled(cache, script(i));
+        }
+    }
+
+    @Test
+    void truncatedAndCorruptedEntriesAreCompiledAgain() throws IOException {
+        fill();
+        List<Path> entries = entries();
+        Path truncated = entries.get(0);
+        Files.write(truncated, Arrays.copyOf(Files.readAllBytes(truncated), 100));
+        Path corrupted = entries.get(1);
+        byte[] bytes = Files.readAllBytes(corrupted);
+        bytes[bytes.length / 2] ^= 0x55;
+        Files.write(corrupted, bytes);
+
+        ProgramCache cache = new ProgramCache(cacheDir);
+        for (int i = 0; i < SCRIPTS; i++) {
+            assertPrintsAsCompiled(cache, script(i));
+        }
+        // The two broken entries were compiled again and rewritten; read throws if they weren't
+        ProgramFile.read(ByteBuffer.wrap(Files.readAllBytes(truncated)), hashOfEntry(truncated));
+        ProgramFile.read(ByteBuffer.wrap(Files.readAllBytes(corrupted)), hashOfEntry(corrupted));
+    }
+
+    private void fill() throws IOException {
+        ProgramCache cache = new ProgramCache(cacheDir);
+        for (int i = 0; i < SCRIPTS; i++) {
+            cache.load(script(i));
+        }
+        assertEquals(SCRIPTS, entries().size());
+    }
+
+    private static void assertPrintsAsCompiled(ProgramCache cache, String source) throws IOException {
+        MemoryOutputSink expected = new MemoryOutputSink();
+        CompiledProgram.compile(source).run(expected);
+        MemoryOutputSink actual = new MemoryOutputSink();
+        cache.load(source).run(actual);
+        assertEquals(expected.text(), actual.text());
+    }
+
+    private List<Path> entries() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDir, "*.program")) {
+            stream.forEach(entries::add);
+        }
+        return entries;
+    }
+
+    // The source hash an entry is named after
+    private static byte[] hashOfEntry(Path entry) {
+        String hex = entry.getFileName().toString().replace(".program", "");
+        byte[] hash = new byte[hex.length() / 2];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return hash;
+    }
+
+    // Every Example with small arguments, then a generated tail
+    private static String script(int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Examples.sumOfN(100 + i)).append(Examples.factorial(i % 12))
+                .append(Examples.gcd(1071 + i, 462)).append(Examples.primeTest(101 + i))
+                .append(Examples.multiplicationTable(i % 9 + 1, 10)).append(Examples.nthFibonacci(i % 30));
+        for (int k = 0; k < 50; k++) {
+            sb.append("total = total + ").append(k * i).append("\n");
+            sb.append("if total > ").append(k * 100).append(":\n");
+            sb.append("    print(total % 7)\n");
+        }
+        return sb.toString();
+    }
+}